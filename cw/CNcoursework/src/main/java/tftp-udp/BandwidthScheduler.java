@@ -0,0 +1,327 @@
+package com.aa2796.tftp.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Shares the server's egress between concurrent transfers. Every sender opens a
+ * {@link Flow} and asks it for bytes before putting them on the wire. Three
+ * {@link TokenBucket}s apply: one per flow, one per client address, one for the
+ * whole server.
+ * <p>
+ * While the shared buckets have tokens and nobody is waiting, a request goes
+ * straight through. Otherwise the flow joins a deficit round robin: on each turn
+ * the next waiting flow is given a quantum of bytes, taken from its client's
+ * bucket and the global one, or just what its request still needs if that is less.
+ * It is woken once its deficit covers the request. As in standard DRR, the deficit
+ * is dropped once the request has gone out, so a flow that goes quiet cannot save
+ * up credit for a later burst. A fast client therefore gets no more of a contended
+ * limit than a slow one, whatever its window. A client over its own limit is
+ * skipped until it has tokens. A "tftp-bandwidth" thread hands out the turns and
+ * wakes each flow through the callback it opened with.
+ * <p>
+ * Limits come from &lt;prefix&gt;.globalRate, .clientRate and .sessionRate in
+ * bytes per second (0, the default, is unlimited) and &lt;prefix&gt;.quantum, and
+ * can be changed at runtime through the MXBean.
+ */
+public class BandwidthScheduler implements BandwidthSchedulerMXBean {
+    /**
+     * Returned by {@link Flow#acquire} when the flow is queued and will be woken on its turn.
+     */
+    public static final long WAIT = Long.MAX_VALUE;
+
+    private final String prefix;
+    private final TokenBucket global;
+    private final Map<InetAddress, Client> clients = new HashMap<>();
+    private final Set<Flow> flows = new HashSet<>();
+    private final ArrayDeque<Flow> waiting = new ArrayDeque<>();
+    private volatile boolean limited;
+    private long clientRate;
+    private long sessionRate;
+    private int quantum;
+    private Thread driver;
+    private ObjectName objectName;
+
+    public BandwidthScheduler(String prefix) {
+        this.prefix = prefix;
+        this.global = new TokenBucket(Long.getLong(prefix + ".globalRate", 0));
+        this.clientRate = Math.max(0, Long.getLong(prefix + ".clientRate", 0));
+        this.sessionRate = Math.max(0, Long.getLong(prefix + ".sessionRate", 0));
+        this.quantum = Math.max(1, Integer.getInteger(prefix + ".quantum", 64 * 1024));
+        updateLimited();
+    }
+
+    /**
+     * Starts a flow for a transfer to the given client. wake is run, on the
+     * scheduler's thread, when a queued flow gets its turn.
+     */
+    public synchronized Flow open(InetAddress client, Runnable wake) {
+        Client shared = clients.computeIfAbsent(client, address -> new Client(clientRate));
+        shared.flows++;
+        Flow flow = new Flow(shared, wake);
+        flows.add(flow);
+        return flow;
+    }
+
+    private synchronized void close(Flow flow) {
+        if (!flows.remove(flow)) {
+            return;
+        }
+        waiting.remove(flow);
+        if (--flow.client.flows == 0) {
+            clients.values().remove(flow.client);
+        }
+    }
+
+    private long acquire(Flow flow, long bytes) {
+        if (!limited) {
+            return 0;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            flow.bucket.refill(now);
+            if (!flow.bucket.canTake(bytes)) {
+                return flow.bucket.nanosUntil(bytes);
+            }
+            if (flow.deficit >= bytes) {
+                flow.deficit -= bytes;
+                flow.pending = Math.max(0, flow.pending - bytes);
+                if (flow.pending == 0) {
+                    flow.deficit = 0; // Served, the flow is no longer backlogged
+                }
+                flow.bucket.take(bytes);
+                return 0;
+            }
+            if (flow.queued) {
+                return WAIT;
+            }
+            if (waiting.isEmpty()) {
+                global.refill(now);
+                flow.client.bucket.refill(now);
+                if (global.canTake(bytes) && flow.client.bucket.canTake(bytes)) {
+                    global.take(bytes);
+                    flow.client.bucket.take(bytes);
+                    flow.bucket.take(bytes);
+                    return 0;
+                }
+            }
+            flow.pending = bytes;
+            flow.queued = true;
+            waiting.add(flow);
+            if (driver == null) {
+                driver = new Thread(this::drive, prefix + "-bandwidth");
+                driver.setDaemon(true);
+                driver.start();
+            } else {
+                LockSupport.unpark(driver);
+            }
+            return WAIT;
+        }
+    }
+
+    private void drive() {
+        while (true) {
+            long pause;
+            synchronized (this) {
+                pause = serve(System.nanoTime());
+            }
+            if (pause == WAIT) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, pause);
+            }
+        }
+    }
+
+    /**
+     * Gives turns to waiting flows while the shared buckets allow. Returns how long to
+     * sleep before trying again, or WAIT if nobody is waiting.
+     */
+    private long serve(long now) {
+        global.refill(now);
+        long pause = WAIT;
+        int skipped = 0;
+        while (!waiting.isEmpty()) {
+            Flow flow = waiting.peek();
+            long grant = Math.min(quantum, flow.pending - flow.deficit);
+            if (!global.canTake(grant)) {
+                return global.nanosUntil(grant); // Everyone is held up, the head keeps its place
+            }
+            TokenBucket client = flow.client.bucket;
+            client.refill(now);
+            if (!client.canTake(grant)) {
+                pause = Math.min(pause, client.nanosUntil(grant));
+                waiting.add(waiting.poll());
+                if (++skipped >= waiting.size()) {
+                    return pause; // Every waiting client is over its own limit
+                }
+                continue;
+            }
+            skipped = 0;
+            global.take(grant);
+            client.take(grant);
+            flow.deficit += grant;
+            waiting.poll();
+            if (flow.deficit < flow.pending) {
+                waiting.add(flow); // A request bigger than the quantum takes several rounds
+                continue;
+            }
+            flow.queued = false;
+            flow.wake.run();
+        }
+        return WAIT;
+    }
+
+    private void updateLimited() {
+        limited = global.getRate() > 0 || clientRate > 0 || sessionRate > 0;
+        if (driver != null) {
+            LockSupport.unpark(driver); // Waiting flows may go now
+        }
+    }
+
+    @Override
+    public synchronized long getGlobalBytesPerSecond() {
+        return global.getRate();
+    }
+
+    @Override
+    public synchronized void setGlobalBytesPerSecond(long rate) {
+        global.setRate(rate, System.nanoTime());
+        updateLimited();
+    }
+
+    @Override
+    public synchronized long getClientBytesPerSecond() {
+        return clientRate;
+    }
+
+    @Override
+    public synchronized void setClientBytesPerSecond(long rate) {
+        clientRate = Math.max(0, rate);
+        long now = System.nanoTime();
+        for (Client client : clients.values()) {
+            client.bucket.setRate(clientRate, now);
+        }
+        updateLimited();
+    }
+
+    @Override
+    public synchronized long getSessionBytesPerSecond() {
+        return sessionRate;
+    }
+
+    @Override
+    public synchronized void setSessionBytesPerSecond(long rate) {
+        sessionRate = Math.max(0, rate);
+        long now = System.nanoTime();
+        for (Flow flow : flows) {
+            flow.bucket.setRate(sessionRate, now);
+        }
+        updateLimited();
+    }
+
+    @Override
+    public synchronized int getQuantumBytes() {
+        return quantum;
+    }
+
+    @Override
+    public synchronized void setQuantumBytes(int quantum) {
+        this.quantum = Math.max(1, quantum);
+    }
+
+    @Override
+    public synchronized int getActiveFlows() {
+        return flows.size();
+    }
+
+    @Override
+    public synchronized int getWaitingFlows() {
+        return waiting.size();
+    }
+
+    /**
+     * Registers the MXBean as com.aa2796.tftp:type=&lt;type&gt;,port=&lt;port&gt;,name=bandwidth.
+     */
+    public void register(String type, int port) {
+        try {
+            objectName = new ObjectName("com.aa2796.tftp:type=" + type + ",port=" + port + ",name=bandwidth");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.out.println("Could not register bandwidth MBean: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            System.out.println("Could not unregister bandwidth MBean: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    private static final class Client {
+        final TokenBucket bucket;
+        int flows;
+
+        Client(long rate) {
+            this.bucket = new TokenBucket(rate);
+        }
+    }
+
+    /**
+     * One transfer's share of the scheduler. Guarded by the scheduler's lock.
+     */
+    public final class Flow {
+        private final Client client;
+        private final TokenBucket bucket = new TokenBucket(sessionRate);
+        private final Runnable wake;
+        private long deficit; // bytes granted on this flow's turns and not yet sent
+        private long pending; // bytes of the request that queued the flow not yet sent
+        private boolean queued;
+
+        private Flow(Client client, Runnable wake) {
+            this.client = client;
+            this.wake = wake;
+        }
+
+        /**
+         * Asks to send bytes now. Returns 0 if they may go, WAIT if the flow is queued
+         * for its turn and will be woken, or else the nanoseconds to wait before asking again.
+         */
+        public long acquire(long bytes) {
+            return BandwidthScheduler.this.acquire(this, bytes);
+        }
+
+        /**
+         * Blocking form of {@link #acquire}, for thread-per-connection senders. The
+         * flow must have been opened with a wake callback that unparks this thread.
+         */
+        public void await(long bytes) {
+            long wait;
+            while ((wait = acquire(bytes)) != 0) {
+                if (wait == WAIT) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        }
+
+        public void close() {
+            BandwidthScheduler.this.close(this);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.aa2796.tftp.server;
+
+/**
+ * JMX view of a {@link BandwidthScheduler}. Rates are bytes per second, 0 meaning
+ * unlimited, and take effect for running transfers as soon as they are set.
+ */
+public interface BandwidthSchedulerMXBean {
+    long getGlobalBytesPerSecond();
+
+    void setGlobalBytesPerSecond(long rate);
+
+    long getClientBytesPerSecond();
+
+    void setClientBytesPerSecond(long rate);
+
+    long getSessionBytesPerSecond();
+
+    void setSessionBytesPerSecond(long rate);
+
+    int getQuantumBytes();
+
+    void setQuantumBytes(int quantum);
+
+    int getActiveFlows();
+
+    /**
+     * Flows waiting for their round-robin turn at the shared limits.
+     */
+    int getWaitingFlows();
+}
@@ -0,0 +1,178 @@
+package com.aa2796.tftp.server;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide cache of file chunks for the RRQ read path, shared by every
+ * session on every event loop. Chunks are keyed by (file, mtime, size, chunk
+ * index), so a rewritten file never serves stale data. Chunk bytes live
+ * off-heap in preallocated direct slabs; the cache is split into segments,
+ * each with its own lock and LRU order, to keep contention between loops low.
+ * A lookup allocates nothing: each segment probes its map with one reusable key
+ * under its lock, and only a chunk being stored gets a key of its own.
+ */
+public class BlockCache {
+    // Larger than the biggest blksize, so a block never spans more than two chunks
+    public static final int CHUNK_SIZE = 64 * 1024;
+    static final long DEFAULT_CAPACITY_BYTES = Long.getLong("tftp.cacheBytes", 64L * 1024 * 1024);
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long capacityBytes) {
+        long slotsPerSegment = Math.max(1, capacityBytes / CHUNK_SIZE / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((int) Math.min(slotsPerSegment, Integer.MAX_VALUE / CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Identity of one version of a file. Cheap to compare and shared by all keys of a reader.
+     */
+    public static final class FileKey {
+        private final Path path;
+        private final long modifiedMillis;
+        private final long size;
+        private final int hash; // worked out once, every chunk lookup needs it
+
+        public FileKey(Path path, long modifiedMillis, long size) {
+            this.path = path.toAbsolutePath().normalize();
+            this.modifiedMillis = modifiedMillis;
+            this.size = size;
+            this.hash = 31 * (31 * this.path.hashCode() + Long.hashCode(modifiedMillis)) + Long.hashCode(size);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileKey)) {
+                return false;
+            }
+            FileKey other = (FileKey) o;
+            return modifiedMillis == other.modifiedMillis && size == other.size && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Mutable only as a segment's probe; a key stored in a map is never changed again
+    private static final class ChunkKey {
+        private FileKey file;
+        private long chunk;
+
+        ChunkKey set(FileKey file, long chunk) {
+            this.file = file;
+            this.chunk = chunk;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) o;
+            return chunk == other.chunk && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(file, chunk);
+        }
+    }
+
+    private static int hash(FileKey file, long chunk) {
+        return 31 * file.hashCode() + Long.hashCode(chunk);
+    }
+
+    private static final class Segment {
+        private final ByteBuffer slab;
+        private final int[] freeSlots;
+        private int freeCount;
+        private final LinkedHashMap<ChunkKey, Integer> lru = new LinkedHashMap<>(16, 0.75f, true);
+        private final ChunkKey probe = new ChunkKey(); // guarded by the segment's lock
+
+        Segment(int slots) {
+            slab = ByteBuffer.allocateDirect(slots * CHUNK_SIZE);
+            freeSlots = new int[slots];
+            for (int i = 0; i < slots; i++) {
+                freeSlots[i] = i;
+            }
+            freeCount = slots;
+        }
+    }
+
+    private Segment segmentFor(FileKey file, long chunk) {
+        int h = hash(file, chunk);
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Copies length bytes at offset within the chunk into dst and returns true, or returns false on a miss.
+     */
+    public boolean read(FileKey file, long chunk, int offset, ByteBuffer dst, int length) {
+        Segment segment = segmentFor(file, chunk);
+        synchronized (segment) {
+            Integer slot = segment.lru.get(segment.probe.set(file, chunk));
+            if (slot == null) {
+                misses.increment();
+                return false;
+            }
+            dst.put(dst.position(), segment.slab, slot * CHUNK_SIZE + offset, length);
+        }
+        dst.position(dst.position() + length);
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Stores the remaining bytes of data (at most one chunk) as the given chunk, evicting the least recently used one if needed.
+     */
+    public void put(FileKey file, long chunk, ByteBuffer data) {
+        Segment segment = segmentFor(file, chunk);
+        synchronized (segment) {
+            if (segment.lru.containsKey(segment.probe.set(file, chunk))) {
+                return;
+            }
+            int slot;
+            if (segment.freeCount > 0) {
+                slot = segment.freeSlots[--segment.freeCount];
+            } else {
+                Iterator<Map.Entry<ChunkKey, Integer>> eldest = segment.lru.entrySet().iterator();
+                slot = eldest.next().getValue();
+                eldest.remove();
+                evictions.increment();
+            }
+            segment.slab.put(slot * CHUNK_SIZE, data, data.position(), data.remaining());
+            segment.lru.put(new ChunkKey().set(file, chunk), slot);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCache[hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+}
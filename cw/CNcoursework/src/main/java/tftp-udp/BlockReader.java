@@ -0,0 +1,123 @@
+package com.aa2796.tftp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams file blocks straight into an outgoing packet buffer. Small files are
+ * read with positional FileChannel reads; large files are served from a
+ * sliding memory-mapped region, so heap use stays constant whatever the file size.
+ * When a {@link BlockCache} is supplied, blocks of small files are served from
+ * it and misses load a whole chunk into the cache. Files at or above
+ * tftp.mmapThreshold are always mapped: streamed once, they would only push
+ * the small, hot files out of the cache.
+ */
+public class BlockReader implements Closeable {
+    static final long MMAP_THRESHOLD = Long.getLong("tftp.mmapThreshold", 16L * 1024 * 1024);
+    static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final boolean mapped;
+    private final BlockCache cache;
+    private final BlockCache.FileKey fileKey;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private ByteBuffer chunkBuffer;
+
+    public BlockReader(Path filePath) throws IOException {
+        this(filePath, null);
+    }
+
+    public BlockReader(Path filePath, BlockCache cache) throws IOException {
+        this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.mapped = size >= MMAP_THRESHOLD;
+        this.cache = mapped ? null : cache;
+        this.fileKey = this.cache == null ? null : new BlockCache.FileKey(filePath, Files.getLastModifiedTime(filePath).toMillis(), size);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Copies up to length bytes starting at position into dst, advancing its position.
+     * Returns the number of bytes copied, which is short only at the end of the file.
+     */
+    public int read(long position, ByteBuffer dst, int length) throws IOException {
+        int count = (int) Math.max(0, Math.min(length, size - position));
+        if (count == 0) {
+            return 0;
+        }
+        if (cache != null) {
+            readCached(position, dst, count);
+            return count;
+        }
+        if (mapped) {
+            if (region == null || position < regionStart || position + count > regionStart + region.capacity()) {
+                regionStart = position;
+                region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION_SIZE, size - position));
+            }
+            int offset = (int) (position - regionStart);
+            dst.put(dst.position(), region, offset, count);
+            dst.position(dst.position() + count);
+            return count;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + count);
+        try {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + count - dst.remaining()) < 0) {
+                    break; // File shrank underneath us
+                }
+            }
+            return count - dst.remaining();
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    private void readCached(long position, ByteBuffer dst, int count) throws IOException {
+        int done = 0;
+        while (done < count) {
+            long chunk = (position + done) / BlockCache.CHUNK_SIZE;
+            int offset = (int) ((position + done) % BlockCache.CHUNK_SIZE);
+            int length = Math.min(count - done, BlockCache.CHUNK_SIZE - offset);
+            if (!cache.read(fileKey, chunk, offset, dst, length)) {
+                ByteBuffer data = loadChunk(chunk);
+                dst.put(dst.position(), data, offset, length);
+                dst.position(dst.position() + length);
+                cache.put(fileKey, chunk, data);
+            }
+            done += length;
+        }
+    }
+
+    private ByteBuffer loadChunk(long chunk) throws IOException {
+        if (chunkBuffer == null) {
+            chunkBuffer = ByteBuffer.allocateDirect(BlockCache.CHUNK_SIZE);
+        }
+        long start = chunk * BlockCache.CHUNK_SIZE;
+        chunkBuffer.clear();
+        chunkBuffer.limit((int) Math.min(BlockCache.CHUNK_SIZE, size - start));
+        while (chunkBuffer.hasRemaining()) {
+            if (channel.read(chunkBuffer, start + chunkBuffer.position()) < 0) {
+                throw new IOException("File shrank while it was being served");
+            }
+        }
+        chunkBuffer.flip();
+        return chunkBuffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
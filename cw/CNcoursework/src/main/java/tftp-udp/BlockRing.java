@@ -0,0 +1,103 @@
+package com.aa2796.tftp.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer, single-consumer ring of block-sized slots carved out of one
+ * pre-allocated direct buffer. The event loop copies each received block into
+ * the next free slot and publishes it. The disk writer takes every published
+ * slot in one go and frees them once they are written. The two sides share only
+ * the head and tail counters. Each counter is written by one side only, with an
+ * ordered store, so no locks are taken and nothing is allocated per block.
+ */
+final class BlockRing {
+    private final ByteBuffer memory;
+    private final ByteBuffer[] slots;
+    private final long[] positions;
+    private final boolean[] last;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to drain, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to fill, written by the producer
+
+    /**
+     * slotCount is rounded up to a power of two.
+     */
+    BlockRing(int slotCount, int slotSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+        this.memory = BufferPool.shared().acquire(capacity * slotSize);
+        this.slots = new ByteBuffer[capacity];
+        this.positions = new long[capacity];
+        this.last = new boolean[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = memory.slice(i * slotSize, slotSize);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Producer: true if there is no free slot.
+     */
+    boolean isFull() {
+        return tail.get() - head.get() >= slots.length;
+    }
+
+    /**
+     * Producer: copies src into the next slot and publishes it for the given file
+     * position, marked as the final block if last is set. Returns false, leaving
+     * src untouched, if the ring is full.
+     */
+    boolean offer(long position, ByteBuffer src, boolean last) {
+        long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            return false;
+        }
+        int i = (int) t & mask;
+        slots[i].clear();
+        slots[i].put(src.duplicate()).flip();
+        positions[i] = position;
+        this.last[i] = last;
+        tail.lazySet(t + 1); // Publishes the slot contents along with the new tail
+        return true;
+    }
+
+    /**
+     * Consumer: number of published slots waiting to be drained.
+     */
+    int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Consumer: the n-th waiting slot, 0 being the oldest. Valid until {@link #release}.
+     */
+    ByteBuffer slot(int n) {
+        return slots[(int) (head.get() + n) & mask];
+    }
+
+    long position(int n) {
+        return positions[(int) (head.get() + n) & mask];
+    }
+
+    boolean isLast(int n) {
+        return last[(int) (head.get() + n) & mask];
+    }
+
+    /**
+     * Consumer: frees the oldest count slots for the producer to reuse.
+     */
+    void release(int count) {
+        head.lazySet(head.get() + count);
+    }
+
+    /**
+     * Returns the memory to the pool. Only once neither side touches the ring again.
+     */
+    void free() {
+        BufferPool.shared().release(memory);
+    }
+}
@@ -0,0 +1,115 @@
+package com.aa2796.tftp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write-behind file sink for uploads. Keeps one FileChannel open for the whole
+ * transfer and coalesces contiguous blocks into a batch buffer, which is written
+ * at its file offset in a single call once it fills up or the transfer ends.
+ */
+public class BlockWriter implements Closeable {
+    static final int BATCH_SIZE = Integer.getInteger("tftp.writeBatchSize", 1024 * 1024);
+    static final boolean FSYNC_ON_COMPLETE = Boolean.getBoolean("tftp.fsyncOnComplete");
+
+    private final FileChannel channel;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private long batchStart;
+
+    public BlockWriter(Path filePath) throws IOException {
+        this(filePath, false);
+    }
+
+    /**
+     * With reuse set, writes into an existing file (an unfinished upload being
+     * resumed or replaced) instead of insisting on creating a new one.
+     */
+    public BlockWriter(Path filePath, boolean reuse) throws IOException {
+        this.channel = reuse
+                ? FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Queues the remaining bytes of src for writing at position. Consumes src.
+     */
+    public void write(long position, ByteBuffer src) throws IOException {
+        if (batch.position() > 0 && (position != batchStart + batch.position() || src.remaining() > batch.remaining())) {
+            flush();
+        }
+        if (src.remaining() > batch.capacity()) {
+            writeFully(src, position);
+            return;
+        }
+        if (batch.position() == 0) {
+            batchStart = position;
+        }
+        batch.put(src);
+    }
+
+    public void flush() throws IOException {
+        batch.flip();
+        writeFully(batch, batchStart);
+        batch.clear();
+    }
+
+    /**
+     * Flushes the last batch and, if configured, forces the file to stable storage.
+     */
+    public void complete() throws IOException {
+        flush();
+        if (FSYNC_ON_COMPLETE) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Writes out the current batch and forces the file to stable storage.
+     */
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Extends the file to its final size before any data arrives, so the blocks are
+     * written into place rather than growing the file. Java has no fallocate, so on
+     * most file systems this leaves a sparse file rather than reserved blocks.
+     */
+    public void preallocate(long size) throws IOException {
+        if (size > channel.size()) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            while (last.hasRemaining()) {
+                channel.write(last, size - 1);
+            }
+        }
+    }
+
+    /**
+     * Cuts off anything past size, left over from an earlier, longer attempt.
+     */
+    public void truncate(long size) throws IOException {
+        flush();
+        channel.truncate(size);
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        long start = position - src.position();
+        while (src.hasRemaining()) {
+            channel.write(src, start + src.position());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.aa2796.tftp.server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the direct packet buffers of finished sessions. Direct buffers are
+ * slow to allocate and only freed by the GC, so sessions take theirs from here
+ * and hand them back on close. Buffers are pooled by exact capacity, since only
+ * a few block sizes are in use at a time, up to a global byte budget.
+ */
+public class BufferPool {
+    static final long DEFAULT_MAX_POOLED_BYTES = Long.getLong("tftp.bufferPoolBytes", 32L * 1024 * 1024);
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private final Map<Integer, Queue<ByteBuffer>> free = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final long maxPooledBytes;
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns a cleared direct buffer of exactly the given capacity.
+     */
+    public ByteBuffer acquire(int capacity) {
+        Queue<ByteBuffer> queue = free.get(capacity);
+        ByteBuffer buffer = queue != null ? queue.poll() : null;
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        pooledBytes.addAndGet(-capacity);
+        return buffer.clear();
+    }
+
+    /**
+     * Gives a buffer back. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        free.computeIfAbsent(capacity, k -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+}
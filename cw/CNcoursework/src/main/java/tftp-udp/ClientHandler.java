@@ -1,40 +1,432 @@
-package com.aa2796.tftp.server;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
-
-public class ClientHandler extends Thread {
-    private Socket clientSocket;
-
-    public ClientHandler(Socket socket) {
-        this.clientSocket = socket;
-    }
-
-    @Override
-    public void run() {
-        try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            // Reading the message from client
-            String receivedText = dis.readUTF();
-            System.out.println("Message from client: " + receivedText);
-
-
-            dos.writeUTF("Server Echo: " + receivedText);
-
-        } catch (IOException e) {
-            System.out.println("Communication error with client " + clientSocket.getInetAddress());
-            System.out.println(e.getMessage());
-        } finally {
-            try {
-                if (clientSocket != null) {
-                    clientSocket.close();
-                }
-            } catch (IOException e) {
-                System.out.println("Failed to close the client socket.");
-            }
-        }
-    }
-}
\ No newline at end of file
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.ChunkTransfer;
+import com.aa2796.tftp.common.CompressedFrames;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Serves one TCP connection using the client's framing: writeUTF("RRQ"|"WRQ"),
+ * writeUTF(filename), then a stream of int-length-prefixed frames ended by -1.
+ * File bytes never pass through the heap: downloads use FileChannel.transferTo
+ * and uploads use FileChannel.transferFrom directly against the socket channel.
+ * <p>
+ * "RRQ_RANGE" is followed by writeLong(offset) and writeLong(length). The answer is
+ * the file's total size as a long (-1 if it does not exist), then the frames of that
+ * byte range clipped to the file, then -1. Clients fetch segments of one file over
+ * several connections this way, and a zero length asks for the size alone.
+ * <p>
+ * "RRQ_RESUME" and "WRQ_RESUME" move the file with {@link ChunkTransfer}, so only
+ * chunks the receiver does not already hold are sent. A WRQ_RESUME ends with an
+ * int from the server: 0 once the whole file is received and verified.
+ * <p>
+ * "RRQ_COMPRESSED" and "WRQ_COMPRESSED" carry one more writeUTF after the filename:
+ * the codecs the client accepts, comma separated. The server answers with writeUTF
+ * of the one it picked, or "none". The frames then follow in that codec's
+ * {@link CompressedFrames} format, or in the plain format for "none".
+ * <p>
+ * A connection that opens with writeUTF("PIPELINE") stays open for many requests.
+ * Each request is prefixed with writeInt(id), and the client may send the next ones
+ * before the answers come back. Requests are served in order, and every answer
+ * starts with writeInt of its request's id. A WRQ or WRQ_COMPRESSED answer is
+ * the id, then, once the upload is stored, an int 0. The client ends the connection
+ * with an id of -1, or by closing it. RRQ_RESUME, WRQ_RESUME and WRQ_COMPRESSED
+ * wait for the server mid-request, so nothing may be pipelined behind them until
+ * that answer arrives.
+ * <p>
+ * Errors are writeInt(ERROR) and writeUTF of the reason. A connection the server
+ * cannot take gets one in place of its first answer, and is closed. An RRQ or
+ * RRQ_COMPRESSED for a missing file gets one in place of its first frame, with
+ * "none" picked as the codec. A WRQ or WRQ_COMPRESSED that may not be stored
+ * gets one in place of the final int 0, after its frames have been read and
+ * dropped; the same rules as {@link RequestHandler} apply, so a finished file is
+ * never overwritten and a file being uploaded over UDP or another connection is
+ * left to that upload. The connection stays usable after either. A WRQ_RESUME is
+ * held to the same rules, but as its client waits for the chunk list it is refused
+ * by closing the connection.
+ * <p>
+ * Everything sent to the client is paced by the server's {@link BandwidthScheduler}.
+ * Plain frames are cleared slice by slice before each transferTo. Chunked and
+ * compressed transfers are paced after each chunk, as they report progress.
+ */
+public class ClientHandler implements Runnable {
+    static final int DEFAULT_FRAME_SIZE = Integer.getInteger("tcp.frameSize", 1024 * 1024);
+    // Largest piece of a frame cleared with the bandwidth scheduler at once
+    static final int SLICE_BYTES = 64 * 1024;
+    static final String PIPELINE = "PIPELINE";
+    static final int END = -1;
+    static final int ERROR = -2; // Sent in place of an answer, followed by writeUTF(reason)
+
+    private SocketChannel clientSocket;
+    private int frameSize;
+    private TransferMetrics metrics;
+    private BandwidthScheduler bandwidth;
+    private BandwidthScheduler.Flow flow;
+    private UploadClaim claim; // the current request's upload, let go when the request ends
+
+    public ClientHandler(SocketChannel socket) {
+        this(socket, DEFAULT_FRAME_SIZE);
+    }
+
+    public ClientHandler(SocketChannel socket, int frameSize) {
+        this(socket, frameSize, new TransferMetrics("tcp"));
+    }
+
+    public ClientHandler(SocketChannel socket, int frameSize, TransferMetrics metrics) {
+        this(socket, frameSize, metrics, new BandwidthScheduler("tcp"));
+    }
+
+    public ClientHandler(SocketChannel socket, int frameSize, TransferMetrics metrics, BandwidthScheduler bandwidth) {
+        this.clientSocket = socket;
+        this.frameSize = frameSize;
+        this.metrics = metrics;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Turns a connection away: tells the client why with ERROR and the reason, then closes it.
+     */
+    static void refuse(SocketChannel socket, String reason) {
+        try {
+            writeError(socket, reason);
+        } catch (IOException e) {
+            System.out.println("Could not tell " + socket.socket().getInetAddress() + " why it was refused");
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close the client socket.");
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread worker = Thread.currentThread();
+        flow = bandwidth.open(clientSocket.socket().getInetAddress(), () -> LockSupport.unpark(worker));
+        try (DataInputStream dis = new DataInputStream(Channels.newInputStream(clientSocket))) {
+            String command = dis.readUTF();
+            if (PIPELINE.equals(command)) {
+                serveRequests(dis);
+            } else {
+                handle(dis, command, false);
+            }
+        } catch (IOException e) {
+            System.out.println("Communication error with client " + clientSocket.socket().getInetAddress());
+            System.out.println(e.getMessage());
+        } finally {
+            flow.close();
+            try {
+                if (clientSocket != null) {
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to close the client socket.");
+            }
+        }
+    }
+
+    /**
+     * Answers pipelined requests in order until the client sends END or closes the connection.
+     */
+    private void serveRequests(DataInputStream dis) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        int served = 0;
+        while (true) {
+            int requestId;
+            try {
+                requestId = dis.readInt();
+            } catch (EOFException e) {
+                break; // Closed between requests, as good as END
+            }
+            if (requestId == END) {
+                break;
+            }
+            String command = dis.readUTF();
+            writeHeader(header, requestId);
+            if (!handle(dis, command, true)) {
+                return; // Whatever follows an unknown command cannot be parsed
+            }
+            served++;
+        }
+        System.out.println("Connection from " + clientSocket.socket().getInetAddress() + " closed after " + served + " requests");
+    }
+
+    /**
+     * Reads the rest of one request and answers it. Returns false for an unknown command.
+     */
+    private boolean handle(DataInputStream dis, String command, boolean pipelined) throws IOException {
+        SessionMetrics stats = null;
+        boolean completed = false;
+        try {
+            // Reading the request from client
+            String filename = dis.readUTF();
+            System.out.println(command + " from client: " + filename);
+            String peer = String.valueOf(clientSocket.getRemoteAddress());
+            if ("WRQ_RESUME".equals(command)) {
+                // Same rules as WRQ, so only an unfinished upload is resumed; a chunked upload cannot be skipped
+                String refusal = claimUpload(Paths.get(filename));
+                if (refusal != null) {
+                    System.out.println("Refusing upload of " + filename + ": " + refusal);
+                    metrics.sessionRejected();
+                    return false;
+                }
+            }
+
+            if ("RRQ".equals(command)) {
+                stats = metrics.sessionStarted(peer, filename, TransferMetrics.READ);
+                completed = sendFile(Paths.get(filename), stats);
+            } else if ("RRQ_RANGE".equals(command)) {
+                long offset = dis.readLong();
+                long length = dis.readLong();
+                stats = metrics.sessionStarted(peer, filename + " @" + offset, TransferMetrics.READ);
+                completed = sendRange(Paths.get(filename), offset, length, stats);
+            } else if ("RRQ_RESUME".equals(command)) {
+                stats = metrics.sessionStarted(peer, filename, TransferMetrics.READ);
+                completed = ChunkTransfer.send(clientSocket, Paths.get(filename), paced(stats)) >= 0;
+            } else if ("WRQ_RESUME".equals(command)) {
+                stats = metrics.sessionStarted(peer, filename, TransferMetrics.WRITE);
+                completed = ChunkTransfer.receive(clientSocket, Paths.get(filename), stats::transferred) >= 0;
+                writeHeader(ByteBuffer.allocate(4), completed ? 0 : 1);
+            } else if ("RRQ_COMPRESSED".equals(command)) {
+                // A missing file is reported in the plain framing
+                String codec = negotiateCodec(dis.readUTF(), Files.isRegularFile(Paths.get(filename)));
+                stats = metrics.sessionStarted(peer, filename, TransferMetrics.READ);
+                completed = sendCompressed(Paths.get(filename), codec, stats);
+            } else if ("WRQ_COMPRESSED".equals(command)) {
+                String refusal = claimUpload(Paths.get(filename));
+                String codec = negotiateCodec(dis.readUTF(), refusal == null);
+                if (refusal != null) {
+                    refuseUpload(dis, filename, refusal);
+                    return true;
+                }
+                stats = metrics.sessionStarted(peer, filename, TransferMetrics.WRITE);
+                receiveCompressed(dis, Paths.get(filename), codec, stats);
+                completed = true;
+            } else if ("WRQ".equals(command)) {
+                String refusal = claimUpload(Paths.get(filename));
+                if (refusal != null) {
+                    refuseUpload(dis, filename, refusal);
+                    return true;
+                }
+                stats = metrics.sessionStarted(peer, filename, TransferMetrics.WRITE);
+                receiveFile(dis, Paths.get(filename), stats);
+                completed = true;
+            } else {
+                System.out.println("Unknown command from client: " + command);
+                metrics.sessionRejected();
+                return false;
+            }
+            if (pipelined && ("WRQ".equals(command) || "WRQ_COMPRESSED".equals(command))) {
+                writeHeader(ByteBuffer.allocate(4), 0); // Stored, the client may count it done
+            }
+            return true;
+        } finally {
+            if (stats != null) {
+                metrics.sessionEnded(stats, completed);
+            }
+            if (claim != null) {
+                claim.close();
+                claim = null;
+            }
+        }
+    }
+
+    /**
+     * Claims filePath for this request's upload, then returns why it may not be stored,
+     * or null if it may. A file another upload is writing is refused like a finished one.
+     */
+    private String claimUpload(Path filePath) {
+        claim = UploadClaim.claim(filePath);
+        return claim == null ? "File is being uploaded" : uploadRefusal(filePath);
+    }
+
+    /**
+     * Why an upload to filePath may not be stored, or null if it may. Sidecars are
+     * reserved, and only a missing file or an unfinished upload may be written.
+     */
+    private static String uploadRefusal(Path filePath) {
+        if (ChunkIndex.isSidecar(filePath)) {
+            return "Reserved file name";
+        }
+        if (Files.exists(filePath) && !ChunkIndex.isPartial(filePath)) {
+            return "File already exists";
+        }
+        return null;
+    }
+
+    /**
+     * Reads and drops the upload's frames, so the next pipelined request can be parsed, then sends the error.
+     */
+    private void refuseUpload(DataInputStream dis, String filename, String reason) throws IOException {
+        int length;
+        while ((length = dis.readInt()) != -1) {
+            dis.skipNBytes(length);
+        }
+        System.out.println("Refusing upload of " + filename + ": " + reason);
+        metrics.sessionRejected();
+        writeError(clientSocket, reason);
+    }
+
+    /**
+     * Returns false if the file does not exist.
+     */
+    private boolean sendFile(Path filePath, SessionMetrics stats) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        if (!Files.isRegularFile(filePath)) {
+            System.out.println("File not found: " + filePath);
+            writeError(clientSocket, "File not found");
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            sendFrames(file, 0, file.size(), header, stats);
+            writeHeader(header, -1);
+        }
+        return true;
+    }
+
+    /**
+     * Picks a codec from the client's offer, or "none" if compress is false, and tells the client which.
+     */
+    private String negotiateCodec(String offer, boolean compress) throws IOException {
+        String codec = CompressedFrames.NONE;
+        for (String candidate : offer.split(",")) {
+            if (compress && CompressedFrames.DEFLATE.equalsIgnoreCase(candidate.trim())) {
+                codec = CompressedFrames.DEFLATE;
+            }
+        }
+        // writeUTF hands the whole string to the channel in one write
+        new DataOutputStream(Channels.newOutputStream(clientSocket)).writeUTF(codec);
+        return codec;
+    }
+
+    private boolean sendCompressed(Path filePath, String codec, SessionMetrics stats) throws IOException {
+        if (CompressedFrames.NONE.equals(codec) || !Files.isRegularFile(filePath)) {
+            return sendFile(filePath, stats);
+        }
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            CompressedFrames.send(file, clientSocket, frameSize, paced(stats));
+        }
+        return true;
+    }
+
+    private void receiveCompressed(DataInputStream dis, Path filePath, String codec, SessionMetrics stats) throws IOException {
+        if (CompressedFrames.NONE.equals(codec)) {
+            receiveFile(dis, filePath, stats);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CompressedFrames.receive(clientSocket, file, frameSize, stats::transferred);
+        }
+        System.out.println("File uploaded successfully: " + filePath);
+    }
+
+    /**
+     * Sends the size header and the requested range. Returns false if the file does not exist.
+     */
+    private boolean sendRange(Path filePath, long offset, long length, SessionMetrics stats) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        if (!Files.isRegularFile(filePath)) {
+            System.out.println("File not found: " + filePath);
+            writeSize(header, -1);
+            writeHeader(header, -1);
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = file.size();
+            writeSize(header, size);
+            long start = Math.min(Math.max(offset, 0), size);
+            sendFrames(file, start, start + Math.min(Math.max(length, 0), size - start), header, stats);
+            writeHeader(header, -1);
+        }
+        return true;
+    }
+
+    private void sendFrames(FileChannel file, long position, long end, ByteBuffer header, SessionMetrics stats)
+            throws IOException {
+        while (position < end) {
+            int length = (int) Math.min(frameSize, end - position);
+            writeHeader(header, length);
+            long frameEnd = position + length;
+            while (position < frameEnd) {
+                long sliceEnd = Math.min(frameEnd, position + SLICE_BYTES);
+                flow.await((int) (sliceEnd - position));
+                while (position < sliceEnd) {
+                    position += file.transferTo(position, sliceEnd - position, clientSocket);
+                }
+            }
+            stats.transferred(length);
+        }
+    }
+
+    /**
+     * Progress callback that records the bytes sent, then waits until the scheduler
+     * has room for as many again, so the next chunk goes out at the allowed rate.
+     */
+    private IntConsumer paced(SessionMetrics stats) {
+        return bytes -> {
+            stats.transferred(bytes);
+            flow.await(bytes);
+        };
+    }
+
+    private void receiveFile(DataInputStream dis, Path filePath, SessionMetrics stats) throws IOException {
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            int length;
+            while ((length = dis.readInt()) != -1) {
+                long end = position + length;
+                while (position < end) {
+                    long transferred = file.transferFrom(clientSocket, position, end - position);
+                    if (transferred == 0) {
+                        throw new IOException("Connection closed in the middle of a frame");
+                    }
+                    position += transferred;
+                }
+                stats.transferred(length);
+            }
+            System.out.println("File uploaded successfully: " + filePath);
+        }
+    }
+
+    private static void writeError(SocketChannel socket, String reason) throws IOException {
+        DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(socket));
+        dos.writeInt(ERROR);
+        dos.writeUTF(reason);
+    }
+
+    private void writeHeader(ByteBuffer header, int length) throws IOException {
+        header.clear();
+        header.putInt(length);
+        write(header);
+    }
+
+    private void writeSize(ByteBuffer header, long size) throws IOException {
+        header.clear();
+        header.putLong(size);
+        write(header);
+    }
+
+    private void write(ByteBuffer header) throws IOException {
+        header.flip();
+        while (header.hasRemaining()) {
+            clientSocket.write(header);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.aa2796.tftp.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Threads that move uploaded blocks from their {@link WritePipeline}s to disk, so
+ * a slow disk never holds up an event loop. Each pipeline stays on the thread it
+ * was given, which keeps its ring single-consumer. A pipeline with new work is
+ * queued on its thread at most once at a time. The thread parks while its queue
+ * is empty. Set the number of threads with -Dtftp.diskWriters (default 1).
+ */
+final class DiskWriter implements Runnable {
+    static final int THREADS = Math.max(1, Integer.getInteger("tftp.diskWriters", 1));
+
+    private static DiskWriter[] writers;
+    private static int next;
+
+    private final Queue<WritePipeline> ready = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    private DiskWriter(int id) {
+        thread = new Thread(this, "tftp-disk-" + id);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * The thread for a new pipeline, round robin. The threads start on first use.
+     */
+    static synchronized DiskWriter assign() {
+        if (writers == null) {
+            writers = new DiskWriter[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                writers[i] = new DiskWriter(i);
+                writers[i].thread.start();
+            }
+        }
+        DiskWriter writer = writers[next];
+        next = (next + 1) % writers.length;
+        return writer;
+    }
+
+    /**
+     * Queues the pipeline to be drained, unless it already is. Safe to call from any thread.
+     */
+    void schedule(WritePipeline pipeline) {
+        if (pipeline.scheduled.compareAndSet(false, true)) {
+            ready.add(pipeline);
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WritePipeline pipeline = ready.poll();
+            if (pipeline == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            // Cleared first, so blocks published while draining queue it again
+            pipeline.scheduled.set(false);
+            pipeline.drain();
+        }
+    }
+}
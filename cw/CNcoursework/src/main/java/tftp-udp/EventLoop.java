@@ -0,0 +1,212 @@
+package com.aa2796.tftp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single-threaded Selector loop. Drives the request listener (if this loop owns
+ * one) and every transfer session registered with it, including their timeouts.
+ * With sharded listeners every loop owns one.
+ */
+public class EventLoop implements Runnable {
+    private static final long MAX_SELECT_MILLIS = 100;
+
+    private final TFTPServer server;
+    private final Selector selector;
+    private final Queue<TransferSession> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<TransferSession> woken = new ConcurrentLinkedQueue<>();
+    private final List<TransferSession> sessions = new ArrayList<>();
+    private final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(TransferSession.MAX_REQUEST_LENGTH);
+    private MulticastGroups multicastGroups;
+    private volatile boolean running = true;
+    private long nextDeadline = Long.MAX_VALUE;
+    private boolean reap;
+
+    public EventLoop(TFTPServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Registers the listening channel with this loop, along with the multicast
+     * groups its requests may join, shared by all listening loops. Must be called before the loop starts.
+     */
+    public void listen(DatagramChannel listener, MulticastGroups groups) throws IOException {
+        this.multicastGroups = groups;
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ, listener);
+    }
+
+    /**
+     * Hands a new session to this loop. Safe to call from any thread.
+     */
+    public void addSession(TransferSession session) {
+        pending.add(session);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks for the session to be woken on this loop. Safe to call from any thread.
+     */
+    public void wake(TransferSession session) {
+        woken.add(session);
+        selector.wakeup();
+    }
+
+    public int getSessionCount() {
+        return sessions.size() + pending.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = Math.min(MAX_SELECT_MILLIS, Math.max(1, nextDeadline - System.currentTimeMillis()));
+                selector.select(wait);
+                long now = System.currentTimeMillis();
+                registerPending(now);
+                runWoken(now);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isReadable()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof DatagramChannel) {
+                        acceptRequests((DatagramChannel) key.attachment());
+                    } else {
+                        TransferSession session = (TransferSession) key.attachment();
+                        try {
+                            session.onReadable(now);
+                        } catch (IOException e) {
+                            System.out.println("Transfer with " + session.peer + " failed: " + e.getMessage());
+                            session.close();
+                        }
+                        // A fresh RTT sample can pull the session's deadline in
+                        nextDeadline = Math.min(nextDeadline, session.getDeadline());
+                        reap |= session.isFinished();
+                    }
+                }
+                // Only walk the session list when a timer is due or a session has ended
+                if (reap || now >= nextDeadline) {
+                    nextDeadline = checkTimeouts(now);
+                    reap = false;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("Event loop stopped: " + e.getMessage());
+        } finally {
+            for (TransferSession session : sessions) {
+                session.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close selector.");
+            }
+        }
+    }
+
+    private void registerPending(long now) {
+        TransferSession session;
+        while ((session = pending.poll()) != null) {
+            try {
+                session.getChannel().register(selector, SelectionKey.OP_READ, session);
+                sessions.add(session);
+                session.attach(this);
+                if (session.needsPreparation()) {
+                    session.beginPreparation();
+                } else {
+                    session.start(now);
+                }
+                nextDeadline = Math.min(nextDeadline, session.getDeadline());
+                reap |= session.isFinished();
+            } catch (IOException e) {
+                System.out.println("Could not start transfer with " + session.peer + ": " + e.getMessage());
+                session.close();
+                reap = true;
+            }
+        }
+    }
+
+    private void runWoken(long now) {
+        TransferSession session;
+        while ((session = woken.poll()) != null) {
+            if (session.isFinished()) {
+                continue;
+            }
+            try {
+                session.woken(now);
+            } catch (IOException e) {
+                System.out.println("Transfer with " + session.peer + " failed: " + e.getMessage());
+                session.close();
+            }
+            nextDeadline = Math.min(nextDeadline, session.getDeadline());
+            reap |= session.isFinished();
+        }
+    }
+
+    private void acceptRequests(DatagramChannel listener) throws IOException {
+        while (true) {
+            requestBuffer.clear();
+            InetSocketAddress client = (InetSocketAddress) listener.receive(requestBuffer);
+            if (client == null) {
+                return;
+            }
+            requestBuffer.flip();
+            try {
+                TransferSession session = new RequestHandler(listener, requestBuffer, client, server.getBlockCache(), server.getMetrics(),
+                        multicastGroups, server.getBandwidth())
+                        .handleRequest();
+                if (session != null) {
+                    server.dispatch(this, session);
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to handle request from " + client + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fires expired session timers, reaps finished sessions and returns the earliest remaining deadline.
+     */
+    private long checkTimeouts(long now) {
+        long earliest = Long.MAX_VALUE;
+        Iterator<TransferSession> it = sessions.iterator();
+        while (it.hasNext()) {
+            TransferSession session = it.next();
+            if (!session.isFinished() && session.getDeadline() <= now) {
+                try {
+                    session.onTimeout(now);
+                } catch (IOException e) {
+                    System.out.println("Transfer with " + session.peer + " failed: " + e.getMessage());
+                    session.close();
+                }
+            }
+            if (session.isFinished()) {
+                session.close();
+                it.remove();
+            } else {
+                earliest = Math.min(earliest, session.getDeadline());
+            }
+        }
+        return earliest;
+    }
+}
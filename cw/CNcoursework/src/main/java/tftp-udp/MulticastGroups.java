@@ -0,0 +1,91 @@
+package com.aa2796.tftp.server;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The multicast transfers (RFC 2090) in progress. Clients asking for the same file
+ * with the same block size and window share one {@link MulticastSession}. Each
+ * group gets its own port on the group address, so clients on one host never see
+ * each other's DATA. One instance is shared by every listening loop, so with
+ * sharded listeners a client still finds the session another loop started; every
+ * method locks. A session stays on the loop that started it, and clients join it
+ * through {@link MulticastSession#requestJoin}.
+ */
+public class MulticastGroups {
+    static final String GROUP_ADDRESS = System.getProperty("tftp.multicastAddress", "239.255.69.69");
+    static final int BASE_PORT = Integer.getInteger("tftp.multicastPort", 1758);
+    static final int MAX_GROUPS = Integer.getInteger("tftp.multicastGroups", 64);
+    // Interface to send groups on, by name; by default the one that routes to the first client
+    static final String INTERFACE = System.getProperty("tftp.multicastInterface");
+    // Block numbers must name one block unambiguously, so bigger files are sent unicast
+    static final int MAX_BLOCKS = 0xffff;
+
+    private final Map<String, MulticastSession> sessions = new HashMap<>();
+    private final BitSet portsInUse = new BitSet(MAX_GROUPS);
+
+    static String key(Path filePath, TransferOptions options) {
+        return filePath.toAbsolutePath().normalize() + "|" + options.getBlockSize() + "|" + options.getWindowSize();
+    }
+
+    /**
+     * The running session for this file and these options, or null.
+     */
+    synchronized MulticastSession find(String key) {
+        MulticastSession session = sessions.get(key);
+        return session != null && !session.isFinished() ? session : null;
+    }
+
+    /**
+     * Reserves a group for a new session, or returns null if all groups are taken.
+     */
+    synchronized InetSocketAddress allocate() throws IOException {
+        int slot = portsInUse.nextClearBit(0);
+        if (slot >= MAX_GROUPS) {
+            return null;
+        }
+        portsInUse.set(slot);
+        return new InetSocketAddress(InetAddress.getByName(GROUP_ADDRESS), BASE_PORT + slot);
+    }
+
+    synchronized void add(String key, MulticastSession session) {
+        sessions.put(key, session);
+    }
+
+    /**
+     * Frees the session's key and group. Called when the session closes.
+     */
+    synchronized void remove(String key, MulticastSession session) {
+        sessions.remove(key, session);
+        release(session.getGroup());
+    }
+
+    synchronized void release(InetSocketAddress group) {
+        portsInUse.clear(group.getPort() - BASE_PORT);
+    }
+
+    /**
+     * The interface multicast to this client should go out on: the configured one,
+     * otherwise the one the system routes to the client through.
+     */
+    static NetworkInterface interfaceFor(InetAddress client) throws IOException {
+        if (INTERFACE != null) {
+            NetworkInterface configured = NetworkInterface.getByName(INTERFACE);
+            if (configured == null) {
+                throw new IOException("No network interface named " + INTERFACE);
+            }
+            return configured;
+        }
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(client, BASE_PORT); // Nothing is sent, this only picks the route
+            return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        }
+    }
+}
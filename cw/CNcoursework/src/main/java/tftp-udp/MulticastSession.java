@@ -0,0 +1,295 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.common.RetransmitTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves one file to any number of clients at once through a multicast group
+ * (RFC 2090). Every DATA block goes to the group once, however many clients are
+ * listening. One member at a time is the master client, and only its ACKs move the
+ * window, exactly as in a {@link ReadSession}. When the master has every block,
+ * the member that has waited longest is made master by a fresh OACK. It ACKs the
+ * last block it holds without a gap, so the server goes back and sends what it
+ * missed. A late joiner thus picks up the rest of the current pass and catches up
+ * on the start when its turn comes.
+ * <p>
+ * Any member that ACKs the last block is done and leaves the group, master or not.
+ * A master that stops answering is dropped once its retries run out. The session
+ * ends when no members are left.
+ * <p>
+ * Windows are cleared with the {@link BandwidthScheduler} like a ReadSession's, as
+ * one flow for the group address. A master not heard from for
+ * {@link #SILENCE_LIMIT_MILLIS} while the window is held back is dropped.
+ */
+public class MulticastSession extends TransferSession {
+    private final BlockReader reader;
+    private final ByteBuffer dataPacket;
+    private final InetSocketAddress group;
+    private final MulticastGroups groups;
+    private final String key;
+    private final int windowSize;
+    private final int blockCount;
+    private final BandwidthScheduler.Flow flow;
+    private final Map<InetSocketAddress, TransferOptions> members = new LinkedHashMap<>(); // in join order
+    private final Queue<Map.Entry<InetSocketAddress, TransferOptions>> joining = new ConcurrentLinkedQueue<>();
+    private InetSocketAddress master;
+    private boolean awaitingMasterAck; // OACK sent to a new master, no ACK yet
+    private boolean started;
+    private int base = 1;      // oldest block the master has not acknowledged
+    private int nextBlock = 1; // next block to put on the wire
+    private int highestSent;   // anything at or below this is sent again for someone who missed it
+    private boolean throttled; // the window is paused by the bandwidth scheduler
+    private long lastHeard;    // when the master last sent anything
+    private boolean ownsGroup; // set once built; if construction fails the caller releases the group
+
+    public MulticastSession(InetSocketAddress peer, TransferOptions options, Path filePath, InetSocketAddress group,
+                            MulticastGroups groups, String key, BlockCache cache, TransferMetrics metrics,
+                            BandwidthScheduler bandwidth) throws IOException {
+        super(peer, options, metrics, TransferMetrics.READ);
+        this.dataPacket = BufferPool.shared().acquire(DATA_PACKET_HEADER_LENGTH + blockSize);
+        this.group = group;
+        this.groups = groups;
+        this.key = key;
+        this.windowSize = options.getWindowSize();
+        try {
+            this.reader = new BlockReader(filePath, cache);
+            NetworkInterface sendOn = MulticastGroups.interfaceFor(peer.getAddress());
+            if (sendOn != null) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, sendOn);
+            }
+            this.blockCount = (int) (reader.size() / blockSize + 1);
+            this.flow = bandwidth.open(group.getAddress(), this::wakeUp);
+            join(peer, options);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        groups.add(key, this);
+        ownsGroup = true;
+    }
+
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    /**
+     * Asks for a client to be added to the group. Safe to call from any listening
+     * loop; the join itself happens on the loop that runs this session.
+     */
+    public void requestJoin(InetSocketAddress client, TransferOptions clientOptions) {
+        joining.add(Map.entry(client, clientOptions));
+        wakeUp();
+    }
+
+    /**
+     * Adds a client to the group, or answers it again if it repeated its request.
+     */
+    private void join(InetSocketAddress client, TransferOptions clientOptions) throws IOException {
+        if (clientOptions.getTransferSize() >= 0) {
+            clientOptions.acceptTransferSize(reader.size());
+        }
+        members.put(client, clientOptions);
+        if (!started) {
+            return; // start() answers everyone who joined before the session was registered
+        }
+        clientOptions.acceptMulticast(group, client.equals(master));
+        sendOack(clientOptions, client);
+    }
+
+    @Override
+    public void start(long now) throws IOException {
+        addJoining();
+        started = true;
+        promoteNextMaster(now);
+        for (Map.Entry<InetSocketAddress, TransferOptions> member : members.entrySet()) {
+            if (!member.getKey().equals(master)) {
+                member.getValue().acceptMulticast(group, false);
+                sendOack(member.getValue(), member.getKey());
+            }
+        }
+    }
+
+    @Override
+    protected boolean accepts(SocketAddress from) {
+        return members.containsKey(from);
+    }
+
+    @Override
+    protected void onPacket(InetSocketAddress from, PacketReader packet, long now) throws IOException {
+        if (packet.opcode() == PacketCodec.OP_ERROR) {
+            System.out.println("Received ERROR packet from " + from + ", removing it from multicast group " + group);
+            leave(from, now);
+            return;
+        }
+        if (packet.opcode() != PacketCodec.OP_ACK) {
+            sendError(from, PacketCodec.ERROR_ILLEGAL_OPERATION, "Illegal TFTP operation.");
+            leave(from, now);
+            return;
+        }
+        int acked = packet.blockNumber(); // Never ambiguous, groups are limited to MAX_BLOCKS
+        if (acked >= blockCount) {
+            leave(from, now); // This member has the whole file
+            return;
+        }
+        if (!from.equals(master)) {
+            stats.duplicate(); // Only the master's ACKs count
+            return;
+        }
+        lastHeard = now;
+        if (awaitingMasterAck) {
+            if (acked > highestSent) {
+                stats.duplicate(); // Claims blocks that were never sent
+                return;
+            }
+            // A new master may be behind the last one, start again from what it holds
+            awaitingMasterAck = false;
+        } else if (acked < base || acked >= nextBlock) {
+            // Repeats an ACK (a lost block is resent on the timeout) or is stale, like in a ReadSession
+            stats.duplicate();
+            return;
+        }
+        base = acked + 1;
+        ackReceived(now);
+        // A partial ACK means the master lost something, resend from there
+        nextBlock = base;
+        sendWindow(now);
+    }
+
+    @Override
+    protected void onPacket(PacketReader packet, long now) {
+        // Not used, every packet is handled with its sender above
+    }
+
+    private void addJoining() throws IOException {
+        Map.Entry<InetSocketAddress, TransferOptions> next;
+        while ((next = joining.poll()) != null) {
+            join(next.getKey(), next.getValue());
+        }
+    }
+
+    @Override
+    public void onWake(long now) throws IOException {
+        addJoining();
+        if (throttled) {
+            sendWindow(now); // Our turn at the shared limits
+        }
+    }
+
+    @Override
+    public void onTimeout(long now) throws IOException {
+        if (throttled) {
+            if (now - lastHeard <= SILENCE_LIMIT_MILLIS) {
+                sendWindow(now);
+                return;
+            }
+            System.out.println("Dropping " + master + " from multicast group " + group + ", not heard from while throttled");
+            leave(master, now);
+            return;
+        }
+        if (!timer.timedOut()) {
+            System.out.println("Dropping " + master + " from multicast group " + group + " after "
+                    + RetransmitTimer.MAX_RETRIES + " retries at block " + base);
+            leave(master, now);
+            return;
+        }
+        stats.retransmitted();
+        if (awaitingMasterAck) {
+            sendOack(members.get(master), master);
+            armTimer(now);
+            return;
+        }
+        nextBlock = base;
+        sendWindow(now);
+    }
+
+    private void leave(InetSocketAddress member, long now) throws IOException {
+        members.remove(member);
+        if (member.equals(master)) {
+            ackReceived(now); // The timer starts over with the next master
+            promoteNextMaster(now);
+        }
+    }
+
+    /**
+     * Makes the longest-waiting member the master, or completes the session if nobody is left.
+     */
+    private void promoteNextMaster(long now) throws IOException {
+        Iterator<Map.Entry<InetSocketAddress, TransferOptions>> next = members.entrySet().iterator();
+        if (!next.hasNext()) {
+            master = null;
+            complete();
+            return;
+        }
+        Map.Entry<InetSocketAddress, TransferOptions> member = next.next();
+        master = member.getKey();
+        member.getValue().acceptMulticast(group, true);
+        sendOack(member.getValue(), master);
+        awaitingMasterAck = true;
+        throttled = false; // The new master starts from its OACK
+        lastHeard = now;
+        armTimer(now);
+    }
+
+    private void sendWindow(long now) throws IOException {
+        throttled = false;
+        int count = Math.min(base + windowSize - 1, blockCount) + 1 - nextBlock;
+        long wait = count > 0 ? flow.acquire((long) count * (DATA_PACKET_HEADER_LENGTH + blockSize)) : 0;
+        if (wait != 0) {
+            throttled = true;
+            setDeadline(now + (wait == BandwidthScheduler.WAIT ? timer.getTimeout() : wait / 1_000_000 + 1));
+            return;
+        }
+        while (nextBlock < base + windowSize && nextBlock <= blockCount) {
+            sendBlock(nextBlock);
+            nextBlock++;
+        }
+        armTimer(now);
+    }
+
+    private void sendBlock(int blockNumber) throws IOException {
+        PacketCodec.beginData(dataPacket, blockNumber);
+        long start = System.nanoTime();
+        int length = reader.read((long) (blockNumber - 1) * blockSize, dataPacket, blockSize);
+        stats.diskRead(System.nanoTime() - start);
+        dataPacket.flip();
+        channel.send(dataPacket, group);
+        if (blockNumber <= highestSent) {
+            stats.retransmitted();
+        } else {
+            highestSent = blockNumber;
+            stats.transferred(length);
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        if (ownsGroup) {
+            groups.remove(key, this);
+        }
+        if (flow != null) {
+            flow.close();
+        }
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close file for multicast group " + group);
+        }
+        BufferPool.shared().release(dataPacket);
+    }
+}
@@ -0,0 +1,254 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.Netascii;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.common.RetransmitTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Serves an RRQ. Keeps up to windowsize DATA blocks in flight (RFC 7440) and
+ * goes back to the first unacknowledged block on a partial ACK or a timeout.
+ * With the default window of 1 this is the classic lock-step transfer.
+ * Blocks are read from disk on demand into a single reusable packet buffer.
+ * If the client asks to resume and its CRC32C matches our first bytes, block 1
+ * starts at the offset it already holds. That check reads the file, so it is
+ * done in {@link #prepare} off the event loop and the OACK waits for it.
+ * In netascii mode a {@link Netascii.Encoder} makes the blocks instead. The
+ * encoded length is only worked out (in prepare) when the client asks for tsize;
+ * otherwise the first short block the encoder makes is the last one.
+ * Such downloads never resume.
+ * Each window is cleared with the {@link BandwidthScheduler} before it is sent.
+ * When it says wait, the window is held back until the flow's turn comes or its
+ * tokens refill; that pause does not count as a retransmission timeout. A client
+ * that has not been heard from for {@link #SILENCE_LIMIT_MILLIS} meanwhile,
+ * not even a repeated ACK, is given up on.
+ */
+public class ReadSession extends TransferSession {
+    private final BlockReader reader;
+    private final ByteBuffer dataPacket;
+    private final int windowSize;
+    private final Path filePath;
+    private static final int UNKNOWN = Integer.MAX_VALUE; // netascii without tsize, until the short block
+
+    private int blockCount;   // set by prepare
+    private long startOffset; // set by prepare
+    private final BandwidthScheduler.Flow flow;
+    private final Netascii.Encoder encoder; // null in octet mode
+    private int base = 1;      // oldest unacknowledged block
+    private int nextBlock = 1; // next block to put on the wire
+    private int highestSent;   // anything at or below this is a retransmission
+    private boolean awaitingOackAck;
+    private boolean throttled; // the window is paused by the bandwidth scheduler
+    private long lastHeard;    // when the client last sent anything
+
+    public ReadSession(InetSocketAddress peer, TransferOptions options, Path filePath, BlockCache cache,
+                       TransferMetrics metrics, BandwidthScheduler bandwidth) throws IOException {
+        super(peer, options, metrics, TransferMetrics.READ);
+        this.dataPacket = BufferPool.shared().acquire(DATA_PACKET_HEADER_LENGTH + blockSize);
+        this.windowSize = options.getWindowSize();
+        this.filePath = filePath;
+        try {
+            this.reader = new BlockReader(filePath, cache);
+            this.encoder = options.isNetascii() ? new Netascii.Encoder(reader::read, blockSize, windowSize) : null;
+            if (!needsPreparation()) {
+                prepare();
+            }
+            this.flow = bandwidth.open(peer.getAddress(), this::wakeUp);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected boolean needsPreparation() {
+        if (encoder != null) {
+            return options.getTransferSize() >= 0; // Encoding the whole file is the only way to know its length
+        }
+        return options.getResumeOffset() > 0;
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        if (encoder != null) {
+            if (options.getTransferSize() >= 0) {
+                long length = Netascii.encodedLength(reader::read, reader.size(), ByteBuffer.allocate(64 * 1024));
+                options.acceptTransferSize(length);
+                blockCount = blocksFor(length);
+            } else {
+                blockCount = UNKNOWN;
+            }
+            if (options.getResumeOffset() >= 0) {
+                options.acceptResume(0, ChunkIndex.MISSING);
+            }
+            return;
+        }
+        long length = reader.size();
+        if (options.getTransferSize() >= 0) {
+            options.acceptTransferSize(length);
+        }
+        startOffset = options.getResumeOffset() >= 0 ? resumeOffset() : 0;
+        blockCount = blocksFor(length - startOffset);
+    }
+
+    /**
+     * Blocks needed to send length bytes, counting the short (maybe empty) last one.
+     * Block numbers are ints here, so a count that does not fit one refuses the transfer.
+     */
+    private int blocksFor(long length) throws IOException {
+        try {
+            return Math.toIntExact(length / blockSize + 1);
+        } catch (ArithmeticException e) {
+            throw new IOException("File too large for " + blockSize + "-byte blocks");
+        }
+    }
+
+    private long resumeOffset() throws IOException {
+        long requested = options.getResumeOffset();
+        long offset = 0;
+        if (requested > 0 && requested <= reader.size()
+                && ChunkIndex.digestPrefix(filePath, requested) == options.getResumeDigest()) {
+            offset = requested;
+        }
+        options.acceptResume(offset, ChunkIndex.MISSING);
+        return offset;
+    }
+
+    @Override
+    public void start(long now) throws IOException {
+        lastHeard = now;
+        if (options.hasOptions()) {
+            awaitingOackAck = true;
+            sendOack();
+            armTimer(now);
+        } else {
+            sendWindow(now);
+        }
+    }
+
+    @Override
+    protected void onPacket(PacketReader packet, long now) throws IOException {
+        if (packet.opcode() != PacketCodec.OP_ACK) {
+            sendError(PacketCodec.ERROR_ILLEGAL_OPERATION, "Illegal TFTP operation.");
+            finish();
+            return;
+        }
+        lastHeard = now;
+        int receivedBlockNumber = packet.blockNumber();
+        if (awaitingOackAck) {
+            if (receivedBlockNumber == 0) {
+                awaitingOackAck = false;
+                ackReceived(now);
+                sendWindow(now);
+            }
+            return;
+        }
+        // Map the 16-bit ACK onto the blocks currently in flight; anything else is stale
+        int acked = PacketCodec.unwrapBlock(receivedBlockNumber, base, rolloverBase);
+        if (acked < 0 || acked >= nextBlock) {
+            stats.duplicate();
+            return;
+        }
+        base = acked + 1;
+        ackReceived(now);
+        if (base > blockCount) {
+            complete();
+            return;
+        }
+        // A partial ACK means the receiver lost something, resend from there
+        nextBlock = base;
+        sendWindow(now);
+    }
+
+    @Override
+    public void onWake(long now) throws IOException {
+        if (throttled) {
+            sendWindow(now); // Our turn at the shared limits
+        }
+    }
+
+    @Override
+    public void onTimeout(long now) throws IOException {
+        if (throttled) {
+            if (now - lastHeard > SILENCE_LIMIT_MILLIS) {
+                System.out.println("Giving up on " + peer + ", not heard from while throttled at block " + base);
+                finish();
+                return;
+            }
+            sendWindow(now);
+            return;
+        }
+        if (!timer.timedOut()) {
+            System.out.println("Giving up on " + peer + " after " + RetransmitTimer.MAX_RETRIES + " retries at block " + base);
+            finish();
+            return;
+        }
+        if (awaitingOackAck) {
+            stats.retransmitted();
+            sendOack();
+            armTimer(now);
+            return;
+        }
+        nextBlock = base;
+        sendWindow(now);
+    }
+
+    private void sendWindow(long now) throws IOException {
+        throttled = false;
+        // Clear the rest of the window at once: a pause mid-window looks like loss to the receiver
+        int count = Math.min(base + windowSize - 1, blockCount) + 1 - nextBlock;
+        long wait = count > 0 ? flow.acquire((long) count * (DATA_PACKET_HEADER_LENGTH + blockSize)) : 0;
+        if (wait != 0) {
+            // Out of bandwidth; when queued for a turn the deadline is only a fallback
+            throttled = true;
+            setDeadline(now + (wait == BandwidthScheduler.WAIT ? timer.getTimeout() : wait / 1_000_000 + 1));
+            return;
+        }
+        while (nextBlock < base + windowSize && nextBlock <= blockCount) {
+            sendBlock(nextBlock);
+            nextBlock++;
+        }
+        armTimer(now);
+    }
+
+    private void sendBlock(int blockNumber) throws IOException {
+        PacketCodec.beginData(dataPacket, PacketCodec.wireBlock(blockNumber, rolloverBase));
+        long start = System.nanoTime();
+        int length = encoder != null
+                ? encoder.read(blockNumber, dataPacket)
+                : reader.read(startOffset + (long) (blockNumber - 1) * blockSize, dataPacket, blockSize);
+        stats.diskRead(System.nanoTime() - start);
+        if (encoder != null && length < blockSize) {
+            blockCount = blockNumber; // Only a full block can have another after it
+        }
+        dataPacket.flip();
+        channel.send(dataPacket, peer);
+        if (blockNumber <= highestSent) {
+            stats.retransmitted();
+        } else {
+            highestSent = blockNumber;
+            stats.transferred(length);
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        if (flow != null) {
+            flow.close();
+        }
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close file for " + peer);
+        }
+        BufferPool.shared().release(dataPacket);
+    }
+}
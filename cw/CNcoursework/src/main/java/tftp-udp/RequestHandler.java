@@ -1,154 +1,158 @@
-package com.aa2796.tftp.server;
-
-import java.io.IOException;
-import java.io.FileOutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-
-public class RequestHandler {
-    private static final int MAX_DATA_LENGTH = 512;
-    private static final int DATA_PACKET_HEADER_LENGTH = 4;
-    private DatagramSocket socket;
-    private DatagramPacket requestPacket;
-
-    public RequestHandler(DatagramSocket socket, DatagramPacket requestPacket) {
-        this.socket = socket;
-        this.requestPacket = requestPacket;
-    }
-
-    public void handleRequest() throws IOException {
-        byte[] data = requestPacket.getData();
-        int opcode = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
-
-        switch (opcode) {
-            case 1: // RRQ
-                handleReadRequest();
-                break;
-            case 2: // WRQ
-                handleWriteRequest();
-                break;
-            case 3: // DATA
-                handleData();
-                break;
-            case 4: // ACK
-                handleAck();
-                break;
-            case 5: // ERROR
-                handleError();
-                break;
-            default:
-                sendError(4, "Illegal TFTP operation.");
-        }
-    }
-
-    private void handleReadRequest() throws IOException {
-        String filename = extractFilename();
-        Path filePath = Paths.get(filename);
-        if (!Files.exists(filePath)) {
-            sendError(1, "File not found");
-            return;
-        }
-        sendFile(filePath);
-    }
-
-    private void handleWriteRequest() throws IOException {
-        String filename = extractFilename();
-        Path filePath = Paths.get(filename);
-        if (Files.exists(filePath)) {
-            sendError(6, "File already exists");
-            return;
-        }
-        Files.createFile(filePath);
-        sendAck(0);
-    }
-
-    private void handleData() throws IOException {
-        byte[] data = requestPacket.getData();
-        int blockNumber = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
-        Path filePath = Paths.get(extractFilename());
-        try (FileOutputStream fos = new FileOutputStream(filePath.toFile(), true)) {
-            fos.write(data, DATA_PACKET_HEADER_LENGTH, requestPacket.getLength() - DATA_PACKET_HEADER_LENGTH);
-        }
-        sendAck(blockNumber);
-    }
-
-    private void handleAck() {
-
-    }
-
-    private void handleError() {
-        System.out.println("Received ERROR packet from client.");
-    }
-
-    private String extractFilename() {
-        byte[] data = requestPacket.getData();
-        int len = requestPacket.getLength();
-        int i = 2;
-        StringBuilder filename = new StringBuilder();
-        while (i < len && data[i] != 0) {
-            filename.append((char) data[i]);
-            i++;
-        }
-        return filename.toString();
-    }
-
-    private void sendFile(Path filePath) throws IOException {
-        byte[] fileData = Files.readAllBytes(filePath);
-        int blockNumber = 1;
-        for (int i = 0; i < fileData.length; i += MAX_DATA_LENGTH) {
-            int end = Math.min(fileData.length, i + MAX_DATA_LENGTH);
-            byte[] dataPacket = new byte[4 + (end - i)];
-            dataPacket[0] = 0;
-            dataPacket[1] = 3; // DATA opcode
-            dataPacket[2] = (byte) (blockNumber >> 8);
-            dataPacket[3] = (byte) (blockNumber & 0xff);
-            System.arraycopy(fileData, i, dataPacket, 4, end - i);
-
-            DatagramPacket packet = new DatagramPacket(dataPacket, dataPacket.length, requestPacket.getAddress(), requestPacket.getPort());
-            socket.send(packet);
-            if (!receiveAck(blockNumber)) {
-                break;
-            }
-            blockNumber++;
-        }
-    }
-
-    private boolean receiveAck(int blockNumber) {
-        byte[] ackBuffer = new byte[4];
-        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-        try {
-            socket.receive(ackPacket);
-            int receivedBlockNumber = ((ackBuffer[2] & 0xff) << 8) | (ackBuffer[3] & 0xff);
-            return receivedBlockNumber == blockNumber;
-        } catch (IOException e) {
-            System.out.println("Timeout or error receiving ACK for block " + blockNumber);
-            return false;
-        }
-    }
-
-    private void sendAck(int blockNumber) throws IOException {
-        byte[] ackPacket = new byte[4];
-        ackPacket[0] = 0;
-        ackPacket[1] = 4; // ACK opcode
-        ackPacket[2] = (byte) (blockNumber >> 8);
-        ackPacket[3] = (byte) (blockNumber & 0xff);
-        DatagramPacket packet = new DatagramPacket(ackPacket, ackPacket.length, requestPacket.getAddress(), requestPacket.getPort());
-        socket.send(packet);
-    }
-
-    private void sendError(int errorCode, String errorMessage) throws IOException {
-        byte[] messageBytes = errorMessage.getBytes();
-        byte[] errorPacket = new byte[5 + messageBytes.length];
-        errorPacket[0] = 0;
-        errorPacket[1] = 5; // ERROR opcode
-        errorPacket[2] = (byte) (errorCode >> 8);
-        errorPacket[3] = (byte) (errorCode & 0xff);
-        System.arraycopy(messageBytes, 0, errorPacket, 4, messageBytes.length);
-        errorPacket[errorPacket.length - 1] = 0;
-        DatagramPacket packet = new DatagramPacket(errorPacket, errorPacket.length, requestPacket.getAddress(), requestPacket.getPort());
-        socket.send(packet);
-    }
-}
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Handles one packet received on the listening socket. RRQ and WRQ start a new
+ * {@link TransferSession} on its own TID, everything else is answered with an ERROR.
+ * An RRQ with the multicast option joins the running {@link MulticastSession} for
+ * its file if there is one, and falls back to a unicast transfer if no group can be had.
+ */
+public class RequestHandler {
+    private DatagramChannel socket;
+    private PacketReader requestPacket;
+    private InetSocketAddress clientAddress;
+    private BlockCache blockCache;
+    private TransferMetrics metrics;
+    private MulticastGroups multicastGroups;
+    private BandwidthScheduler bandwidth;
+
+    public RequestHandler(DatagramChannel socket, ByteBuffer requestPacket, InetSocketAddress clientAddress, BlockCache blockCache,
+                          TransferMetrics metrics, MulticastGroups multicastGroups, BandwidthScheduler bandwidth) {
+        this.socket = socket;
+        this.requestPacket = new PacketReader().wrap(requestPacket);
+        this.clientAddress = clientAddress;
+        this.blockCache = blockCache;
+        this.metrics = metrics;
+        this.multicastGroups = multicastGroups;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Returns the session created for the request, or null if the packet was rejected.
+     */
+    public TransferSession handleRequest() throws IOException {
+        if (requestPacket.length() < 2) {
+            return null;
+        }
+
+        switch (requestPacket.opcode()) {
+            case PacketCodec.OP_RRQ:
+                return handleReadRequest();
+            case PacketCodec.OP_WRQ:
+                return handleWriteRequest();
+            case PacketCodec.OP_DATA:
+            case PacketCodec.OP_ACK:
+                sendError(PacketCodec.ERROR_UNKNOWN_TID, "Unknown transfer ID");
+                return null;
+            case PacketCodec.OP_ERROR:
+                handleError();
+                return null;
+            default:
+                sendError(PacketCodec.ERROR_ILLEGAL_OPERATION, "Illegal TFTP operation.");
+                return null;
+        }
+    }
+
+    private TransferSession handleReadRequest() throws IOException {
+        TransferOptions options = TransferOptions.parse(requestPacket, clientAddress.getAddress());
+        Path filePath = Paths.get(options.getFilename());
+        if (!Files.exists(filePath)) {
+            sendError(PacketCodec.ERROR_FILE_NOT_FOUND, "File not found");
+            return null;
+        }
+        // Block numbers are ints, so refuse a file that needs more blocks than that before it starts
+        if (!options.isNetascii() && Files.size(filePath) / options.getBlockSize() >= Integer.MAX_VALUE) {
+            sendError(PacketCodec.ERROR_NOT_DEFINED, "File too large for the block size");
+            return null;
+        }
+        if (options.isMulticast() && !options.isNetascii() && Files.size(filePath) / options.getBlockSize() < MulticastGroups.MAX_BLOCKS) {
+            String key = MulticastGroups.key(filePath, options);
+            MulticastSession running = multicastGroups.find(key);
+            if (running != null) {
+                running.requestJoin(clientAddress, options);
+                return null;
+            }
+            InetSocketAddress group = multicastGroups.allocate();
+            if (group != null) {
+                try {
+                    return new MulticastSession(clientAddress, options, filePath, group, multicastGroups, key, blockCache, metrics, bandwidth);
+                } catch (IOException | RuntimeException e) {
+                    multicastGroups.release(group); // A session only gives its group back once it is built
+                    throw e;
+                }
+            }
+        }
+        return new ReadSession(clientAddress, options, filePath, blockCache, metrics, bandwidth);
+    }
+
+    private TransferSession handleWriteRequest() throws IOException {
+        TransferOptions options = TransferOptions.parse(requestPacket, clientAddress.getAddress());
+        Path filePath = Paths.get(options.getFilename());
+        if (ChunkIndex.isSidecar(filePath)) {
+            sendError(PacketCodec.ERROR_ACCESS_VIOLATION, "Reserved file name");
+            return null;
+        }
+        // Claimed before the checks below, so no other upload can finish the file in between
+        UploadClaim claim = UploadClaim.claim(filePath);
+        if (claim == null) {
+            sendError(PacketCodec.ERROR_FILE_EXISTS, "File is being uploaded");
+            return null;
+        }
+        TransferSession session = null;
+        try {
+            session = startWrite(options, filePath, claim);
+            return session;
+        } finally {
+            if (session == null) {
+                claim.close(); // Refused; a session lets the claim go once the file is closed
+            }
+        }
+    }
+
+    private TransferSession startWrite(TransferOptions options, Path filePath, UploadClaim claim) throws IOException {
+        // An unfinished upload may be resumed or replaced, a finished file is never overwritten.
+        // Clients cannot write sidecars, so only an upload of ours can look unfinished.
+        if (Files.exists(filePath) && !ChunkIndex.isPartial(filePath)) {
+            sendError(PacketCodec.ERROR_FILE_EXISTS, "File already exists");
+            return null;
+        }
+        // With tsize known, turn away uploads that cannot fit before any data moves
+        long transferSize = options.getTransferSize();
+        if (transferSize > WriteSession.MAX_UPLOAD_BYTES) {
+            sendError(PacketCodec.ERROR_DISK_FULL, "File exceeds the upload limit of " + WriteSession.MAX_UPLOAD_BYTES + " bytes");
+            return null;
+        }
+        if (transferSize > 0) {
+            long held = Files.exists(filePath) ? Files.size(filePath) : 0;
+            Path directory = filePath.toAbsolutePath().getParent();
+            if (transferSize - held > Files.getFileStore(directory).getUsableSpace()) {
+                sendError(PacketCodec.ERROR_DISK_FULL, "Not enough disk space");
+                return null;
+            }
+        }
+        return new WriteSession(clientAddress, options, filePath, claim, metrics);
+    }
+
+    private void handleError() {
+        System.out.println("Received ERROR packet from client " + clientAddress);
+    }
+
+    private void sendError(int errorCode, String errorMessage) throws IOException {
+        metrics.sessionRejected();
+        metrics.errorSent(errorCode);
+        // Rejections are rare, a throwaway buffer keeps the handler free of shared state
+        ByteBuffer packet = ByteBuffer.allocate(TransferSession.MAX_REQUEST_LENGTH);
+        socket.send(PacketCodec.encodeError(packet, errorCode, errorMessage), clientAddress);
+    }
+}
@@ -0,0 +1,98 @@
+package com.aa2796.tftp.server;
+
+/**
+ * Counters of one transfer. Each session is driven by a single thread, so the
+ * fields are plain volatile writes; every update is also added to the
+ * server-wide {@link TransferMetrics}.
+ */
+public class SessionMetrics {
+    private final TransferMetrics server;
+    private final String peer;
+    private final String filename;
+    private final String direction;
+    private final boolean sending;
+    private final long startNanos = System.nanoTime();
+    private volatile long bytes;
+    private volatile long retransmits;
+    private volatile long duplicates;
+
+    SessionMetrics(TransferMetrics server, String peer, String filename, String direction) {
+        this.server = server;
+        this.peer = peer;
+        this.filename = filename;
+        this.direction = direction;
+        this.sending = TransferMetrics.READ.equals(direction);
+    }
+
+    /**
+     * Counts payload bytes sent (downloads) or received (uploads).
+     */
+    public void transferred(int count) {
+        bytes += count;
+        (sending ? server.bytesSent : server.bytesReceived).add(count);
+    }
+
+    public void retransmitted() {
+        retransmits++;
+        server.retransmits.increment();
+    }
+
+    /**
+     * A duplicate or stale ACK on a download, or an out-of-order block on an upload.
+     */
+    public void duplicate() {
+        duplicates++;
+        (sending ? server.duplicateAcks : server.outOfOrderBlocks).increment();
+    }
+
+    public void ackRtt(long micros) {
+        if (micros >= 0) {
+            server.ackRtt.record(micros);
+        }
+    }
+
+    public void diskRead(long nanos) {
+        server.diskRead.record(nanos / 1000);
+    }
+
+    public void diskWrite(long nanos) {
+        server.diskWrite.record(nanos / 1000);
+    }
+
+    public void errorSent(int errorCode) {
+        server.errorSent(errorCode);
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getRetransmits() {
+        return retransmits;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public long getBytesPerSecond() {
+        long elapsed = Math.max(1, getElapsedNanos());
+        return (long) (bytes * 1e9 / elapsed);
+    }
+}
@@ -1,41 +1,169 @@
-package com.aa2796.tftp.server;
-
-
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-
-public class TCPServer {
-    private int port;
-    private ServerSocket serverSocket;
-
-    public TCPServer(int port) {
-        this.port = port;
-    }
-
-    public void start() {
-        try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started and listening on port " + port);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected from " + clientSocket.getInetAddress().getHostAddress());
-                com.aa2796.tftp.server.ClientHandler clientThread = new com.aa2796.tftp.server.ClientHandler(clientSocket);
-                clientThread.start();
-            }
-        } catch (IOException e) {
-            System.out.println("Error when attempting to listen on port " + port + " or listening for a connection");
-            System.out.println(e.getMessage());
-        }
-    }
-
-    public static void main(String[] args) {
-        int port = 8888;
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        }
-        TCPServer server = new TCPServer(port);
-        server.start();
-    }
-}
\ No newline at end of file
+package com.aa2796.tftp.server;
+
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class TCPServer {
+    /**
+     * How accepted connections are run. PLATFORM is one OS thread per connection,
+     * VIRTUAL is one virtual thread per connection and POOLED is a fixed set of
+     * workers with a bounded queue that turns connections away once it is full.
+     */
+    public enum ExecutionMode { PLATFORM, VIRTUAL, POOLED }
+
+    private int port;
+    private ExecutionMode mode;
+    private int workers;
+    private int backlog;
+    private ServerSocketChannel serverSocket;
+    private ExecutorService executor;
+    private MetricsEndpoint metricsEndpoint;
+    private volatile boolean stopping;
+    private final TransferMetrics metrics = new TransferMetrics("tcp");
+    private final BandwidthScheduler bandwidth = new BandwidthScheduler("tcp");
+
+    public TCPServer(int port) {
+        this(port, ExecutionMode.PLATFORM, Runtime.getRuntime().availableProcessors() * 2, 50);
+    }
+
+    public TCPServer(int port, ExecutionMode mode, int workers, int backlog) {
+        this.port = port;
+        this.mode = mode;
+        this.workers = workers;
+        this.backlog = backlog;
+    }
+
+    public void start() {
+        try {
+            executor = newExecutor();
+            // A channel-backed socket lets ClientHandler use zero-copy transferTo/transferFrom
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port), backlog);
+            System.out.println("Server started and listening on port " + port + " (" + mode + " mode)");
+            metrics.register("TCPServer", port);
+            bandwidth.register("TCPServer", port);
+            int metricsPort = Integer.getInteger("tcp.metricsPort", -1);
+            if (metricsPort >= 0) {
+                metricsEndpoint = MetricsEndpoint.start(metricsPort, metrics);
+            }
+
+            while (true) {
+                SocketChannel clientSocket = serverSocket.accept();
+                String clientAddress = clientSocket.socket().getInetAddress().getHostAddress();
+                System.out.println("New client connected from " + clientAddress);
+                try {
+                    executor.execute(new ClientHandler(clientSocket, ClientHandler.DEFAULT_FRAME_SIZE, metrics, bandwidth));
+                } catch (RejectedExecutionException e) {
+                    // The pool and its queue are full: say so rather than leave the client waiting
+                    System.out.println("Server busy, refusing " + clientAddress);
+                    metrics.sessionRejected();
+                    ClientHandler.refuse(clientSocket, "Server busy, try again later");
+                }
+            }
+        } catch (IOException e) {
+            if (!stopping) {
+                System.out.println("Error when attempting to listen on port " + port + " or listening for a connection");
+                System.out.println(e.getMessage());
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops accepting connections and takes down the metrics endpoint and MBeans.
+     * Connections already running finish on their own. Safe to call twice.
+     */
+    public synchronized void shutdown() {
+        if (stopping) {
+            return;
+        }
+        stopping = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close(); // Ends the accept loop in start
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close the listening socket.");
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        metrics.unregister();
+        bandwidth.unregister();
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    public BandwidthScheduler getBandwidth() {
+        return bandwidth;
+    }
+
+    private ExecutorService newExecutor() {
+        switch (mode) {
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                System.out.println("Virtual threads are not available on this JVM, using platform threads.");
+                mode = ExecutionMode.PLATFORM;
+                return Executors.newCachedThreadPool();
+            case POOLED:
+                // Queue capacity doubles as admission control: anything beyond it is refused
+                return new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(backlog), new ThreadPoolExecutor.AbortPolicy());
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Looked up reflectively because the module targets Java 19, where virtual
+     * threads are still a preview API. Returns null if they cannot be used.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = 8888;
+        ExecutionMode mode = ExecutionMode.PLATFORM;
+        int workers = Runtime.getRuntime().availableProcessors() * 2;
+        int backlog = 50;
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            mode = ExecutionMode.valueOf(args[1].toUpperCase());
+        }
+        if (args.length > 2) {
+            workers = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            backlog = Integer.parseInt(args[3]);
+        }
+        TCPServer server = new TCPServer(port, mode, workers, backlog);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+        server.start();
+    }
+}
@@ -0,0 +1,160 @@
+package com.aa2796.tftp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * UDP TFTP server. Requests arrive on the well-known port and every transfer is
+ * handed to one of a small pool of {@link EventLoop}s, so no transfer ever
+ * blocks another and no thread is created per client.
+ * <p>
+ * With -Dtftp.reusePort=true every loop binds its own listener to the port with
+ * SO_REUSEPORT. The kernel then spreads clients across the loops, and each loop
+ * keeps the sessions it accepts, so requests are taken in parallel and a session
+ * never changes thread. Multicast groups are split between the loops.
+ */
+public class TFTPServer {
+    static final boolean REUSE_PORT = Boolean.getBoolean("tftp.reusePort");
+
+    private int port;
+    private int loopCount;
+    private DatagramChannel[] listeners;
+    private boolean sharded;
+    private EventLoop[] loops;
+    private int nextLoop;
+    private BlockCache blockCache;
+    private final TransferMetrics metrics = new TransferMetrics("tftp");
+    private final BandwidthScheduler bandwidth = new BandwidthScheduler("tftp");
+    private MetricsEndpoint metricsEndpoint;
+
+    public TFTPServer(int port, int loopCount) {
+        this.port = port;
+        this.loopCount = loopCount;
+    }
+
+    public void start() {
+        try {
+            if (BlockCache.DEFAULT_CAPACITY_BYTES > 0) {
+                blockCache = new BlockCache(BlockCache.DEFAULT_CAPACITY_BYTES);
+                metrics.setBlockCache(blockCache);
+            }
+            DatagramChannel first = DatagramChannel.open();
+            sharded = REUSE_PORT && loopCount > 1;
+            if (sharded && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.out.println("SO_REUSEPORT is not supported here, using one listener");
+                sharded = false;
+            }
+            listeners = new DatagramChannel[sharded ? loopCount : 1];
+            listeners[0] = first;
+            if (sharded) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port));
+            // Port 0 asks for an ephemeral port, remember the one we got
+            port = ((InetSocketAddress) first.getLocalAddress()).getPort();
+            for (int i = 1; i < listeners.length; i++) {
+                listeners[i] = DatagramChannel.open();
+                listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                listeners[i].bind(new InetSocketAddress(port));
+            }
+
+            loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop(this);
+            }
+            MulticastGroups multicastGroups = new MulticastGroups();
+            for (int i = 0; i < listeners.length; i++) {
+                loops[i].listen(listeners[i], multicastGroups);
+            }
+            for (int i = 0; i < loopCount; i++) {
+                new Thread(loops[i], "tftp-loop-" + i).start();
+            }
+            System.out.println("TFTP server listening on port " + port + " with " + loopCount + " event loop(s)"
+                    + (sharded ? ", one listener each" : ""));
+            metrics.register("TFTPServer", port);
+            bandwidth.register("TFTPServer", port);
+            int metricsPort = Integer.getInteger("tftp.metricsPort", -1);
+            if (metricsPort >= 0) {
+                metricsEndpoint = MetricsEndpoint.start(metricsPort, metrics);
+            }
+        } catch (IOException e) {
+            System.out.println("Error when attempting to listen on port " + port);
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Assigns a new session to an event loop, round robin. Only called from a listening loop.
+     * Multicast sessions stay on the listening loop that started them.
+     * With sharded listeners every session stays on the loop that accepted it.
+     */
+    void dispatch(EventLoop listening, TransferSession session) {
+        if (sharded || session instanceof MulticastSession) {
+            listening.addSession(session);
+            return;
+        }
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        loop.addSession(session);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Cache shared by all read sessions, or null when disabled with -Dtftp.cacheBytes=0.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Egress limits shared by every read session.
+     */
+    public BandwidthScheduler getBandwidth() {
+        return bandwidth;
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        for (DatagramChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close the listening socket.");
+            }
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        metrics.unregister();
+        bandwidth.unregister();
+        System.out.println(metrics);
+        if (blockCache != null) {
+            System.out.println(blockCache);
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = 69;
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            loopCount = Integer.parseInt(args[1]);
+        }
+        TFTPServer server = new TFTPServer(port, loopCount);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+    }
+}
@@ -0,0 +1,63 @@
+package com.aa2796.tftp.server;
+
+/**
+ * Byte-rate limit for {@link BandwidthScheduler}. Tokens accrue at the rate up to
+ * a burst of BURST_MILLIS worth of traffic, but never less than one TCP slice. A
+ * request larger than the burst goes through once the bucket is full and leaves
+ * it in debt, which the next requests then wait out. A rate of 0 means unlimited.
+ * Not thread-safe, the scheduler guards every bucket with its own lock.
+ */
+final class TokenBucket {
+    static final long BURST_MILLIS = 50;
+    static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private long rate; // bytes per second
+    private double tokens;
+    private long updated = System.nanoTime();
+
+    TokenBucket(long rate) {
+        this.rate = Math.max(0, rate);
+        this.tokens = capacity();
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    void setRate(long rate, long now) {
+        refill(now);
+        this.rate = Math.max(0, rate);
+        tokens = Math.min(tokens, capacity());
+    }
+
+    private long capacity() {
+        return Math.max(rate * BURST_MILLIS / 1000, MIN_BURST_BYTES);
+    }
+
+    void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(capacity(), tokens + (now - updated) * (rate / 1e9));
+        }
+        updated = now;
+    }
+
+    boolean canTake(long bytes) {
+        return rate == 0 || tokens >= Math.min(bytes, capacity());
+    }
+
+    void take(long bytes) {
+        if (rate > 0) {
+            tokens -= bytes;
+        }
+    }
+
+    /**
+     * Nanoseconds until {@link #canTake} will be true, 0 if it already is.
+     */
+    long nanosUntil(long bytes) {
+        if (canTake(bytes)) {
+            return 0;
+        }
+        return (long) Math.ceil((Math.min(bytes, capacity()) - tokens) * 1e9 / rate);
+    }
+}
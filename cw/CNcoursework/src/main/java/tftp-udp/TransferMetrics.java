@@ -0,0 +1,305 @@
+package com.aa2796.tftp.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide transfer metrics. Counters are striped LongAdders and latencies
+ * go into {@link LatencyHistogram}s, so recording from several event loops costs
+ * no locks or allocation. Published as an MXBean and as plain text through
+ * {@link MetricsEndpoint}; every metric name starts with the given prefix.
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+    public static final String READ = "read";
+    public static final String WRITE = "write";
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final String prefix;
+    final LongAdder sessionsStarted = new LongAdder();
+    final LongAdder sessionsCompleted = new LongAdder();
+    final LongAdder sessionsFailed = new LongAdder();
+    final LongAdder sessionsRejected = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder retransmits = new LongAdder();
+    final LongAdder duplicateAcks = new LongAdder();
+    final LongAdder outOfOrderBlocks = new LongAdder();
+    private final Map<Integer, LongAdder> errorsSent = new ConcurrentHashMap<>();
+    final LatencyHistogram ackRtt = new LatencyHistogram();
+    final LatencyHistogram diskRead = new LatencyHistogram();
+    final LatencyHistogram diskWrite = new LatencyHistogram();
+    private final LatencyHistogram sessionThroughput = new LatencyHistogram();
+    private final Set<SessionMetrics> active = ConcurrentHashMap.newKeySet();
+    private volatile BlockCache blockCache; // null if the server has none
+    private ObjectName objectName;
+
+    public TransferMetrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Starts tracking a new transfer. direction is {@link #READ} (server sends) or {@link #WRITE}.
+     */
+    public SessionMetrics sessionStarted(String peer, String filename, String direction) {
+        SessionMetrics session = new SessionMetrics(this, peer, filename, direction);
+        sessionsStarted.increment();
+        active.add(session);
+        return session;
+    }
+
+    public void sessionEnded(SessionMetrics session, boolean completed) {
+        if (!active.remove(session)) {
+            return;
+        }
+        if (completed) {
+            sessionsCompleted.increment();
+            sessionThroughput.record(session.getBytesPerSecond());
+        } else {
+            sessionsFailed.increment();
+        }
+    }
+
+    /**
+     * A request or connection turned away before a transfer started.
+     */
+    public void sessionRejected() {
+        sessionsRejected.increment();
+    }
+
+    /**
+     * Reports the counters of the server's block cache along with these metrics.
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    public void errorSent(int errorCode) {
+        errorsSent.computeIfAbsent(errorCode, code -> new LongAdder()).increment();
+    }
+
+    /**
+     * Registers the MXBean as com.aa2796.tftp:type=&lt;type&gt;,port=&lt;port&gt;.
+     */
+    public void register(String type, int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.aa2796.tftp:type=" + type + ",port=" + port);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            System.out.println("Could not unregister metrics MBean: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     */
+    public void scrape(StringBuilder out) {
+        gauge(out, "sessions_active", "Transfers in progress", active.size());
+        counter(out, "sessions_started_total", "Transfers started", sessionsStarted.sum());
+        counter(out, "sessions_completed_total", "Transfers completed", sessionsCompleted.sum());
+        counter(out, "sessions_failed_total", "Transfers aborted or timed out", sessionsFailed.sum());
+        counter(out, "sessions_rejected_total", "Requests or connections refused", sessionsRejected.sum());
+        counter(out, "bytes_sent_total", "Payload bytes sent", bytesSent.sum());
+        counter(out, "bytes_received_total", "Payload bytes received", bytesReceived.sum());
+        counter(out, "retransmits_total", "Packets sent again after a timeout or partial ACK", retransmits.sum());
+        counter(out, "duplicate_acks_total", "Duplicate or stale ACKs received", duplicateAcks.sum());
+        counter(out, "out_of_order_blocks_total", "DATA blocks received out of order", outOfOrderBlocks.sum());
+        if (blockCache != null) {
+            counter(out, "cache_hits_total", "Block reads served from the cache", blockCache.getHits());
+            counter(out, "cache_misses_total", "Block reads that went to the disk", blockCache.getMisses());
+            counter(out, "cache_evictions_total", "Chunks dropped from the cache to make room", blockCache.getEvictions());
+        }
+
+        header(out, "errors_sent_total", "ERROR packets sent by error code", "counter");
+        for (Map.Entry<String, Long> entry : getErrorsSent().entrySet()) {
+            out.append(prefix).append("_errors_sent_total{code=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+
+        summary(out, "ack_rtt_microseconds", "Round trip from a send to the ACK that covers it", ackRtt);
+        summary(out, "disk_read_microseconds", "Time to read one block", diskRead);
+        summary(out, "disk_write_microseconds", "Time to hand one block to the file", diskWrite);
+        summary(out, "session_bytes_per_second", "Average rate of completed transfers", sessionThroughput);
+
+        header(out, "active_session_bytes_per_second", "Current rate of each active transfer", "gauge");
+        for (SessionMetrics session : active) {
+            out.append(prefix).append("_active_session_bytes_per_second{direction=\"").append(session.getDirection())
+                    .append("\",peer=\"").append(escape(session.getPeer()))
+                    .append("\",file=\"").append(escape(session.getFilename()))
+                    .append("\"} ").append(session.getBytesPerSecond()).append('\n');
+        }
+    }
+
+    private void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(prefix).append('_').append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(prefix).append('_').append(name).append(' ').append(type).append('\n');
+    }
+
+    private void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(prefix).append('_').append(name).append(' ').append(value).append('\n');
+    }
+
+    private void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(prefix).append('_').append(name).append(' ').append(value).append('\n');
+    }
+
+    private void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, help, "summary");
+        for (double percentile : PERCENTILES) {
+            out.append(prefix).append('_').append(name).append("{quantile=\"").append(percentile).append("\"} ")
+                    .append(histogram.percentile(percentile)).append('\n');
+        }
+        out.append(prefix).append('_').append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static Map<String, Long> percentiles(LatencyHistogram histogram) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            values.put(PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]));
+        }
+        values.put("max", histogram.getMax());
+        return values;
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return active.size();
+    }
+
+    @Override
+    public long getSessionsStarted() {
+        return sessionsStarted.sum();
+    }
+
+    @Override
+    public long getSessionsCompleted() {
+        return sessionsCompleted.sum();
+    }
+
+    @Override
+    public long getSessionsFailed() {
+        return sessionsFailed.sum();
+    }
+
+    @Override
+    public long getSessionsRejected() {
+        return sessionsRejected.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    @Override
+    public long getOutOfOrderBlocks() {
+        return outOfOrderBlocks.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        BlockCache cache = blockCache;
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        BlockCache cache = blockCache;
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        BlockCache cache = blockCache;
+        return cache != null ? cache.getEvictions() : 0;
+    }
+
+    @Override
+    public Map<String, Long> getErrorsSent() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        errorsSent.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> values.put(Integer.toString(entry.getKey()), entry.getValue().sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getAckRttMicros() {
+        return percentiles(ackRtt);
+    }
+
+    @Override
+    public Map<String, Long> getDiskReadMicros() {
+        return percentiles(diskRead);
+    }
+
+    @Override
+    public Map<String, Long> getDiskWriteMicros() {
+        return percentiles(diskWrite);
+    }
+
+    @Override
+    public Map<String, Long> getSessionBytesPerSecond() {
+        return percentiles(sessionThroughput);
+    }
+
+    @Override
+    public List<String> getSessions() {
+        List<String> sessions = new ArrayList<>();
+        for (SessionMetrics session : active) {
+            sessions.add(session.getDirection() + " " + session.getPeer() + " " + session.getFilename()
+                    + " bytes=" + session.getBytes() + " bytesPerSecond=" + session.getBytesPerSecond()
+                    + " retransmits=" + session.getRetransmits() + " duplicates=" + session.getDuplicates());
+        }
+        return sessions;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferMetrics[started=" + getSessionsStarted() + ", completed=" + getSessionsCompleted()
+                + ", failed=" + getSessionsFailed() + ", retransmits=" + getRetransmits() + "]";
+    }
+}
@@ -0,0 +1,53 @@
+package com.aa2796.tftp.server;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of {@link TransferMetrics}. Latency maps hold p50, p90, p99, p999 and max in microseconds.
+ */
+public interface TransferMetricsMXBean {
+    long getActiveSessions();
+
+    long getSessionsStarted();
+
+    long getSessionsCompleted();
+
+    long getSessionsFailed();
+
+    long getSessionsRejected();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getDuplicateAcks();
+
+    long getOutOfOrderBlocks();
+
+    /**
+     * Block cache lookups served from memory; the cache counters are 0 when the cache is disabled.
+     */
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    Map<String, Long> getErrorsSent();
+
+    Map<String, Long> getAckRttMicros();
+
+    Map<String, Long> getDiskReadMicros();
+
+    Map<String, Long> getDiskWriteMicros();
+
+    Map<String, Long> getSessionBytesPerSecond();
+
+    /**
+     * One line per active session: direction, peer, file, bytes and current bytes/s.
+     */
+    List<String> getSessions();
+}
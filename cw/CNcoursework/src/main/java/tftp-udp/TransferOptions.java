@@ -0,0 +1,205 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.Netascii;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Filename, mode and the options negotiated for one RRQ/WRQ. Unknown options
+ * and out-of-range values are silently dropped, as required by RFC 2347.
+ * tsize (RFC 2349) is answered by the sessions, which know the file size.
+ * <p>
+ * "resume" and "resumecrc" are our own extension for restarting an interrupted
+ * transfer part way through. On an RRQ the client sends how many bytes it
+ * already holds and their CRC32C. On a WRQ it sends resume=0 and the server
+ * answers with the bytes it holds and their CRC32C. In both cases the OACK
+ * carries the offset that block 1 starts at, or 0 to start over.
+ * <p>
+ * "multicast" (RFC 2090) asks to receive an RRQ through a shared multicast
+ * group. It is only acknowledged when a {@link MulticastSession} takes the client in.
+ * <p>
+ * "rollover" picks what the 16-bit block number wraps to after 65535, 0 or 1, for
+ * files of more than 65535 blocks. Clients that do not send it are assumed to wrap
+ * to tftp.rollover, 0 unless set.
+ */
+public class TransferOptions {
+    public static final int DEFAULT_WINDOW_SIZE = 1;
+    public static final int MAX_WINDOW_SIZE = 64;
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+    // Largest block that fits an Ethernet frame: 1500 MTU - 20 IP - 8 UDP - 4 TFTP header
+    public static final int MTU_BLOCK_SIZE = Integer.getInteger("tftp.mtuBlockSize", 1468);
+    public static final int DEFAULT_ROLLOVER_BASE = Integer.getInteger("tftp.rollover", 0) == 1 ? 1 : 0;
+
+    private String filename;
+    private String mode;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int maxBlockSize = MTU_BLOCK_SIZE;
+    private long transferSize = -1; // tsize from the request, -1 if absent
+    private long resumeOffset = -1; // -1 when the client did not ask to resume
+    private long resumeDigest = ChunkIndex.MISSING;
+    private boolean multicast;
+    private int rolloverBase = DEFAULT_ROLLOVER_BASE;
+    private final Map<String, String> acknowledged = new LinkedHashMap<>();
+
+    /**
+     * Parses the request body that follows the opcode: filename, mode, then option/value pairs.
+     * Loopback clients may use the full 64 KB block, everyone else is capped to one MTU to avoid IP fragmentation.
+     */
+    public static TransferOptions parse(PacketReader request, InetAddress client) {
+        TransferOptions options = new TransferOptions();
+        if (client.isLoopbackAddress()) {
+            options.maxBlockSize = MAX_BLOCK_SIZE;
+        }
+        String filename = request.readString();
+        String mode = request.readString();
+        options.filename = filename != null ? filename : "";
+        options.mode = mode != null ? mode.toLowerCase() : "";
+        while (request.nextOption()) {
+            options.negotiate(request);
+        }
+        return options;
+    }
+
+    private void negotiate(PacketReader option) {
+        if (option.optionIs("windowsize")) {
+            long requested = option.optionValue();
+            if (requested >= 1) {
+                windowSize = (int) Math.min(requested, MAX_WINDOW_SIZE);
+                acknowledged.put("windowsize", Integer.toString(windowSize));
+            }
+        } else if (option.optionIs("blksize")) {
+            long requested = option.optionValue();
+            if (requested >= MIN_BLOCK_SIZE) {
+                blockSize = (int) Math.min(requested, maxBlockSize);
+                acknowledged.put("blksize", Integer.toString(blockSize));
+            }
+        } else if (option.optionIs("tsize")) {
+            transferSize = option.optionValue();
+        } else if (option.optionIs("resume")) {
+            resumeOffset = Math.max(-1, option.optionValue());
+        } else if (option.optionIs("resumecrc")) {
+            resumeDigest = option.optionValue();
+        } else if (option.optionIs("multicast")) {
+            multicast = true; // The value is always empty in a request
+        } else if (option.optionIs("rollover")) {
+            long requested = option.optionValue();
+            if (requested == 0 || requested == 1) {
+                rolloverBase = (int) requested;
+                acknowledged.put("rollover", Integer.toString(rolloverBase));
+            }
+        }
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * True for netascii, false for octet. Any other mode is served as octet.
+     */
+    public boolean isNetascii() {
+        return Netascii.isNetascii(mode);
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Block number the wire wraps to after 65535, 0 or 1.
+     */
+    public int getRolloverBase() {
+        return rolloverBase;
+    }
+
+    /**
+     * tsize sent by the client: 0 on an RRQ asking for the size, the upload size
+     * on a WRQ, or -1 if the option was not sent.
+     */
+    public long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * Puts tsize in the OACK: the file size on an RRQ, the accepted size on a WRQ.
+     */
+    public void acceptTransferSize(long size) {
+        acknowledged.put("tsize", Long.toString(size));
+    }
+
+    /**
+     * Offset the client asked to resume from, or -1 if it did not ask.
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * CRC32C the client sent for the bytes before the resume offset, or -1 if none.
+     */
+    public long getResumeDigest() {
+        return resumeDigest;
+    }
+
+    /**
+     * Answers a resume request: block 1 starts at offset. digest is sent along
+     * for the client to check, unless it is {@link ChunkIndex#MISSING}.
+     */
+    public void acceptResume(long offset, long digest) {
+        acknowledged.put("resume", Long.toString(offset));
+        if (digest != ChunkIndex.MISSING) {
+            acknowledged.put("resumecrc", Long.toString(digest));
+        }
+    }
+
+    /**
+     * True if the client sent the multicast option.
+     */
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    /**
+     * Answers the multicast option with "address,port,mc": the group that DATA is
+     * sent to, and 1 if this client is the master client that ACKs it, 0 otherwise.
+     */
+    public void acceptMulticast(InetSocketAddress group, boolean master) {
+        acknowledged.put("multicast", group.getAddress().getHostAddress() + "," + group.getPort() + "," + (master ? 1 : 0));
+    }
+
+    /**
+     * True if at least one option was accepted, meaning the transfer starts with an OACK.
+     */
+    public boolean hasOptions() {
+        return !acknowledged.isEmpty();
+    }
+
+    /**
+     * Encodes the OACK for the accepted options into dst, ready to send.
+     */
+    public ByteBuffer writeOack(ByteBuffer dst) {
+        PacketCodec.beginOack(dst);
+        for (Map.Entry<String, String> option : acknowledged.entrySet()) {
+            PacketCodec.putOption(dst, option.getKey(), option.getValue());
+        }
+        return dst.flip();
+    }
+}
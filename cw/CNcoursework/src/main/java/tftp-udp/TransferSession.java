@@ -0,0 +1,298 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.common.RetransmitTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * State machine for a single RRQ or WRQ transfer. Each session owns its own
+ * ephemeral DatagramChannel (the server side TID), so packets from different
+ * clients can never be mixed up. Sessions are driven by an {@link EventLoop}
+ * and must never block. Setup that has to read a whole file, such as checking a
+ * resume point, goes in {@link #prepare}, which runs on a background thread
+ * before the session starts.
+ */
+public abstract class TransferSession {
+    protected static final int DATA_PACKET_HEADER_LENGTH = 4;
+    // RFC 2347 limits RRQ/WRQ packets, options included, to 512 bytes
+    static final int MAX_REQUEST_LENGTH = 512;
+
+    protected final DatagramChannel channel;
+    protected final InetSocketAddress peer;
+    protected final TransferOptions options;
+    protected final int blockSize;
+    protected final int rolloverBase; // what block numbers wrap to after 65535
+    // Longest a session held back by the bandwidth scheduler goes without hearing from its peer
+    protected static final long SILENCE_LIMIT_MILLIS = RetransmitTimer.MAX_RETRIES * RetransmitTimer.MAX_TIMEOUT_MILLIS;
+
+    protected final RetransmitTimer timer = new RetransmitTimer();
+    protected final SessionMetrics stats;
+    private final TransferMetrics metrics;
+    private final ByteBuffer receiveBuffer;
+    private final ByteBuffer controlBuffer; // ACK, OACK and ERROR packets
+    private final PacketReader reader = new PacketReader();
+    private volatile EventLoop loop; // read by other threads in wakeUp
+    private long deadline = Long.MAX_VALUE;
+    private boolean finished;
+    private boolean closed;
+    private boolean completed;
+    private boolean preparing;
+    private Exception preparationFailure; // handed back to the loop through its wake queue
+
+    protected TransferSession(InetSocketAddress peer, TransferOptions options, TransferMetrics metrics, String direction) throws IOException {
+        this.peer = peer;
+        this.options = options;
+        this.metrics = metrics;
+        this.blockSize = options.getBlockSize();
+        this.rolloverBase = options.getRolloverBase();
+        this.receiveBuffer = BufferPool.shared().acquire(blockSize + DATA_PACKET_HEADER_LENGTH);
+        this.controlBuffer = BufferPool.shared().acquire(MAX_REQUEST_LENGTH);
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(0));
+        // Room for a full window of large blocks, the kernel clamps this to its own limit
+        int windowBytes = 2 * options.getWindowSize() * (blockSize + DATA_PACKET_HEADER_LENGTH);
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(windowBytes, channel.getOption(StandardSocketOptions.SO_RCVBUF)));
+        this.channel.setOption(StandardSocketOptions.SO_SNDBUF, Math.max(windowBytes, channel.getOption(StandardSocketOptions.SO_SNDBUF)));
+        this.channel.configureBlocking(false);
+        this.stats = metrics.sessionStarted(peer.toString(), options.getFilename(), direction);
+    }
+
+    /**
+     * Sends the first packet of the transfer (OACK, DATA 1 or ACK 0).
+     */
+    public abstract void start(long now) throws IOException;
+
+    /**
+     * Handles one packet received from the peer. The reader is only valid until this method returns.
+     */
+    protected abstract void onPacket(PacketReader packet, long now) throws IOException;
+
+    /**
+     * Called by the event loop once the session deadline has passed.
+     */
+    public abstract void onTimeout(long now) throws IOException;
+
+    /**
+     * Called on the event loop after another thread asked for it with {@link #wakeUp()}.
+     */
+    public void onWake(long now) throws IOException {
+    }
+
+    /**
+     * True if {@link #prepare} has disk work to do before the session can start.
+     */
+    protected boolean needsPreparation() {
+        return false;
+    }
+
+    /**
+     * Setup that reads the disk. Runs on a "tftp-prepare" thread, so a large file
+     * never holds up the loop, then {@link #start} follows on the loop. Nothing else
+     * runs on the session in the meantime, since the peer has no packet to answer yet.
+     */
+    protected void prepare() throws IOException {
+    }
+
+    /**
+     * Runs {@link #prepare} in the background and has the loop start the session
+     * once it is done. Called by the loop instead of start when it needs preparation.
+     */
+    void beginPreparation() {
+        preparing = true;
+        Preparers.POOL.execute(() -> {
+            try {
+                prepare();
+            } catch (IOException | RuntimeException e) {
+                preparationFailure = e;
+            }
+            wakeUp();
+        });
+    }
+
+    /**
+     * Called by the loop for every wake: starts a prepared session, otherwise runs {@link #onWake}.
+     */
+    final void woken(long now) throws IOException {
+        if (!preparing) {
+            onWake(now);
+            return;
+        }
+        preparing = false;
+        if (preparationFailure != null) {
+            System.out.println("Could not prepare transfer with " + peer + ": " + preparationFailure.getMessage());
+            sendError(PacketCodec.ERROR_NOT_DEFINED, "Could not open file");
+            finish();
+            return;
+        }
+        start(now);
+    }
+
+    /**
+     * Records the loop that drives this session. Called by the loop before {@link #start}.
+     */
+    void attach(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Has the event loop call {@link #onWake} soon. Safe to call from any thread.
+     * Does nothing before the session is attached to a loop; its start comes next anyway.
+     */
+    protected void wakeUp() {
+        EventLoop current = loop;
+        if (current != null) {
+            current.wake(this);
+        }
+    }
+
+    public void onReadable(long now) throws IOException {
+        while (!finished) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (!accepts(from)) {
+                sendError(from, PacketCodec.ERROR_UNKNOWN_TID, "Unknown transfer ID");
+                continue;
+            }
+            if (receiveBuffer.remaining() < DATA_PACKET_HEADER_LENGTH) {
+                continue;
+            }
+            onPacket((InetSocketAddress) from, reader.wrap(receiveBuffer), now);
+        }
+    }
+
+    /**
+     * True if packets from this address belong to the transfer. Only the peer's do, unless a subclass serves several clients.
+     */
+    protected boolean accepts(SocketAddress from) {
+        return peer.equals(from);
+    }
+
+    /**
+     * Handles one packet from an accepted sender. An ERROR ends the transfer, anything else goes to {@link #onPacket(PacketReader, long)}.
+     */
+    protected void onPacket(InetSocketAddress from, PacketReader packet, long now) throws IOException {
+        if (packet.opcode() == PacketCodec.OP_ERROR) {
+            System.out.println("Received ERROR packet from " + peer + ", aborting transfer.");
+            finish();
+            return;
+        }
+        onPacket(packet, now);
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    protected void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Starts (or keeps) the RTT measurement for what was just sent and sets the retransmission deadline.
+     */
+    protected void armTimer(long now) {
+        timer.packetSent(now);
+        deadline = now + timer.getTimeout();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    protected void finish() {
+        finished = true;
+        deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Ends the session after the last block was delivered.
+     */
+    protected void complete() {
+        completed = true;
+        finish();
+    }
+
+    /**
+     * Feeds an ACK (or the DATA that follows one) to the timer and records the RTT sample it produced.
+     */
+    protected void ackReceived(long now) {
+        stats.ackRtt(timer.ackReceived(now));
+    }
+
+    /**
+     * Releases the TID, the packet buffers and any file handles held by the session. Safe to call twice.
+     */
+    public final void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        finished = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close transfer channel for " + peer);
+        }
+        onClose();
+        BufferPool.shared().release(receiveBuffer);
+        BufferPool.shared().release(controlBuffer);
+        metrics.sessionEnded(stats, completed);
+    }
+
+    /**
+     * Releases resources owned by the subclass. Called once, after the channel is closed.
+     */
+    protected void onClose() {
+    }
+
+    // Started on first use; -Dtftp.prepareThreads sets how many resume checks run at once
+    private static final class Preparers {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Math.max(1, Integer.getInteger("tftp.prepareThreads", 2)), task -> {
+                    Thread thread = new Thread(task, "tftp-prepare");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * ACKs block blockNumber, counted from the start of the transfer rather than as it appears on the wire.
+     */
+    protected void sendAck(int blockNumber) throws IOException {
+        channel.send(PacketCodec.encodeAck(controlBuffer, PacketCodec.wireBlock(blockNumber, rolloverBase)), peer);
+    }
+
+    protected void sendOack() throws IOException {
+        sendOack(options, peer);
+    }
+
+    protected void sendOack(TransferOptions options, SocketAddress target) throws IOException {
+        channel.send(options.writeOack(controlBuffer), target);
+    }
+
+    protected void sendError(int errorCode, String errorMessage) throws IOException {
+        sendError(peer, errorCode, errorMessage);
+    }
+
+    protected void sendError(SocketAddress target, int errorCode, String errorMessage) throws IOException {
+        stats.errorSent(errorCode);
+        channel.send(PacketCodec.encodeError(controlBuffer, errorCode, errorMessage), target);
+    }
+}
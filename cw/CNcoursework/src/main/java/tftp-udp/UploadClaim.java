@@ -0,0 +1,41 @@
+package com.aa2796.tftp.server;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Marks a file as being uploaded, for every UDP and TCP transfer in this process.
+ * An unfinished upload looks resumable, so without a claim a second upload of the
+ * same name would be let in and both would write into the file at once. The
+ * claim is held until the file is finished or abandoned and closed.
+ */
+final class UploadClaim implements AutoCloseable {
+    private static final Set<Path> CLAIMED = ConcurrentHashMap.newKeySet();
+
+    private final Path key;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private UploadClaim(Path key) {
+        this.key = key;
+    }
+
+    /**
+     * Claims filePath, or returns null if another upload holds it.
+     */
+    static UploadClaim claim(Path filePath) {
+        Path key = filePath.toAbsolutePath().normalize();
+        return CLAIMED.add(key) ? new UploadClaim(key) : null;
+    }
+
+    /**
+     * Lets the file go. Only the first call counts, so every owner may call it.
+     */
+    @Override
+    public void close() {
+        if (released.compareAndSet(false, true)) {
+            CLAIMED.remove(key);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Disk side of one upload. The {@link WriteSession} offers each in-order block to
+ * a {@link BlockRing} and carries on receiving. A {@link DiskWriter} thread takes
+ * all waiting blocks at once, records them in the {@link ChunkIndex}, and writes
+ * them through the {@link BlockWriter}. With durable set, each batch is also
+ * forced to stable storage before it counts as persisted. After the block
+ * marked last, the writer truncates, completes and closes the file.
+ * <p>
+ * Once the pipeline exists, the writer thread owns the BlockWriter, the
+ * ChunkIndex and the {@link UploadClaim}, which it lets go once the file is
+ * closed. It tells the session through wake when durable blocks were
+ * persisted, when a full ring has room again, and when the file is finished
+ * or has failed. After the session closes, whatever is still in the ring is
+ * written out, so a later resume finds it.
+ */
+final class WritePipeline {
+    final AtomicBoolean scheduled = new AtomicBoolean(); // queued on the disk writer
+    private final BlockRing ring;
+    private final BlockWriter writer;
+    private final ChunkIndex index;
+    private final UploadClaim claim;
+    private final SessionMetrics stats;
+    private final boolean durable;
+    private final Runnable wake;
+    private final DiskWriter diskWriter = DiskWriter.assign();
+    private final AtomicInteger owners = new AtomicInteger(2); // The ring is freed when both sides let go
+    private volatile long persisted; // blocks written, and forced if durable
+    private volatile boolean stalled;
+    private volatile boolean closing;
+    private volatile boolean done;
+    private volatile IOException failure;
+
+    WritePipeline(BlockRing ring, BlockWriter writer, ChunkIndex index, UploadClaim claim, SessionMetrics stats,
+                  boolean durable, Runnable wake) {
+        this.ring = ring;
+        this.writer = writer;
+        this.index = index;
+        this.claim = claim;
+        this.stats = stats;
+        this.durable = durable;
+        this.wake = wake;
+    }
+
+    /**
+     * Session side: true if the next {@link #offer} will be taken. If the ring is
+     * full, returns false and the session is woken once there is room again.
+     */
+    boolean reserve() {
+        if (ring.isFull()) {
+            stalled = true;
+            diskWriter.schedule(this);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Session side: queues the payload for writing at position, after a successful {@link #reserve}.
+     */
+    void offer(long position, ByteBuffer payload, boolean last) {
+        ring.offer(position, payload, last);
+        diskWriter.schedule(this);
+    }
+
+    /**
+     * Session side: true once, after a full ring was drained.
+     */
+    boolean clearStalled() {
+        if (stalled && ring.available() < ring.capacity()) {
+            stalled = false;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isStalled() {
+        return stalled;
+    }
+
+    long getPersisted() {
+        return persisted;
+    }
+
+    /**
+     * True once the last block is on disk and the file is closed, or the pipeline failed.
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Session side: the session is going away. Waiting blocks are still written.
+     */
+    void close() {
+        closing = true;
+        diskWriter.schedule(this);
+        release();
+    }
+
+    /**
+     * Writer side: writes every waiting block.
+     */
+    void drain() {
+        if (done) {
+            return;
+        }
+        boolean last = false;
+        try {
+            int count = ring.available();
+            for (int i = 0; i < count && !last; i++) {
+                ByteBuffer slot = ring.slot(i);
+                long position = ring.position(i);
+                int length = slot.remaining();
+                last = ring.isLast(i);
+                long start = System.nanoTime();
+                index.append(position, slot);
+                writer.write(position, slot);
+                if (last) {
+                    writer.truncate(position + length);
+                    if (durable) {
+                        writer.sync();
+                    }
+                    writer.complete();
+                    index.complete();
+                }
+                stats.diskWrite(System.nanoTime() - start);
+            }
+            if (durable && count > 0 && !last) {
+                long start = System.nanoTime();
+                writer.sync();
+                stats.diskWrite(System.nanoTime() - start);
+            }
+            ring.release(count);
+            persisted += count;
+            if (last || (closing && ring.available() == 0)) {
+                finish();
+            }
+        } catch (IOException e) {
+            failure = e;
+            finish();
+        }
+        if (durable || stalled || done) {
+            wake.run();
+        }
+    }
+
+    private void finish() {
+        done = true;
+        try {
+            writer.close();
+            index.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        claim.close();
+        release();
+    }
+
+    private void release() {
+        if (owners.decrementAndGet() == 0) {
+            ring.free();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.Netascii;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Accepts a WRQ: answers with OACK or ACK 0, then hands each in-order DATA
+ * block to a {@link WritePipeline} at its file offset. Only the last block of every window is acknowledged;
+ * an out-of-order block is answered with the last in-order block so the
+ * sender can restart from there (RFC 7440).
+ * Every completed chunk is recorded in a {@link ChunkIndex} sidecar, so an
+ * upload that dies part way can be resumed from the chunks already on disk.
+ * When the client sends tsize the file is extended to that size up front.
+ * <p>
+ * The event loop never touches the disk: blocks are written by a
+ * {@link DiskWriter} thread, and checking the chunks of an unfinished upload
+ * happens in {@link #prepare} before the first response. -Dtftp.ackPolicy picks when a block is
+ * acknowledged. "receive" (the default) ACKs as soon as the block is queued.
+ * "durable" ACKs only once it has been written and forced to stable storage.
+ * If the queue is full, blocks are dropped unacknowledged until it drains.
+ * <p>
+ * In netascii mode every block is decoded to local line ends before it is
+ * queued, so file offsets follow the decoded bytes, not the block numbers.
+ * Such uploads always start from the beginning.
+ */
+public class WriteSession extends TransferSession {
+    // Largest upload accepted; checked against tsize up front and against the data as it arrives
+    static final long MAX_UPLOAD_BYTES = Long.getLong("tftp.maxUploadBytes", Long.MAX_VALUE);
+    static final boolean ACK_ON_WRITE = "durable".equals(System.getProperty("tftp.ackPolicy", "receive"));
+    // Memory for blocks waiting for the disk, per upload; always room for a few windows
+    static final int RING_BYTES = Integer.getInteger("tftp.writeRingBytes", 1024 * 1024);
+
+    private final BlockWriter writer;
+    private final Path filePath;
+    private final UploadClaim claim; // held until the file is closed, by the pipeline once there is one
+    private final boolean partial; // an unfinished upload is on disk, its chunks need checking
+    private ChunkIndex index;       // this and the fields below are set by prepare
+    private WritePipeline pipeline;
+    private final Netascii.Decoder decoder; // null in octet mode
+    private final ByteBuffer decoded;
+    private long startOffset;
+    private long uploadLimit;
+    private final int windowSize;
+    private int lastBlockNumber; // blocks received in order and queued for the disk
+    private long queuedBytes;    // file bytes those blocks came to
+    private int pendingAck;      // durable: ACK owed once the disk writer gets this far
+    private boolean lastQueued;  // the final block is queued, waiting for the disk writer
+
+    public WriteSession(InetSocketAddress peer, TransferOptions options, Path filePath, UploadClaim claim,
+                        TransferMetrics metrics) throws IOException {
+        super(peer, options, metrics, TransferMetrics.WRITE);
+        this.windowSize = options.getWindowSize();
+        this.filePath = filePath;
+        this.claim = claim;
+        this.partial = ChunkIndex.isPartial(filePath);
+        boolean netascii = options.isNetascii();
+        this.decoder = netascii ? new Netascii.Decoder() : null;
+        this.decoded = netascii ? ByteBuffer.allocate(blockSize + 1) : null;
+        try {
+            this.writer = new BlockWriter(filePath, partial);
+            if (!partial) {
+                prepare(); // A new, empty file: nothing to read
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected boolean needsPreparation() {
+        return partial;
+    }
+
+    @Override
+    protected void prepare() throws IOException {
+        index = ChunkIndex.openForReceive(filePath, ChunkIndex.DEFAULT_CHUNK_SIZE);
+        long offset = 0;
+        if (options.getResumeOffset() >= 0) {
+            offset = decoder != null ? 0 : index.heldPrefix(Files.size(filePath));
+            options.acceptResume(offset, ChunkIndex.digestPrefix(filePath, offset));
+        }
+        index.truncate(offset);
+        startOffset = offset;
+        long transferSize = options.getTransferSize();
+        if (transferSize >= 0) {
+            options.acceptTransferSize(transferSize);
+            writer.preallocate(transferSize);
+        }
+        // The space checks trusted tsize, so hold the client to it
+        uploadLimit = transferSize >= 0 ? Math.min(transferSize, MAX_UPLOAD_BYTES) : MAX_UPLOAD_BYTES;
+        int slots = Math.max(4 * windowSize, RING_BYTES / blockSize);
+        // A decoded block can be one byte longer, when the block before ended in a CR
+        BlockRing ring = new BlockRing(slots, decoder != null ? blockSize + 1 : blockSize);
+        pipeline = new WritePipeline(ring, writer, index, claim, stats, ACK_ON_WRITE, this::wakeUp);
+    }
+
+    @Override
+    public void start(long now) throws IOException {
+        sendFirstResponse();
+        armTimer(now);
+    }
+
+    @Override
+    protected void onPacket(PacketReader packet, long now) throws IOException {
+        if (packet.opcode() != PacketCodec.OP_DATA) {
+            sendError(PacketCodec.ERROR_ILLEGAL_OPERATION, "Illegal TFTP operation.");
+            finish();
+            return;
+        }
+        int blockNumber = packet.blockNumber();
+        if (lastQueued) {
+            acknowledge(lastBlockNumber); // Our final ACK was lost
+            return;
+        }
+        if (blockNumber == PacketCodec.wireBlock(lastBlockNumber + 1, rolloverBase)) {
+            if (!pipeline.reserve()) {
+                return; // No room, the sender resends once we ACK again
+            }
+            int length = packet.payloadLength();
+            boolean last = length < blockSize;
+            ByteBuffer payload = packet.payload();
+            if (decoder != null) {
+                decoder.decode(payload, decoded.clear(), last);
+                payload = decoded.flip();
+            }
+            long position = startOffset + queuedBytes;
+            if (position + payload.remaining() > uploadLimit) {
+                sendError(PacketCodec.ERROR_DISK_FULL, "File exceeds the upload limit of " + uploadLimit + " bytes");
+                finish();
+                return;
+            }
+            queuedBytes += payload.remaining();
+            pipeline.offer(position, payload, last);
+            stats.transferred(length);
+            lastBlockNumber++;
+            // The next block after one of our ACKs closes a round trip
+            ackReceived(now);
+            if (last) {
+                lastQueued = true;
+                if (!ACK_ON_WRITE) {
+                    sendAck(lastBlockNumber);
+                }
+                setDeadline(Long.MAX_VALUE); // Ends when the disk writer is done
+                return;
+            }
+            if (lastBlockNumber % windowSize == 0) {
+                acknowledge(lastBlockNumber);
+                armTimer(now);
+            } else {
+                setDeadline(now + timer.getTimeout());
+            }
+        } else {
+            // Duplicate or out-of-order DATA, tell the sender where we are
+            stats.duplicate();
+            if (!pipeline.isStalled()) {
+                acknowledge(lastBlockNumber);
+            }
+        }
+    }
+
+    /**
+     * ACKs up to the given block now, or with the durable policy once the disk writer has persisted it.
+     */
+    private void acknowledge(int blockCount) throws IOException {
+        if (!ACK_ON_WRITE || pipeline.getPersisted() >= blockCount) {
+            sendAck(blockCount);
+        } else {
+            pendingAck = Math.max(pendingAck, blockCount);
+        }
+    }
+
+    @Override
+    public void onWake(long now) throws IOException {
+        IOException failure = pipeline.getFailure();
+        if (failure != null) {
+            System.out.println("Could not write upload from " + peer + ": " + failure.getMessage());
+            sendError(PacketCodec.ERROR_NOT_DEFINED, "Could not write file");
+            finish();
+            return;
+        }
+        if (lastQueued) {
+            if (pipeline.isDone()) {
+                if (ACK_ON_WRITE) {
+                    sendAck(lastBlockNumber);
+                }
+                complete();
+            }
+            return;
+        }
+        if (pendingAck > 0 && pipeline.getPersisted() >= pendingAck) {
+            sendAck(pendingAck);
+            pendingAck = 0;
+            armTimer(now);
+        }
+        if (pipeline.clearStalled()) {
+            acknowledge(lastBlockNumber); // Room again, have the sender go on from here
+            armTimer(now);
+        }
+    }
+
+    @Override
+    public void onTimeout(long now) throws IOException {
+        if (!timer.timedOut()) {
+            System.out.println("Giving up on upload from " + peer + " after block " + lastBlockNumber);
+            finish();
+            return;
+        }
+        stats.retransmitted();
+        if (lastBlockNumber == 0) {
+            sendFirstResponse();
+        } else {
+            acknowledge(lastBlockNumber);
+        }
+        armTimer(now);
+    }
+
+    private void sendFirstResponse() throws IOException {
+        if (options.hasOptions()) {
+            sendOack();
+        } else {
+            sendAck(0);
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        if (pipeline != null) {
+            pipeline.close(); // The disk writer finishes the file and closes it
+            return;
+        }
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+            if (index != null) {
+                index.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close upload file for " + peer);
+        }
+        claim.close();
+    }
+}
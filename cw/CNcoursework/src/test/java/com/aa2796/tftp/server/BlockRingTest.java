@@ -0,0 +1,145 @@
+package com.aa2796.tftp.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockRingTest {
+    private static final int SLOT_SIZE = 16;
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, capacity(1));
+        assertEquals(2, capacity(2));
+        assertEquals(4, capacity(3));
+        assertEquals(4, capacity(4));
+        assertEquals(8, capacity(5));
+    }
+
+    @Test
+    void slotsComeOutInOrderWithTheirPositionsAndFlags() {
+        BlockRing ring = new BlockRing(4, SLOT_SIZE);
+        try {
+            assertTrue(ring.offer(0, block(1, 16), false));
+            assertTrue(ring.offer(16, block(2, 16), false));
+            assertTrue(ring.offer(32, block(3, 5), true));
+
+            assertEquals(3, ring.available());
+            for (int n = 0; n < 3; n++) {
+                assertEquals(16L * n, ring.position(n));
+                assertEquals(n == 2, ring.isLast(n));
+                assertEquals(n == 2 ? 5 : 16, ring.slot(n).remaining());
+                assertEquals(n + 1, ring.slot(n).get(0));
+            }
+        } finally {
+            ring.free();
+        }
+    }
+
+    @Test
+    void offerLeavesTheSourceAlone() {
+        BlockRing ring = new BlockRing(2, SLOT_SIZE);
+        try {
+            ByteBuffer src = block(7, 10);
+            assertTrue(ring.offer(0, src, false));
+
+            assertEquals(0, src.position());
+            assertEquals(10, src.remaining());
+        } finally {
+            ring.free();
+        }
+    }
+
+    @Test
+    void fullRingRefusesUntilSlotsAreReleased() {
+        BlockRing ring = new BlockRing(2, SLOT_SIZE);
+        try {
+            assertTrue(ring.offer(0, block(1, 16), false));
+            assertTrue(ring.offer(16, block(2, 16), false));
+            assertTrue(ring.isFull());
+            ByteBuffer refused = block(3, 16);
+            assertFalse(ring.offer(32, refused, false));
+            assertEquals(0, refused.position());
+
+            ring.release(1);
+            assertFalse(ring.isFull());
+            assertEquals(1, ring.available());
+            assertEquals(16, ring.position(0));
+            assertTrue(ring.offer(32, refused, false));
+
+            // The new block reuses the first slot, but comes out after the one still waiting
+            assertEquals(2, ring.available());
+            assertEquals(2, ring.slot(0).get(0));
+            assertEquals(3, ring.slot(1).get(0));
+            assertEquals(32, ring.position(1));
+        } finally {
+            ring.free();
+        }
+    }
+
+    @Test
+    void producerAndConsumerThreadsSeeEveryBlockOnce() throws Exception {
+        int blocks = 100_000;
+        BlockRing ring = new BlockRing(8, SLOT_SIZE);
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> produced = producer.submit(() -> {
+                ByteBuffer block = ByteBuffer.allocate(SLOT_SIZE);
+                for (int i = 0; i < blocks; i++) {
+                    block.clear();
+                    block.putInt(i).putInt(~i).flip();
+                    while (!ring.offer((long) i * SLOT_SIZE, block, i == blocks - 1)) {
+                        Thread.yield();
+                    }
+                }
+            });
+
+            int expected = 0;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (expected < blocks) {
+                int count = ring.available();
+                if (count == 0) {
+                    Thread.yield();
+                }
+                for (int n = 0; n < count; n++) {
+                    ByteBuffer slot = ring.slot(n);
+                    assertEquals(8, slot.remaining());
+                    assertEquals(expected, slot.getInt(0));
+                    assertEquals(~expected, slot.getInt(4));
+                    assertEquals((long) expected * SLOT_SIZE, ring.position(n));
+                    assertEquals(expected == blocks - 1, ring.isLast(n));
+                    expected++;
+                }
+                ring.release(count);
+                assertTrue(System.nanoTime() < deadline, "stuck at block " + expected);
+            }
+            produced.get(10, TimeUnit.SECONDS);
+            assertEquals(0, ring.available());
+        } finally {
+            producer.shutdownNow();
+            ring.free();
+        }
+    }
+
+    private static int capacity(int slotCount) {
+        BlockRing ring = new BlockRing(slotCount, SLOT_SIZE);
+        ring.free();
+        return ring.capacity();
+    }
+
+    private static ByteBuffer block(int fill, int length) {
+        ByteBuffer block = ByteBuffer.allocate(length);
+        while (block.hasRemaining()) {
+            block.put((byte) fill);
+        }
+        return block.flip();
+    }
+}
@@ -0,0 +1,241 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.ChunkTransfer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pipelined connections: every request goes out before any answer is read, as
+ * TCPClient sends them, and the answers must come back in order under their ids.
+ */
+class ClientHandlerTest {
+    private static final int FRAME_SIZE = 1000;
+
+    @TempDir
+    Path directory;
+
+    private SocketChannel client;
+    private Thread server;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    @BeforeEach
+    void connect() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = SocketChannel.open(listener.getLocalAddress());
+            server = new Thread(new ClientHandler(listener.accept(), FRAME_SIZE), "test-handler");
+        }
+        server.start();
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        in = new DataInputStream(Channels.newInputStream(client));
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        client.close();
+        server.join(10_000);
+    }
+
+    @Test
+    void answersComeBackInOrderUnderTheirIds() throws Exception {
+        byte[] first = random(2500, 1);
+        byte[] second = random(FRAME_SIZE, 2);
+        byte[] upload = random(1800, 3);
+        Path firstPath = Files.write(directory.resolve("first.bin"), first);
+        Path secondPath = Files.write(directory.resolve("second.bin"), second);
+        Path uploadPath = directory.resolve("upload.bin");
+
+        out.writeUTF(ClientHandler.PIPELINE);
+        read(7, firstPath);
+        write(8, uploadPath, upload);
+        read(9, secondPath);
+        read(10, firstPath);
+        out.writeInt(ClientHandler.END);
+        out.flush();
+
+        assertEquals(7, in.readInt());
+        assertArrayEquals(first, frames());
+        assertEquals(8, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(9, in.readInt());
+        assertArrayEquals(second, frames());
+        assertEquals(10, in.readInt());
+        assertArrayEquals(first, frames());
+        assertThrows(EOFException.class, in::readInt); // Closed after END
+
+        assertArrayEquals(upload, Files.readAllBytes(uploadPath));
+    }
+
+    @Test
+    void failedRequestsLeaveTheConnectionUsable() throws Exception {
+        byte[] data = random(1200, 4);
+        Path existing = Files.write(directory.resolve("existing.bin"), data);
+
+        out.writeUTF(ClientHandler.PIPELINE);
+        read(1, directory.resolve("missing.bin"));
+        write(2, existing, random(3000, 5));
+        read(3, existing);
+        out.writeInt(ClientHandler.END);
+        out.flush();
+
+        assertEquals(1, in.readInt());
+        assertEquals(ClientHandler.ERROR, in.readInt());
+        assertEquals("File not found", in.readUTF());
+        assertEquals(2, in.readInt());
+        assertEquals(ClientHandler.ERROR, in.readInt());
+        assertEquals("File already exists", in.readUTF());
+        assertEquals(3, in.readInt());
+        assertArrayEquals(data, frames());
+
+        assertArrayEquals(data, Files.readAllBytes(existing)); // The refused upload was dropped
+        assertFalse(Files.exists(directory.resolve("missing.bin")));
+    }
+
+    @Test
+    void resumedUploadCannotOverwriteAFinishedFile() throws Exception {
+        byte[] data = random(1200, 8);
+        Path existing = Files.write(directory.resolve("existing.bin"), data);
+
+        out.writeUTF("WRQ_RESUME");
+        out.writeUTF(existing.toString());
+        out.flush();
+
+        // Refused before the chunk list, so the connection just closes
+        assertThrows(EOFException.class, in::readInt);
+        assertArrayEquals(data, Files.readAllBytes(existing));
+        assertFalse(ChunkIndex.isPartial(existing));
+    }
+
+    @Test
+    void resumedUploadFinishesAnUnfinishedFile() throws Exception {
+        byte[] data = random(3000, 9);
+        Path source = Files.write(directory.resolve("source.bin"), data);
+        Path target = directory.resolve("target.bin");
+        ChunkIndex.openForReceive(target, ChunkIndex.DEFAULT_CHUNK_SIZE).close(); // An earlier attempt's sidecar
+        Files.write(target, new byte[100]);
+
+        out.writeUTF("WRQ_RESUME");
+        out.writeUTF(target.toString());
+        out.flush();
+        assertEquals(data.length, ChunkTransfer.send(client, source, null));
+
+        assertEquals(0, in.readInt());
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(ChunkIndex.isPartial(target));
+    }
+
+    @Test
+    void uploadOfAFileBeingUploadedIsRefused() throws Exception {
+        Path file = directory.resolve("busy.bin");
+        byte[] data = random(1500, 10);
+
+        try (UploadClaim held = UploadClaim.claim(file)) { // Another connection's upload
+            out.writeUTF(ClientHandler.PIPELINE);
+            write(1, file, data);
+            out.flush();
+
+            assertEquals(1, in.readInt());
+            assertEquals(ClientHandler.ERROR, in.readInt());
+            assertEquals("File is being uploaded", in.readUTF());
+            assertFalse(Files.exists(file));
+        }
+
+        write(2, file, data);
+        out.writeInt(ClientHandler.END);
+        out.flush();
+        assertEquals(2, in.readInt());
+        assertEquals(0, in.readInt());
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    void unknownCommandEndsTheConnection() throws Exception {
+        Path file = Files.write(directory.resolve("file.bin"), random(10, 6));
+
+        out.writeUTF(ClientHandler.PIPELINE);
+        out.writeInt(1);
+        out.writeUTF("DELETE");
+        out.writeUTF(file.toString());
+        read(2, file);
+        out.flush();
+
+        assertEquals(1, in.readInt());
+        // Closed with request 2 unread, which may reach us as a reset rather than an EOF
+        assertThrows(IOException.class, in::readInt);
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    void closingBetweenRequestsCountsAsEnd() throws Exception {
+        byte[] data = random(500, 7);
+        Path file = Files.write(directory.resolve("file.bin"), data);
+
+        out.writeUTF(ClientHandler.PIPELINE);
+        read(1, file);
+        out.flush();
+        client.shutdownOutput();
+
+        assertEquals(1, in.readInt());
+        assertArrayEquals(data, frames());
+        assertThrows(EOFException.class, in::readInt);
+    }
+
+    private void read(int id, Path file) throws IOException {
+        out.writeInt(id);
+        out.writeUTF("RRQ");
+        out.writeUTF(file.toString());
+    }
+
+    private void write(int id, Path file, byte[] data) throws IOException {
+        out.writeInt(id);
+        out.writeUTF("WRQ");
+        out.writeUTF(file.toString());
+        for (int position = 0; position < data.length; position += FRAME_SIZE) {
+            int length = Math.min(FRAME_SIZE, data.length - position);
+            out.writeInt(length);
+            out.write(data, position, length);
+        }
+        out.writeInt(-1);
+    }
+
+    private byte[] frames() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        int length;
+        while ((length = in.readInt()) != -1) {
+            assertTrue(length > 0 && length <= FRAME_SIZE, "frame length " + length);
+            file.write(in.readNBytes(length));
+        }
+        return file.toByteArray();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
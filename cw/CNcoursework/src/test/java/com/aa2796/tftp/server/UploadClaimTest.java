@@ -0,0 +1,98 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UploadClaimTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void oneClaimPerFileUntilClosed() {
+        Path file = directory.resolve("file.bin");
+        UploadClaim first = UploadClaim.claim(file);
+
+        assertNotNull(first);
+        assertNull(UploadClaim.claim(directory.resolve("sub/../file.bin")));
+        first.close();
+        UploadClaim second = UploadClaim.claim(file);
+        assertNotNull(second);
+
+        first.close(); // A late second close must not let go of someone else's claim
+        assertNull(UploadClaim.claim(file));
+        second.close();
+    }
+
+    @Test
+    void udpUploadOfAFileBeingUploadedIsRefused() throws Exception {
+        Path file = directory.resolve("upload.bin");
+        TFTPServer server = new TFTPServer(0, 1);
+        server.start();
+        try (DatagramSocket first = open(); DatagramSocket second = open()) {
+            SocketAddress listener = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            ByteBuffer buffer = ByteBuffer.allocate(516);
+            PacketReader reader = new PacketReader();
+
+            PacketCodec.beginRequest(buffer, PacketCodec.OP_WRQ, file.toString(), "octet");
+            send(first, buffer.flip(), listener);
+            SocketAddress transfer = receive(first, reader);
+            assertEquals(PacketCodec.OP_ACK, reader.opcode());
+
+            send(second, buffer.rewind(), listener);
+            receive(second, reader);
+            assertEquals(PacketCodec.OP_ERROR, reader.opcode());
+            assertEquals(PacketCodec.ERROR_FILE_EXISTS, reader.errorCode());
+            assertEquals("File is being uploaded", reader.errorMessage());
+
+            // The first upload carries on undisturbed
+            byte[] data = {1, 2, 3};
+            send(first, PacketCodec.beginData(buffer, 1).put(data).flip(), transfer);
+            receive(first, reader);
+            assertEquals(PacketCodec.OP_ACK, reader.opcode());
+            assertEquals(1, reader.blockNumber());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ChunkIndex.isPartial(file) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertArrayEquals(data, Files.readAllBytes(file));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static DatagramSocket open() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(DatagramSocket socket, ByteBuffer packet, SocketAddress to) throws IOException {
+        socket.send(new DatagramPacket(packet.array(), packet.limit(), to));
+    }
+
+    private static SocketAddress receive(DatagramSocket socket, PacketReader reader) throws IOException {
+        byte[] incoming = new byte[516];
+        DatagramPacket packet = new DatagramPacket(incoming, incoming.length);
+        socket.receive(packet);
+        reader.wrap(ByteBuffer.wrap(incoming, 0, packet.getLength()));
+        return packet.getSocketAddress();
+    }
+}
@@ -0,0 +1,226 @@
+package com.aa2796.tftp.server;
+
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * RFC 7440 windows against a running server, driven packet by packet from a plain
+ * socket. The server's retransmit timer may fire at any point, so the checks allow
+ * for repeated packets but not for a window that runs ahead of the ACKs.
+ */
+class WindowedTransferTest {
+    private static final int BLOCK_SIZE = 512;
+    private static final int WINDOW_SIZE = 4;
+
+    @TempDir
+    Path directory;
+
+    private TFTPServer server;
+    private DatagramSocket socket;
+    private SocketAddress transfer; // The session's own port, learned from its first reply
+    private final ByteBuffer outgoing = ByteBuffer.allocate(BLOCK_SIZE + PacketCodec.HEADER_LENGTH);
+    private final byte[] incoming = new byte[BLOCK_SIZE + PacketCodec.HEADER_LENGTH];
+    private final PacketReader reader = new PacketReader();
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new TFTPServer(0, 1);
+        server.start();
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    void stop() {
+        socket.close();
+        server.shutdown();
+    }
+
+    @Test
+    void partialAckRestartsTheWindowAfterIt() throws IOException {
+        byte[] data = random(10 * BLOCK_SIZE + 100, 1);
+        Path file = Files.write(directory.resolve("window.bin"), data);
+        Map<Integer, byte[]> blocks = new HashMap<>();
+
+        request(PacketCodec.OP_RRQ, file);
+        expectOack();
+        ack(0);
+        List<Integer> first = receiveUntil(4, blocks);
+        assertTrue(first.stream().allMatch(block -> block <= 4), "ran ahead of ACK 0: " + first);
+
+        // Pretend blocks 3 and 4 were lost: the next window starts at 3
+        ack(2);
+        List<Integer> second = receiveUntil(6, blocks);
+        assertTrue(second.contains(3), "block 3 not sent again: " + second);
+        assertTrue(second.stream().allMatch(block -> block <= 6), "ran ahead of ACK 2: " + second);
+
+        ack(6);
+        assertTrue(receiveUntil(10, blocks).stream().allMatch(block -> block > 6 && block <= 10));
+        ack(10);
+        receiveUntil(11, blocks);
+        ack(11);
+
+        byte[] received = new byte[data.length];
+        for (int block = 1; block <= 11; block++) {
+            byte[] payload = blocks.get(block);
+            assertEquals(block == 11 ? 100 : BLOCK_SIZE, payload.length, "block " + block);
+            System.arraycopy(payload, 0, received, (block - 1) * BLOCK_SIZE, payload.length);
+        }
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    void unansweredWindowIsSentAgainFromItsStart() throws IOException {
+        Path file = Files.write(directory.resolve("timeout.bin"), random(6 * BLOCK_SIZE, 2));
+        Map<Integer, byte[]> blocks = new HashMap<>();
+
+        request(PacketCodec.OP_RRQ, file);
+        expectOack();
+        ack(0);
+        receiveUntil(4, blocks);
+
+        // No ACK: after its timeout the server goes back to block 1
+        receiveUntil(1, blocks);
+        assertTrue(receiveUntil(4, blocks).stream().allMatch(block -> block <= 4));
+        ack(4);
+        receiveUntil(7, blocks);
+        assertEquals(0, blocks.get(7).length); // The empty block that ends an exact multiple
+        ack(7);
+    }
+
+    @Test
+    void uploadIsAcknowledgedOncePerWindowAndAtGaps() throws Exception {
+        byte[] data = random(6 * BLOCK_SIZE + 300, 3);
+        Path file = directory.resolve("upload.bin");
+
+        request(PacketCodec.OP_WRQ, file);
+        expectOack();
+        send(data, 1);
+        send(data, 2);
+        send(data, 4); // Block 3 went missing
+        awaitAck(2);
+
+        send(data, 3);
+        send(data, 4);
+        awaitAck(4);
+        send(data, 5);
+        send(data, 6);
+        send(data, 7);
+        awaitAck(7);
+
+        // The sidecar goes once the disk writer has finished with the file
+        Path sidecar = directory.resolve("upload.bin.crc32c");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.exists(sidecar) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(Files.exists(sidecar));
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    private void request(int opcode, Path file) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(512);
+        PacketCodec.beginRequest(request, opcode, file.toString(), "octet");
+        PacketCodec.putOption(request, "blksize", BLOCK_SIZE);
+        PacketCodec.putOption(request, "windowsize", WINDOW_SIZE);
+        request.flip();
+        socket.send(new DatagramPacket(request.array(), request.limit(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort())));
+    }
+
+    private void expectOack() throws IOException {
+        receive();
+        assertEquals(PacketCodec.OP_OACK, reader.opcode());
+        boolean window = false;
+        while (reader.nextOption()) {
+            if (reader.optionIs("windowsize")) {
+                assertEquals(WINDOW_SIZE, reader.optionValue());
+                window = true;
+            }
+        }
+        assertTrue(window, "windowsize not acknowledged");
+    }
+
+    private void ack(int block) throws IOException {
+        PacketCodec.encodeAck(outgoing, block);
+        socket.send(new DatagramPacket(outgoing.array(), outgoing.limit(), transfer));
+    }
+
+    private void send(byte[] data, int block) throws IOException {
+        int position = (block - 1) * BLOCK_SIZE;
+        PacketCodec.beginData(outgoing, block).put(data, position, Math.min(BLOCK_SIZE, data.length - position)).flip();
+        socket.send(new DatagramPacket(outgoing.array(), outgoing.limit(), transfer));
+    }
+
+    /**
+     * Reads ACKs until the expected one, allowing repeats of earlier ones from the retransmit timer.
+     */
+    private void awaitAck(int expected) throws IOException {
+        int block;
+        do {
+            receive();
+            assertEquals(PacketCodec.OP_ACK, reader.opcode());
+            block = reader.blockNumber();
+            assertTrue(block <= expected, "ACK " + block + " before " + expected);
+        } while (block != expected);
+    }
+
+    /**
+     * Collects DATA blocks into blocks until the given one arrives, returning the numbers in arrival order.
+     */
+    private List<Integer> receiveUntil(int last, Map<Integer, byte[]> blocks) throws IOException {
+        List<Integer> received = new ArrayList<>();
+        int block;
+        do {
+            block = receiveData(blocks);
+            received.add(block);
+        } while (block != last);
+        return received;
+    }
+
+    private int receiveData(Map<Integer, byte[]> blocks) throws IOException {
+        receive();
+        assertEquals(PacketCodec.OP_DATA, reader.opcode());
+        byte[] payload = new byte[reader.payloadLength()];
+        reader.payload().get(payload);
+        blocks.put(reader.blockNumber(), payload);
+        return reader.blockNumber();
+    }
+
+    private void receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(incoming, incoming.length);
+        socket.receive(packet);
+        transfer = packet.getSocketAddress();
+        reader.wrap(ByteBuffer.wrap(incoming, 0, packet.getLength()));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -1,156 +1,328 @@
-import java.io.*;
-import java.net.*;
-
-public class TFTPclient {
-    private static final int SERVER_PORT = 69;
-    private static final int MAX_DATA_LENGTH = 512;
-
-    public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Usage: java TFTPClient [server_ip] [mode] [local_filename] [remote_filename]");
-            return;
-        }
-
-        String serverIp = args[0];
-        String mode = args[1];
-        String localFilename = args[2];
-        String remoteFilename = args[3];
-
-        try (DatagramSocket socket = new DatagramSocket()) {
-            InetAddress serverAddress = InetAddress.getByName(serverIp);
-
-            // Send request packet
-            byte[] request = createRequestPacket(mode, remoteFilename);
-            DatagramPacket requestPacket = new DatagramPacket(request, request.length, serverAddress, SERVER_PORT);
-            socket.send(requestPacket);
-
-            if (mode.equalsIgnoreCase("read")) {
-                receiveFile(socket, localFilename);
-            } else if (mode.equalsIgnoreCase("write")) {
-                sendFile(socket, serverAddress, localFilename);
-            } else {
-                System.out.println("Invalid mode. Use 'read' or 'write'.");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static byte[] createRequestPacket(String mode, String filename) {
-        byte opcode = (byte) (mode.equalsIgnoreCase("read") ? 1 : 2);
-        byte[] filenameBytes = filename.getBytes();
-        byte[] modeBytes = "octet".getBytes(); // TFTP mode is usually octet
-        byte[] request = new byte[filenameBytes.length + modeBytes.length + 5];
-
-        request[0] = 0; // Opcode
-        request[1] = opcode;
-
-        System.arraycopy(filenameBytes, 0, request, 2, filenameBytes.length);
-        request[filenameBytes.length + 2] = 0; // Zero byte after filename
-
-        System.arraycopy(modeBytes, 0, request, filenameBytes.length + 3, modeBytes.length);
-        request[request.length - 1] = 0; // Zero byte after mode
-
-        return request;
-    }
-
-    private static void receiveFile(DatagramSocket socket, String localFilename) throws IOException {
-        FileOutputStream fileOutputStream = new FileOutputStream(localFilename);
-        int blockNumber = 1;
-        while (true) {
-            byte[] receiveData = new byte[MAX_DATA_LENGTH + 4];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            socket.receive(receivePacket);
-            byte[] data = receivePacket.getData();
-            int opcode = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
-            if (opcode == 5) {
-                // Error Packet Received
-                System.out.println("Error Packet Received: " + new String(data, 4, receivePacket.getLength() - 4));
-                return;
-            } else if (opcode != 3) {
-                // Unexpected packet received
-                System.out.println("Unexpected Packet Received with opcode: " + opcode);
-                return;
-            }
-            int receivedBlockNumber = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
-            if (receivedBlockNumber == blockNumber) {
-                fileOutputStream.write(data, 4, receivePacket.getLength() - 4);
-                sendAck(socket, receivePacket.getPort(), receivedBlockNumber);
-                blockNumber++;
-                if (receivePacket.getLength() < MAX_DATA_LENGTH + 4) {
-                    // Last Packet Received
-                    break;
-                }
-            } else if (receivedBlockNumber < blockNumber) {
-                // Duplicate Packet Received, Resend ACK
-                sendAck(socket, receivePacket.getPort(), receivedBlockNumber);
-            }
-        }
-        fileOutputStream.close();
-        System.out.println("File Received Successfully: " + localFilename);
-    }
-
-    private static void sendFile(DatagramSocket socket, InetAddress serverAddress, String localFilename) throws IOException {
-        FileInputStream fileInputStream = new FileInputStream(localFilename);
-        byte[] sendData = new byte[MAX_DATA_LENGTH + 4];
-        int blockNumber = 1;
-        while (true) {
-            int bytesRead = fileInputStream.read(sendData, 4, MAX_DATA_LENGTH);
-            if (bytesRead == -1) {
-                // End of file
-                break;
-            }
-            sendData[0] = 0;
-            sendData[1] = 3; // DATA Opcode
-            sendData[2] = (byte) (blockNumber >> 8);
-            sendData[3] = (byte) (blockNumber);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, bytesRead + 4, serverAddress, SERVER_PORT);
-            socket.send(sendPacket);
-            blockNumber++;
-            waitForAck(socket, blockNumber);
-        }
-        fileInputStream.close();
-        System.out.println("File Sent Successfully: " + localFilename);
-    }
-
-    private static void waitForAck(DatagramSocket socket, int blockNumber) throws IOException {
-        byte[] receiveData = new byte[4];
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        while (true) {
-            try {
-                socket.setSoTimeout(1000); // 1 second timeout for ACK
-                socket.receive(receivePacket);
-                byte[] data = receivePacket.getData();
-                int opcode = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
-                if (opcode == 5) {
-                    // Error Packet Received
-                    System.out.println("Error Packet Received: " + new String(data, 4, receivePacket.getLength() - 4));
-                    return;
-                } else if (opcode != 4) {
-                    // Unexpected packet received
-                    System.out.println("Unexpected Packet Received with opcode: " + opcode);
-                    return;
-                }
-                int receivedBlockNumber = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
-                if (receivedBlockNumber == blockNumber) {
-                    // ACK received for the current block
-                    return;
-                }
-            } catch (SocketTimeoutException e) {
-                // Resend the data packet on timeout
-                System.out.println("Timeout waiting for ACK, resending packet: " + blockNumber);
-                return;
-            }
-        }
-    }
-
-    private static void sendAck(DatagramSocket socket, int port, int blockNumber) throws IOException {
-        byte[] ackData = new byte[4];
-        ackData[0] = 0;
-        ackData[1] = 4; // ACK Opcode
-        ackData[2] = (byte) (blockNumber >> 8);
-        ackData[3] = (byte) (blockNumber);
-        DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, InetAddress.getLocalHost(), port);
-        socket.send(ackPacket);
-    }
-}
+import com.aa2796.tftp.common.Netascii;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.common.RetransmitTimer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+public class TFTPclient {
+    private static final int SERVER_PORT = 69;
+    private static final int DEFAULT_BLOCK_SIZE = 512; // Used when the server does not answer with an OACK
+    private static final int REQUESTED_BLOCK_SIZE = 1468; // Fills a 1500 byte Ethernet MTU (RFC 2348)
+    private static final int DEFAULT_WINDOW_SIZE = 8; // Blocks in flight, negotiated with the server (RFC 7440)
+    private static final int RETRANSMIT = -2; // waitForAck result: timer expired, resend and keep waiting
+    private static final int STRANGER = -3; // waitForAck result: packet from another TID, refused, keep waiting
+    private static final int MAX_REQUEST_LENGTH = 512; // RFC 2347 limit for RRQ/WRQ, options included
+    // Transfer mode for requests, "octet" or "netascii" (text sent with CR LF line ends)
+    private static final String TRANSFER_MODE = System.getProperty("tftp.mode", "octet");
+    // What block numbers wrap to after 65535 (-Dtftp.rollover=0 or 1), asked for with the "rollover" option if set
+    private static final int REQUESTED_ROLLOVER = Integer.getInteger("tftp.rollover", -1);
+    private static final int DEFAULT_ROLLOVER_BASE = REQUESTED_ROLLOVER == 1 ? 1 : 0;
+
+    public static void main(String[] args) {
+        if (args.length < 4 || args.length > 6) {
+            System.out.println("Usage: java TFTPClient [server_ip] [mode] [local_filename] [remote_filename] [windowsize] [blksize]");
+            return;
+        }
+
+        String serverIp = args[0];
+        String mode = args[1];
+        String localFilename = args[2];
+        String remoteFilename = args[3];
+        int windowSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_WINDOW_SIZE;
+        int blockSize = args.length > 5 ? Integer.parseInt(args[5]) : REQUESTED_BLOCK_SIZE;
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            InetAddress serverAddress = InetAddress.getByName(serverIp);
+            socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), 2 * windowSize * (blockSize + 4)));
+
+            // Send request packet
+            ByteBuffer request = createRequestPacket(mode, remoteFilename, windowSize, blockSize);
+            DatagramPacket requestPacket = new DatagramPacket(request.array(), request.limit(), serverAddress, SERVER_PORT);
+            socket.send(requestPacket);
+
+            if (mode.equalsIgnoreCase("read")) {
+                receiveFile(socket, requestPacket, localFilename, blockSize);
+            } else if (mode.equalsIgnoreCase("write")) {
+                sendFile(socket, requestPacket, localFilename);
+            } else {
+                System.out.println("Invalid mode. Use 'read' or 'write'.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ByteBuffer createRequestPacket(String mode, String filename, int windowSize, int blockSize) {
+        int opcode = mode.equalsIgnoreCase("read") ? PacketCodec.OP_RRQ : PacketCodec.OP_WRQ;
+        // Options are appended as name/value pairs after the mode
+        ByteBuffer request = PacketCodec.beginRequest(ByteBuffer.allocate(MAX_REQUEST_LENGTH), opcode, filename, TRANSFER_MODE);
+        if (blockSize != DEFAULT_BLOCK_SIZE) {
+            PacketCodec.putOption(request, "blksize", blockSize);
+        }
+        if (windowSize > 1) {
+            PacketCodec.putOption(request, "windowsize", windowSize);
+        }
+        if (REQUESTED_ROLLOVER == 0 || REQUESTED_ROLLOVER == 1) {
+            PacketCodec.putOption(request, "rollover", REQUESTED_ROLLOVER);
+        }
+        return request.flip();
+    }
+
+    // Wraps the reader around what the last receive put into the packet's buffer
+    private static PacketReader read(PacketReader reader, ByteBuffer buffer, DatagramPacket packet) {
+        buffer.clear().limit(packet.getLength());
+        return reader.wrap(buffer);
+    }
+
+    private static void receiveFile(DatagramSocket socket, DatagramPacket requestPacket, String localFilename, int requestedBlockSize) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(localFilename);
+        int blockNumber = 1; // Counted from the start, the wire number wraps at 65535
+        int rolloverBase = DEFAULT_ROLLOVER_BASE;
+        int windowSize = 1;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int serverPort = -1; // Server TID, known once it first answers
+        Netascii.Decoder decoder = Netascii.isNetascii(TRANSFER_MODE) ? new Netascii.Decoder() : null;
+        ByteBuffer decoded = null;
+        RetransmitTimer timer = new RetransmitTimer();
+        timer.packetSent(System.currentTimeMillis());
+        byte[] receiveData = new byte[Math.max(requestedBlockSize, DEFAULT_BLOCK_SIZE) + 4];
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveData);
+        PacketReader packet = new PacketReader();
+        ByteBuffer ackData = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH);
+        DatagramPacket ackPacket = new DatagramPacket(ackData.array(), ackData.capacity(), requestPacket.getAddress(), SERVER_PORT);
+        while (true) {
+            receivePacket.setLength(receiveData.length);
+            socket.setSoTimeout((int) timer.getTimeout());
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                if (!timer.timedOut()) {
+                    System.out.println("Server stopped responding, giving up.");
+                    fileOutputStream.close();
+                    return;
+                }
+                // Resend the request, or ACK the last good block so the server resends from there
+                if (serverPort < 0) {
+                    socket.send(requestPacket);
+                } else {
+                    sendAck(socket, ackPacket, ackData, PacketCodec.wireBlock(blockNumber - 1, rolloverBase));
+                }
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (serverPort < 0 && receivePacket.getAddress().equals(requestPacket.getAddress())) {
+                serverPort = receivePacket.getPort(); // The first answer fixes the server's TID
+                ackPacket.setPort(serverPort);
+            } else if (receivePacket.getPort() != serverPort || !receivePacket.getAddress().equals(requestPacket.getAddress())) {
+                refuse(socket, receivePacket);
+                continue;
+            }
+            int opcode = read(packet, receiveBuffer, receivePacket).opcode();
+            if (opcode == PacketCodec.OP_OACK) {
+                // OACK Received, confirm the options with ACK 0
+                while (packet.nextOption()) {
+                    if (packet.optionIs("windowsize")) {
+                        windowSize = (int) packet.optionValue();
+                    } else if (packet.optionIs("blksize")) {
+                        blockSize = (int) packet.optionValue();
+                    } else if (packet.optionIs("rollover")) {
+                        rolloverBase = packet.optionValue() == 1 ? 1 : 0;
+                    }
+                }
+                timer.ackReceived(now);
+                sendAck(socket, ackPacket, ackData, 0);
+                timer.packetSent(now);
+                continue;
+            } else if (opcode == PacketCodec.OP_ERROR) {
+                // Error Packet Received
+                System.out.println("Error Packet Received: " + packet.errorMessage());
+                fileOutputStream.close();
+                return;
+            } else if (opcode != PacketCodec.OP_DATA) {
+                // Unexpected packet received
+                System.out.println("Unexpected Packet Received with opcode: " + opcode);
+                fileOutputStream.close();
+                return;
+            } else if (packet.length() < PacketCodec.HEADER_LENGTH) {
+                continue; // Truncated DATA, the timer recovers it
+            }
+            int receivedBlockNumber = packet.blockNumber();
+            if (receivedBlockNumber == PacketCodec.wireBlock(blockNumber, rolloverBase)) {
+                timer.ackReceived(now);
+                boolean lastPacket = packet.payloadLength() < blockSize;
+                if (decoder != null) {
+                    // Line ends are translated block by block, a CR at the end of one waits for the next
+                    if (decoded == null) {
+                        decoded = ByteBuffer.allocate(blockSize + 1);
+                    }
+                    decoder.decode(packet.payload(), decoded.clear(), lastPacket);
+                    fileOutputStream.write(decoded.array(), 0, decoded.position());
+                } else {
+                    fileOutputStream.write(receiveData, PacketCodec.HEADER_LENGTH, packet.payloadLength());
+                }
+                if (lastPacket || blockNumber % windowSize == 0) {
+                    // ACK once per window, and always for the last packet
+                    sendAck(socket, ackPacket, ackData, receivedBlockNumber);
+                    timer.packetSent(now);
+                }
+                blockNumber++;
+                if (lastPacket) {
+                    // Last Packet Received
+                    break;
+                }
+            } else {
+                // Duplicate or Out-of-Order Packet Received, ACK the last good block
+                sendAck(socket, ackPacket, ackData, PacketCodec.wireBlock(blockNumber - 1, rolloverBase));
+            }
+        }
+        fileOutputStream.close();
+        System.out.println("File Received Successfully: " + localFilename);
+    }
+
+    private static void sendFile(DatagramSocket socket, DatagramPacket requestPacket, String localFilename) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(localFilename);
+        InetAddress serverAddress = requestPacket.getAddress();
+        byte[] receiveData = new byte[DEFAULT_BLOCK_SIZE + 4];
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveData);
+        PacketReader packet = new PacketReader();
+        RetransmitTimer timer = new RetransmitTimer();
+        timer.packetSent(System.currentTimeMillis());
+
+        // ACK 0 or OACK tells us the server TID, all DATA goes there instead of the well-known port
+        int windowSize = 1;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int rolloverBase = DEFAULT_ROLLOVER_BASE;
+        int response;
+        do {
+            response = waitForAck(socket, receivePacket, receiveBuffer, packet, timer, serverAddress, -1);
+            if (response == RETRANSMIT) {
+                socket.send(requestPacket);
+            }
+        } while (response == RETRANSMIT || response == STRANGER);
+        if (response < 0) {
+            fileInputStream.close();
+            return;
+        }
+        timer.ackReceived(System.currentTimeMillis());
+        if (packet.opcode() == PacketCodec.OP_OACK) {
+            while (packet.nextOption()) {
+                if (packet.optionIs("windowsize")) {
+                    windowSize = (int) packet.optionValue();
+                } else if (packet.optionIs("blksize")) {
+                    blockSize = (int) packet.optionValue();
+                } else if (packet.optionIs("rollover")) {
+                    rolloverBase = packet.optionValue() == 1 ? 1 : 0;
+                }
+            }
+        }
+        int serverPort = receivePacket.getPort();
+        Netascii.Encoder encoder = Netascii.isNetascii(TRANSFER_MODE)
+                ? new Netascii.Encoder(Netascii.of(fileInputStream.getChannel()), blockSize, windowSize)
+                : null;
+
+        // Blocks that are in flight are kept so they can be resent after a partial ACK
+        ByteBuffer[] window = new ByteBuffer[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            window[i] = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH + blockSize);
+        }
+        DatagramPacket sendPacket = new DatagramPacket(window[0].array(), 0, serverAddress, serverPort);
+        int base = 1; // Oldest unacknowledged block
+        int nextBlock = 1;
+        int readBlocks = 0;
+        int lastBlock = Integer.MAX_VALUE;
+        while (base <= lastBlock) {
+            while (nextBlock < base + windowSize && nextBlock <= lastBlock) {
+                ByteBuffer sendData = window[nextBlock % windowSize];
+                if (nextBlock > readBlocks) {
+                    PacketCodec.beginData(sendData, PacketCodec.wireBlock(nextBlock, rolloverBase));
+                    int bytesRead = encoder != null
+                            ? encoder.read(nextBlock, sendData)
+                            : Math.max(0, fileInputStream.readNBytes(sendData.array(), PacketCodec.HEADER_LENGTH, blockSize));
+                    sendData.position(PacketCodec.HEADER_LENGTH + bytesRead).flip();
+                    readBlocks = nextBlock;
+                    if (bytesRead < blockSize) {
+                        // End of file, a short (possibly empty) block finishes the transfer
+                        lastBlock = nextBlock;
+                    }
+                }
+                sendPacket.setData(sendData.array(), 0, sendData.limit());
+                socket.send(sendPacket);
+                timer.packetSent(System.currentTimeMillis());
+                nextBlock++;
+            }
+            int receivedBlockNumber = waitForAck(socket, receivePacket, receiveBuffer, packet, timer, serverAddress, serverPort);
+            if (receivedBlockNumber == STRANGER) {
+                continue;
+            } else if (receivedBlockNumber == RETRANSMIT) {
+                nextBlock = base; // Timer expired, resend the whole window
+                continue;
+            } else if (receivedBlockNumber < 0) {
+                fileInputStream.close();
+                return;
+            }
+            int acked = PacketCodec.unwrapBlock(receivedBlockNumber, base, rolloverBase);
+            if (acked >= 0 && acked < nextBlock) {
+                timer.ackReceived(System.currentTimeMillis());
+                base = acked + 1;
+                nextBlock = base; // Resend whatever the server did not get
+            }
+        }
+        fileInputStream.close();
+        System.out.println("File Sent Successfully: " + localFilename);
+    }
+
+    // Returns the block number of the next ACK (0 for an OACK), RETRANSMIT when the
+    // adaptive timeout expired, STRANGER for a packet from another TID (serverPort -1 takes
+    // any port of the server), or -1 if the transfer should stop. The reader is left on the received packet
+    private static int waitForAck(DatagramSocket socket, DatagramPacket receivePacket, ByteBuffer receiveBuffer, PacketReader packet,
+                                  RetransmitTimer timer, InetAddress serverAddress, int serverPort) throws IOException {
+        try {
+            receivePacket.setLength(receivePacket.getData().length);
+            socket.setSoTimeout((int) timer.getTimeout());
+            socket.receive(receivePacket);
+            if (!receivePacket.getAddress().equals(serverAddress) || serverPort >= 0 && receivePacket.getPort() != serverPort) {
+                refuse(socket, receivePacket);
+                return STRANGER;
+            }
+            int opcode = read(packet, receiveBuffer, receivePacket).opcode();
+            if (opcode == PacketCodec.OP_ERROR) {
+                // Error Packet Received
+                System.out.println("Error Packet Received: " + packet.errorMessage());
+                return -1;
+            } else if (opcode == PacketCodec.OP_OACK) {
+                // OACK Received in response to the WRQ
+                return 0;
+            } else if (opcode != PacketCodec.OP_ACK || packet.length() < PacketCodec.HEADER_LENGTH) {
+                // Unexpected packet received
+                System.out.println("Unexpected Packet Received with opcode: " + opcode);
+                return -1;
+            }
+            return packet.blockNumber();
+        } catch (SocketTimeoutException e) {
+            if (!timer.timedOut()) {
+                System.out.println("Timeout waiting for ACK, giving up.");
+                return -1;
+            }
+            System.out.println("Timeout waiting for ACK, resending.");
+            return RETRANSMIT;
+        }
+    }
+
+    // Answers a packet from a TID other than the server's with ERROR 5; the transfer carries on (RFC 1350)
+    private static void refuse(DatagramSocket socket, DatagramPacket received) throws IOException {
+        ByteBuffer error = PacketCodec.encodeError(ByteBuffer.allocate(MAX_REQUEST_LENGTH),
+                PacketCodec.ERROR_UNKNOWN_TID, "Unknown transfer ID");
+        socket.send(new DatagramPacket(error.array(), error.limit(), received.getAddress(), received.getPort()));
+    }
+
+    // Re-encodes the one ACK packet of a transfer in place
+    private static void sendAck(DatagramSocket socket, DatagramPacket ackPacket, ByteBuffer ackData, int blockNumber) throws IOException {
+        PacketCodec.encodeAck(ackData, blockNumber);
+        socket.send(ackPacket);
+    }
+}
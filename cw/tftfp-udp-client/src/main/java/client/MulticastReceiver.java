@@ -0,0 +1,287 @@
+package client;
+
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.common.RetransmitTimer;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Client side of a multicast download (RFC 2090). The RRQ carries the multicast
+ * option, and the OACK names the group and says whether this client is the
+ * master. DATA arrives on the group and is written wherever its block belongs,
+ * in any order. Requests, OACKs and ACKs travel on the unicast control channel.
+ * The master ACKs at the end of each window with the last block it holds without
+ * a gap, so the server resends what it missed. A client that is not the master
+ * only listens, and takes its turn when an OACK makes it master. Once every block
+ * is in, the client ACKs the last one so the server drops it from the group.
+ * <p>
+ * If nothing arrives for a while, the client repeats the RRQ. The server then
+ * answers with its current OACK, or starts a new group if the old one has ended.
+ */
+final class MulticastReceiver {
+    private static final int SERVER_PORT = 69;
+    private static final int DEFAULT_BLOCK_SIZE = 512;
+    // Interface to join groups on, by name; by default the one that routes to the server
+    private static final String INTERFACE = System.getProperty("tftp.multicastInterface");
+
+    private final DatagramChannel control;
+    private final ByteBuffer request;
+    private final InetSocketAddress server;
+    private final ByteBuffer buffer;
+    private final ByteBuffer ack = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH);
+    private final PacketReader packet = new PacketReader();
+    private final BitSet held = new BitSet();
+    private final RetransmitTimer timer = new RetransmitTimer();
+    private final Selector selector;
+    private DatagramChannel groupChannel;
+    private MembershipKey membership;
+    private InetSocketAddress group;
+    private SocketAddress serverTid;
+    private boolean master;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int windowSize = 1;
+    private int contiguous;      // every block up to this one is held
+    private int windowEnd;       // the master ACKs once it gets this far
+    private int lastBlock = -1;  // block number of the short final block, once seen
+    private long length = -1;    // file length, known with the final block
+    private boolean complete;
+
+    private MulticastReceiver(DatagramChannel control, ByteBuffer request, InetAddress serverAddress, int requestedBlockSize)
+            throws IOException {
+        this.control = control;
+        this.request = request;
+        this.server = new InetSocketAddress(serverAddress, SERVER_PORT);
+        this.buffer = ByteBuffer.allocate(Math.max(requestedBlockSize, DEFAULT_BLOCK_SIZE) + PacketCodec.HEADER_LENGTH);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Downloads a file through the server's multicast group. Returns false, having
+     * told the server's session to stop, if the server answered without the
+     * multicast option; the caller then runs an ordinary read instead.
+     */
+    static boolean receive(InetAddress serverAddress, ByteBuffer request, Path filePath, int windowSize, int blockSize)
+            throws IOException {
+        try (DatagramChannel control = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            control.bind(new InetSocketAddress(0));
+            MulticastReceiver receiver = new MulticastReceiver(control, request, serverAddress, blockSize);
+            try {
+                return receiver.run(filePath, windowSize);
+            } finally {
+                receiver.close();
+            }
+        }
+    }
+
+    private boolean run(Path filePath, int requestedWindowSize) throws IOException {
+        control.configureBlocking(false);
+        control.register(selector, SelectionKey.OP_READ);
+        control.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(control.getOption(StandardSocketOptions.SO_RCVBUF),
+                2 * requestedWindowSize * buffer.capacity()));
+        control.send(request.duplicate(), server);
+        timer.packetSent(System.currentTimeMillis());
+
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (!complete) {
+                if (selector.select(timer.getTimeout()) == 0) {
+                    onTimeout();
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                SocketAddress from;
+                while ((from = receive(control)) != null) {
+                    if (!onControl(from, now)) {
+                        return false;
+                    }
+                }
+                while (groupChannel != null && (from = receive(groupChannel)) != null) {
+                    if (from.equals(serverTid) && packet.opcode() == PacketCodec.OP_DATA) {
+                        onData(file, now);
+                    }
+                }
+            }
+            file.truncate(length);
+        }
+        sendAck(lastBlock); // Done, the server can drop us from the group
+        return true;
+    }
+
+    private SocketAddress receive(DatagramChannel channel) throws IOException {
+        buffer.clear();
+        SocketAddress from = channel.receive(buffer);
+        if (from != null) {
+            packet.wrap(buffer.flip());
+        }
+        return from;
+    }
+
+    /**
+     * Handles an OACK or ERROR from the server. Returns false if the server will not multicast.
+     */
+    private boolean onControl(SocketAddress from, long now) throws IOException {
+        if (!((InetSocketAddress) from).getAddress().equals(server.getAddress())) {
+            return true;
+        }
+        int opcode = packet.opcode();
+        if (opcode == PacketCodec.OP_ERROR) {
+            throw new IOException("Error occurred: " + packet.errorMessage());
+        }
+        if (opcode != PacketCodec.OP_OACK) {
+            if (serverTid == null) {
+                refuse(from, "Multicast was not offered");
+                return false;
+            }
+            return true; // Stray unicast packet from an old session
+        }
+        String multicast = null;
+        while (packet.nextOption()) {
+            if (packet.optionIs("multicast")) {
+                multicast = packet.optionText();
+            } else if (packet.optionIs("blksize")) {
+                blockSize = (int) packet.optionValue();
+            } else if (packet.optionIs("windowsize")) {
+                windowSize = (int) packet.optionValue();
+            }
+        }
+        if (multicast == null) {
+            refuse(from, "Multicast was not offered");
+            return false;
+        }
+        String[] fields = multicast.split(",");
+        if (fields.length != 3) {
+            throw new IOException("Bad multicast option: " + multicast);
+        }
+        serverTid = from;
+        joinGroup(new InetSocketAddress(InetAddress.getByName(fields[0]), Integer.parseInt(fields[1])));
+        master = fields[2].equals("1");
+        timer.ackReceived(now);
+        if (master) {
+            // Tell the new session where we are, it resends from there
+            sendAck(contiguous);
+            windowEnd = contiguous + windowSize;
+            timer.packetSent(now);
+        }
+        return true;
+    }
+
+    private void onData(FileChannel file, long now) throws IOException {
+        if (packet.length() < PacketCodec.HEADER_LENGTH) {
+            return;
+        }
+        int blockNumber = packet.blockNumber();
+        if (blockNumber == 0) {
+            return;
+        }
+        timer.ackReceived(now);
+        if (!held.get(blockNumber)) {
+            int payloadLength = packet.payloadLength();
+            long position = (long) (blockNumber - 1) * blockSize;
+            ByteBuffer payload = packet.payload();
+            while (payload.hasRemaining()) {
+                file.write(payload, position + payload.position() - PacketCodec.HEADER_LENGTH);
+            }
+            held.set(blockNumber);
+            if (payloadLength < blockSize) {
+                lastBlock = blockNumber;
+                length = position + payloadLength;
+            }
+            contiguous = held.nextClearBit(1) - 1;
+        }
+        if (lastBlock > 0 && contiguous >= lastBlock) {
+            complete = true;
+            return;
+        }
+        if (master && (blockNumber >= windowEnd || blockNumber == lastBlock)) {
+            sendAck(contiguous);
+            windowEnd = contiguous + windowSize;
+            timer.packetSent(now);
+        }
+    }
+
+    private void onTimeout() throws IOException {
+        if (!timer.timedOut()) {
+            throw new IOException("Multicast download stalled with " + contiguous + " blocks in order, giving up.");
+        }
+        if (master) {
+            sendAck(contiguous);
+        } else {
+            control.send(request.duplicate(), server); // Ask again where the group is
+        }
+    }
+
+    private void joinGroup(InetSocketAddress offered) throws IOException {
+        if (offered.equals(group)) {
+            return;
+        }
+        closeGroup();
+        group = offered;
+        groupChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        groupChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        groupChannel.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(groupChannel.getOption(StandardSocketOptions.SO_RCVBUF),
+                2 * windowSize * (blockSize + PacketCodec.HEADER_LENGTH)));
+        groupChannel.bind(new InetSocketAddress(group.getPort()));
+        membership = groupChannel.join(group.getAddress(), interfaceFor(server.getAddress()));
+        groupChannel.configureBlocking(false);
+        groupChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    private static NetworkInterface interfaceFor(InetAddress serverAddress) throws IOException {
+        if (INTERFACE != null) {
+            NetworkInterface configured = NetworkInterface.getByName(INTERFACE);
+            if (configured == null) {
+                throw new IOException("No network interface named " + INTERFACE);
+            }
+            return configured;
+        }
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(serverAddress, SERVER_PORT); // Nothing is sent, this only picks the route
+            return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        }
+    }
+
+    private void sendAck(int blockNumber) throws IOException {
+        PacketCodec.encodeAck(ack, blockNumber);
+        control.send(ack, serverTid);
+    }
+
+    private void refuse(SocketAddress tid, String message) throws IOException {
+        ByteBuffer error = PacketCodec.encodeError(ByteBuffer.allocate(PacketCodec.HEADER_LENGTH + message.length() + 1),
+                PacketCodec.ERROR_OPTION_REFUSED, message);
+        control.send(error, tid);
+    }
+
+    private void closeGroup() throws IOException {
+        if (membership != null) {
+            membership.drop();
+            membership = null;
+        }
+        if (groupChannel != null) {
+            groupChannel.close();
+            groupChannel = null;
+        }
+    }
+
+    private void close() throws IOException {
+        closeGroup();
+        selector.close();
+    }
+}
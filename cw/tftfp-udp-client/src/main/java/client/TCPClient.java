@@ -1,91 +1,412 @@
-package client;
-
-import java.io.*;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Scanner;
-
-public class TCPClient {
-    private String serverAddress;
-    private int serverPort;
-
-    public TCPClient(String serverAddress, int serverPort) {
-        this.serverAddress = serverAddress;
-        this.serverPort = serverPort;
-    }
-
-    public void startClient() {
-        Scanner scanner = new Scanner(System.in);
-        try (Socket socket = new Socket(serverAddress, serverPort);
-             DataInputStream dis = new DataInputStream(socket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-
-            System.out.println("Connected to server at " + serverAddress + ":" + serverPort);
-            System.out.println("Enter command ('read' or 'write'), followed by filename:");
-
-            String command = scanner.nextLine();
-            String[] tokens = command.split(" ");
-            if (tokens.length != 2) {
-                System.out.println("Invalid command. Usage: <read/write> <filename>");
-                return;
-            }
-
-            String action = tokens[0];
-            String filename = tokens[1];
-
-            if ("read".equalsIgnoreCase(action)) {
-                dos.writeUTF("RRQ");
-                dos.writeUTF(filename);
-                receiveFile(dis, filename);
-            } else if ("write".equalsIgnoreCase(action)) {
-                dos.writeUTF("WRQ");
-                dos.writeUTF(filename);
-                sendFile(dos, filename);
-            } else {
-                System.out.println("Unknown command. Use 'read' or 'write'.");
-            }
-
-        } catch (UnknownHostException e) {
-            System.out.println("Server not found: " + e.getMessage());
-        } catch (IOException e) {
-            System.out.println("I/O Error: " + e.getMessage());
-        } finally {
-            scanner.close();
-        }
-    }
-
-    private void receiveFile(DataInputStream dis, String filename) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(filename)) {
-            int bytesRead;
-            while ((bytesRead = dis.readInt()) != -1) {
-                byte[] buffer = new byte[bytesRead];
-                dis.readFully(buffer, 0, bytesRead);
-                fos.write(buffer);
-            }
-            System.out.println("File downloaded successfully: " + filename);
-        }
-    }
-
-    private void sendFile(DataOutputStream dos, String filename) throws IOException {
-        File file = new File(filename);
-        if (!file.exists()) {
-            System.out.println("File not found: " + filename);
-            return;
-        }
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.writeInt(bytesRead);
-                dos.write(buffer, 0, bytesRead);
-            }
-            dos.writeInt(-1);
-            System.out.println("File uploaded successfully: " + filename);
-        }
-    }
-
-    public static void main(String[] args) {
-        TCPClient client = new TCPClient("localhost", 8888);
-        client.startClient();
-    }
-}
+package client;
+
+import com.aa2796.tftp.common.ChunkTransfer;
+import com.aa2796.tftp.common.CompressedFrames;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class TCPClient {
+    private static final int FRAME_SIZE = Integer.getInteger("tcp.frameSize", 1024 * 1024); // Bytes per length-prefixed frame
+    private static final int DEFAULT_CONNECTIONS = 4;
+    private static final long MIN_SEGMENT_SIZE = 4L * 1024 * 1024; // Below this a connection costs more than it adds
+    // Codec to offer the server for plain reads and writes, "deflate" or "none"
+    private static final String COMPRESSION = System.getProperty("tcp.compression", CompressedFrames.NONE);
+    private static final String PIPELINE = "PIPELINE"; // Opens a connection that carries many requests
+    private static final int END = -1; // Request id that closes a pipelined connection
+    private static final int ERROR = -2; // Server's answer in place of an id or frame length, a writeUTF reason follows
+
+    private String serverAddress;
+    private int serverPort;
+    private volatile boolean connectionFailed; // Set by the response reader; nothing more gets answered
+
+    public TCPClient(String serverAddress, int serverPort) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Runs "read" and "write" commands typed one per line over a single connection,
+     * until "quit" or the end of input. Requests go out as soon as they are read,
+     * without waiting for the answers to the ones before: a second thread reads the
+     * answers and matches each to its request by id. Piping a list of commands in
+     * therefore costs one handshake and one slow start for all of them.
+     */
+    public void startClient() {
+        Scanner scanner = new Scanner(System.in);
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort))) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket)));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket)));
+
+            System.out.println("Connected to server at " + serverAddress + ":" + serverPort);
+            System.out.println("Enter commands ('read' or 'write', followed by filename), one per line, 'quit' to finish:");
+
+            dos.writeUTF(PIPELINE);
+            BlockingQueue<Request> inFlight = new LinkedBlockingQueue<>();
+            Thread responses = new Thread(() -> readResponses(socket, dis, inFlight), "tcp-responses");
+            responses.start();
+            int nextId = 1;
+            try {
+                while (scanner.hasNextLine()) {
+                    String line = scanner.nextLine().trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if ("quit".equalsIgnoreCase(line)) {
+                        break;
+                    }
+                    String[] tokens = line.split(" ");
+                    if (tokens.length != 2) {
+                        System.out.println("Invalid command. Usage: <read/write> <filename>");
+                        continue;
+                    }
+                    boolean read = "read".equalsIgnoreCase(tokens[0]);
+                    if (!read && !"write".equalsIgnoreCase(tokens[0])) {
+                        System.out.println("Unknown command. Use 'read' or 'write'.");
+                        continue;
+                    }
+                    if (!read && !new File(tokens[1]).exists()) {
+                        System.out.println("File not found: " + tokens[1]);
+                        continue;
+                    }
+                    Request request = new Request(nextId++, read, tokens[1]);
+                    inFlight.add(request); // Before sending, the answer may come back at once
+                    if (connectionFailed) {
+                        System.out.println("Connection lost, not sending the remaining requests.");
+                        break;
+                    }
+                    sendRequest(dos, request);
+                }
+                dos.writeInt(END);
+                dos.flush();
+            } finally {
+                inFlight.add(Request.LAST);
+                responses.join();
+            }
+        } catch (UnknownHostException e) {
+            System.out.println("Server not found: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * Writes one request, and for a write the whole upload after it. A compressed
+     * upload first waits for the server to pick the codec, which holds up the
+     * requests behind it for that one round trip.
+     */
+    private void sendRequest(DataOutputStream dos, Request request) throws IOException {
+        boolean compressed = !CompressedFrames.NONE.equalsIgnoreCase(COMPRESSION);
+        dos.writeInt(request.id);
+        if (request.read) {
+            dos.writeUTF(compressed ? "RRQ_COMPRESSED" : "RRQ");
+            dos.writeUTF(request.filename);
+            if (compressed) {
+                dos.writeUTF(COMPRESSION);
+            }
+            dos.flush();
+            return;
+        }
+        dos.writeUTF(compressed ? "WRQ_COMPRESSED" : "WRQ");
+        dos.writeUTF(request.filename);
+        if (compressed) {
+            dos.writeUTF(COMPRESSION);
+            dos.flush();
+            if (!CompressedFrames.NONE.equals(request.codec.join())) {
+                try (FileChannel file = FileChannel.open(Paths.get(request.filename), StandardOpenOption.READ)) {
+                    CompressedFrames.send(file, Channels.newChannel(dos), FRAME_SIZE, null);
+                }
+                dos.flush();
+                return;
+            }
+        }
+        writeFrames(dos, request.filename);
+        dos.flush();
+    }
+
+    /**
+     * Reads the answers on a pipelined connection in request order, until the queue
+     * hands over {@link Request#LAST}. Closes the connection if an answer goes wrong,
+     * so that the sending side stops too.
+     */
+    private void readResponses(SocketChannel socket, DataInputStream dis, BlockingQueue<Request> inFlight) {
+        Request request = null;
+        try {
+            while ((request = inFlight.take()) != Request.LAST) {
+                int id = dis.readInt();
+                if (id == ERROR) {
+                    throw new IOException("Server refused the connection: " + dis.readUTF());
+                }
+                if (id != request.id) {
+                    throw new IOException("Answer " + id + " does not match request " + request.id);
+                }
+                boolean compressed = !CompressedFrames.NONE.equalsIgnoreCase(COMPRESSION);
+                if (request.read) {
+                    if (compressed && !CompressedFrames.NONE.equals(dis.readUTF())) {
+                        receiveCompressed(dis, request.filename);
+                    } else {
+                        receiveFile(dis, request.filename);
+                    }
+                    continue;
+                }
+                if (compressed) {
+                    request.codec.complete(dis.readUTF());
+                }
+                int stored = dis.readInt();
+                if (stored == ERROR) {
+                    System.out.println("Server refused upload of " + request.filename + ": " + dis.readUTF());
+                    continue;
+                }
+                if (stored != 0) {
+                    throw new IOException("Server could not store " + request.filename);
+                }
+                System.out.println("File uploaded successfully: " + request.filename);
+            }
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage());
+            connectionFailed = true;
+            // Let any upload waiting for its codec, now or later, fail on the closed socket
+            if (request != null) {
+                request.codec.complete(CompressedFrames.NONE);
+            }
+            while ((request = inFlight.poll()) != null) {
+                request.codec.complete(CompressedFrames.NONE);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already reported above
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receiveCompressed(DataInputStream dis, String filename) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CompressedFrames.receive(Channels.newChannel(dis), file, FRAME_SIZE, null);
+            System.out.println("File downloaded successfully: " + filename + " (" + COMPRESSION + ")");
+        }
+    }
+
+    private void receiveFile(DataInputStream dis, String filename) throws IOException {
+        int bytesRead = dis.readInt();
+        if (bytesRead == ERROR) {
+            // Nothing is written, so a failed download never leaves an empty file behind
+            System.out.println("Server could not send " + filename + ": " + dis.readUTF());
+            return;
+        }
+        try (FileOutputStream fos = new FileOutputStream(filename)) {
+            byte[] buffer = new byte[FRAME_SIZE];
+            for (; bytesRead != -1; bytesRead = dis.readInt()) {
+                if (bytesRead < 0 || bytesRead > CompressedFrames.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length");
+                }
+                if (bytesRead > buffer.length) {
+                    buffer = new byte[bytesRead]; // Server uses bigger frames than we do
+                }
+                dis.readFully(buffer, 0, bytesRead);
+                fos.write(buffer, 0, bytesRead);
+            }
+            System.out.println("File downloaded successfully: " + filename);
+        }
+    }
+
+    private void writeFrames(DataOutputStream dos, String filename) throws IOException {
+        try (FileInputStream fis = new FileInputStream(filename)) {
+            byte[] buffer = new byte[FRAME_SIZE];
+            int bytesRead;
+            while ((bytesRead = fis.readNBytes(buffer, 0, buffer.length)) > 0) {
+                dos.writeInt(bytesRead);
+                dos.write(buffer, 0, bytesRead);
+            }
+            dos.writeInt(-1);
+        }
+    }
+
+    /**
+     * Downloads one file as up to the given number of byte ranges, each over its own
+     * connection, written straight into its place in a file sized up front.
+     */
+    public void downloadSegmented(String filename, int connections) {
+        ExecutorService pool = null;
+        try {
+            long size = fetchRange(filename, 0, 0, null); // Zero-length range: just learn the size
+            if (size < 0) {
+                System.out.println("File not found on server: " + filename);
+                return;
+            }
+            int segments = (int) Math.max(1, Math.min(connections, size / MIN_SEGMENT_SIZE));
+            long segmentSize = (size + segments - 1) / segments;
+            long start = System.nanoTime();
+
+            pool = Executors.newFixedThreadPool(segments);
+            try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+                raf.setLength(size);
+                FileChannel file = raf.getChannel();
+                List<Future<Long>> results = new ArrayList<>();
+                for (int i = 0; i < segments; i++) {
+                    long offset = i * segmentSize;
+                    long length = Math.min(segmentSize, size - offset);
+                    results.add(pool.submit(() -> fetchRange(filename, offset, length, file)));
+                }
+                for (Future<Long> result : results) {
+                    if (result.get() != size) {
+                        throw new IOException("File changed on the server during the download");
+                    }
+                }
+            }
+
+            double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+            System.out.printf("File downloaded successfully: %s (%d bytes over %d connections, %.2f MB/s)%n",
+                    filename, size, segments, size / seconds / (1024 * 1024));
+        } catch (UnknownHostException e) {
+            System.out.println("Server not found: " + e.getMessage());
+        } catch (IOException | ExecutionException | InterruptedException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.out.println("I/O Error: " + cause.getMessage());
+            try {
+                Files.deleteIfExists(Paths.get(filename));
+            } catch (IOException ignored) {
+                // Nothing more to do, the error above is the one that matters
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Requests [offset, offset + length) of the file on a new connection and writes it
+     * at the same position in file (if not null). Returns the total file size the
+     * server reported, or -1 if it has no such file.
+     */
+    private long fetchRange(String filename, long offset, long length, FileChannel file) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
+             DataInputStream dis = new DataInputStream(Channels.newInputStream(socket))) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket)));
+            dos.writeUTF("RRQ_RANGE");
+            dos.writeUTF(filename);
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            dos.flush();
+
+            long size = dis.readLong();
+            long position = offset;
+            long end = offset + length;
+            int frameLength;
+            while ((frameLength = dis.readInt()) != -1) {
+                long frameEnd = position + frameLength;
+                if (file == null || frameEnd > end) {
+                    throw new IOException("Server sent more than the requested range");
+                }
+                while (position < frameEnd) {
+                    // Positional transfers into one channel are safe from several threads at once
+                    long transferred = file.transferFrom(socket, position, frameEnd - position);
+                    if (transferred == 0) {
+                        throw new IOException("Connection closed in the middle of a frame");
+                    }
+                    position += transferred;
+                }
+            }
+            if (size >= 0 && position != Math.min(end, size)) {
+                throw new IOException("Range at " + offset + " ended early");
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Downloads ("read") or uploads ("write") a file so that only chunks the receiving
+     * side does not already hold, or holds corrupted, are sent. Running it again after
+     * a broken transfer picks up where the last one stopped.
+     */
+    public void resumeTransfer(String action, String filename) {
+        boolean read = "read".equalsIgnoreCase(action);
+        if (!read && !Files.isRegularFile(Paths.get(filename))) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort))) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket)));
+            dos.writeUTF(read ? "RRQ_RESUME" : "WRQ_RESUME");
+            dos.writeUTF(filename);
+            dos.flush();
+
+            if (read) {
+                long received = ChunkTransfer.receive(socket, Paths.get(filename), null);
+                if (received < 0) {
+                    System.out.println("File not found on server: " + filename);
+                    return;
+                }
+                System.out.println("File downloaded successfully: " + filename + " (" + received + " bytes fetched)");
+            } else {
+                long sent = ChunkTransfer.send(socket, Paths.get(filename), null);
+                if (ChunkTransfer.readInt(socket, ByteBuffer.allocate(4)) != 0) {
+                    System.out.println("Server could not complete the upload, run it again to resume: " + filename);
+                    return;
+                }
+                System.out.println("File uploaded successfully: " + filename + " (" + sent + " bytes sent)");
+            }
+        } catch (UnknownHostException e) {
+            System.out.println("Server not found: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("I/O Error: " + e.getMessage() + ". Run the same command again to resume.");
+        }
+    }
+
+    public static void main(String[] args) {
+        TCPClient client = new TCPClient("localhost", 8888);
+        if (args.length >= 2 && "pread".equalsIgnoreCase(args[0])) {
+            // pread <filename> [connections]: segmented parallel download
+            client.downloadSegmented(args[1], args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONNECTIONS);
+        } else if (args.length == 3 && "resume".equalsIgnoreCase(args[0])) {
+            // resume <read|write> <filename>: transfer only what the other side is missing
+            client.resumeTransfer(args[1], args[2]);
+        } else {
+            client.startClient();
+        }
+    }
+
+    /**
+     * A request sent on a pipelined connection, waiting for its answer.
+     */
+    private static final class Request {
+        static final Request LAST = new Request(END, true, ""); // Tells the reader no more answers are due
+
+        final int id;
+        final boolean read;
+        final String filename;
+        final CompletableFuture<String> codec = new CompletableFuture<>(); // Server's pick, for compressed uploads
+
+        Request(int id, boolean read, String filename) {
+            this.id = id;
+            this.read = read;
+            this.filename = filename;
+        }
+    }
+}
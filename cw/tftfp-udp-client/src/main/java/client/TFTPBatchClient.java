@@ -0,0 +1,150 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves many files in one JVM. Each line of the manifest is "read|write|mread remote [local]";
+ * blank lines and lines starting with '#' are skipped. Transfers run on a fixed pool of
+ * threads, each on its own socket (and so its own TID), and a failed transfer is retried
+ * with a growing pause before it is reported. Transfers ask the server to resume, so a
+ * retry, or a rerun of the whole manifest, only moves the bytes that are still missing.
+ */
+public class TFTPBatchClient {
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final int DEFAULT_RETRIES = 2;
+    private static final int DEFAULT_WINDOW_SIZE = 8;
+    private static final int DEFAULT_BLOCK_SIZE = 1468;
+    private static final long RETRY_BACKOFF_MILLIS = 500; // Doubled after every failed attempt
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 6) {
+            System.out.println("Usage: java TFTPBatchClient [server_ip] [manifest] [concurrency] [retries] [windowsize] [blksize]");
+            return;
+        }
+
+        InetAddress serverAddress = InetAddress.getByName(args[0]);
+        List<Transfer> transfers = readManifest(Paths.get(args[1]));
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONCURRENCY;
+        int retries = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_RETRIES;
+        int windowSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_WINDOW_SIZE;
+        int blockSize = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_BLOCK_SIZE;
+
+        if (run(serverAddress, transfers, concurrency, retries, windowSize, blockSize) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs every transfer and prints a summary. Returns the number that failed.
+     */
+    static int run(InetAddress serverAddress, List<Transfer> transfers, int concurrency, int retries,
+                   int windowSize, int blockSize) throws InterruptedException {
+        AtomicLong totalBytes = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, transfers.size())));
+        long start = System.nanoTime();
+
+        for (Transfer transfer : transfers) {
+            pool.execute(() -> {
+                transfer.run(serverAddress, retries, windowSize, blockSize);
+                totalBytes.addAndGet(transfer.bytes);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        List<Transfer> failed = new ArrayList<>();
+        for (Transfer transfer : transfers) {
+            if (transfer.error != null) {
+                failed.add(transfer);
+            }
+        }
+
+        System.out.printf("%d of %d transfers succeeded, %d bytes in %.2f s (%.2f MB/s)%n",
+                transfers.size() - failed.size(), transfers.size(), totalBytes.get(), seconds,
+                totalBytes.get() / seconds / (1024 * 1024));
+        if (!failed.isEmpty()) {
+            System.out.println("Failed transfers:");
+            for (Transfer transfer : failed) {
+                System.out.println("  " + transfer.mode + " " + transfer.remoteFilename + " after "
+                        + transfer.attempts + " attempt(s): " + transfer.error);
+            }
+        }
+        return failed.size();
+    }
+
+    static List<Transfer> readManifest(Path manifest) throws IOException {
+        List<Transfer> transfers = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length < 2 || fields.length > 3
+                    || !(fields[0].equalsIgnoreCase("read") || fields[0].equalsIgnoreCase("write")
+                    || fields[0].equalsIgnoreCase("mread"))) {
+                throw new IOException("Bad manifest line " + lineNumber + ": " + line);
+            }
+            transfers.add(new Transfer(fields[0], fields[1], fields.length > 2 ? fields[2] : fields[1]));
+        }
+        return transfers;
+    }
+
+    /**
+     * One manifest entry and how it went. Only touched by the worker running it until the pool is done.
+     */
+    static final class Transfer {
+        final String mode;
+        final String remoteFilename;
+        final String localFilename;
+        int attempts;
+        long bytes;
+        String error;
+
+        Transfer(String mode, String remoteFilename, String localFilename) {
+            this.mode = mode;
+            this.remoteFilename = remoteFilename;
+            this.localFilename = localFilename;
+        }
+
+        void run(InetAddress serverAddress, int retries, int windowSize, int blockSize) {
+            long backoff = RETRY_BACKOFF_MILLIS;
+            while (true) {
+                attempts++;
+                try {
+                    // Only what crossed the network; a resumed prefix was already there
+                    bytes = TFTPClient.transfer(serverAddress, mode, remoteFilename, localFilename, windowSize, blockSize, true);
+                    error = null;
+                    System.out.println("Done " + mode + " " + remoteFilename + " (" + bytes + " bytes transferred)");
+                    return;
+                } catch (IOException e) {
+                    // Protocol failures carry a readable message, local file errors only a path
+                    error = e.getClass() == IOException.class ? e.getMessage() : e.toString();
+                }
+                if (attempts > retries) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff *= 2;
+            }
+        }
+    }
+}
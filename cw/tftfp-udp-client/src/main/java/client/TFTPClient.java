@@ -1,138 +1,467 @@
-package client;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-
-public class TFTPClient {
-    private static final int SERVER_PORT = 69;
-    private static final int TIMEOUT = 10000; // Timeout in milliseconds
-    private static final int MAX_DATA_LENGTH = 512;
-
-    public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java TFTPClient [server_ip] [mode] [filename]");
-            return;
-        }
-
-        String serverIp = args[0];
-        String mode = args[1];
-        String filename = args[2];
-
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(TIMEOUT);
-
-            InetAddress serverAddress = InetAddress.getByName(serverIp);
-
-            // Sending read or write request based on the mode
-            byte[] request = createRequest(mode, filename);
-            DatagramPacket requestPacket = new DatagramPacket(request, request.length, serverAddress, SERVER_PORT);
-            socket.send(requestPacket);
-
-            if (mode.equalsIgnoreCase("read")) {
-                receiveFile(socket, filename);
-            } else if (mode.equalsIgnoreCase("write")) {
-                sendFile(socket, serverAddress, filename);
-            } else {
-                System.out.println("Invalid mode. Use 'read' or 'write'.");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static byte[] createRequest(String mode, String filename) {
-        // Creating read or write request packet
-        byte opcode = (byte) (mode.equalsIgnoreCase("read") ? 1 : 2);
-        byte[] filenameBytes = filename.getBytes();
-        byte[] modeBytes = "octet".getBytes(); // TFTP mode is usually octet
-        byte[] request = new byte[filenameBytes.length + modeBytes.length + 4];
-
-        request[0] = 0; // Opcode
-        request[1] = opcode;
-
-        System.arraycopy(filenameBytes, 0, request, 2, filenameBytes.length);
-        request[filenameBytes.length + 2] = 0; // Zero byte after filename
-
-        System.arraycopy(modeBytes, 0, request, filenameBytes.length + 3, modeBytes.length);
-        request[request.length - 1] = 0; // Zero byte after mode
-
-        return request;
-    }
-
-    private static void receiveFile(DatagramSocket socket, String filename) throws IOException {
-        Path filePath = Paths.get(filename);
-        try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-            while (true) {
-                byte[] buffer = new byte[MAX_DATA_LENGTH + 4]; // Maximum packet size in TFTP
-                DatagramPacket dataPacket = new DatagramPacket(buffer, buffer.length);
-                socket.receive(dataPacket);
-
-                byte[] data = dataPacket.getData();
-                int opcode = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
-
-                if (opcode == 3) { // DATA packet
-                    fos.write(data, 4, dataPacket.getLength() - 4); // Write data to file
-                    sendAck(socket, dataPacket.getAddress(), dataPacket.getPort(), data[2], data[3]);
-                    if (dataPacket.getLength() < MAX_DATA_LENGTH + 4) {
-                        break; // Last packet received
-                    }
-                } else if (opcode == 5) { // ERROR packet
-                    System.out.println("Error occurred: " + new String(data, 4, dataPacket.getLength() - 4));
-                    break;
-                } else {
-                    System.out.println("Unexpected packet received.");
-                    break;
-                }
-            }
-        }
-    }
-
-    private static void sendAck(DatagramSocket socket, InetAddress address, int port, byte blockNumberHigh, byte blockNumberLow) throws IOException {
-        byte[] ack = new byte[] {0, 4, blockNumberHigh, blockNumberLow};
-        DatagramPacket ackPacket = new DatagramPacket(ack, ack.length, address, port);
-        socket.send(ackPacket);
-    }
-
-    private static void sendFile(DatagramSocket socket, InetAddress serverAddress, String filename) throws IOException {
-        Path filePath = Paths.get(filename);
-        byte[] fileData = Files.readAllBytes(filePath);
-
-        int blockNumber = 1;
-        int offset = 0;
-
-        while (offset < fileData.length) {
-            int end = Math.min(offset + MAX_DATA_LENGTH, fileData.length);
-            byte[] dataPacket = new byte[4 + (end - offset)];
-            dataPacket[0] = 0;
-            dataPacket[1] = 3; // DATA opcode
-            dataPacket[2] = (byte) (blockNumber >> 8);
-            dataPacket[3] = (byte) (blockNumber & 0xff);
-            System.arraycopy(fileData, offset, dataPacket, 4, end - offset);
-
-            DatagramPacket packet = new DatagramPacket(dataPacket, dataPacket.length, serverAddress, SERVER_PORT);
-            socket.send(packet);
-
-            // Wait for ACK
-            byte[] ackBuffer = new byte[4];
-            DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-            socket.receive(ackPacket);
-
-            int receivedBlockNumber = ((ackBuffer[2] & 0xff) << 8) | (ackBuffer[3] & 0xff);
-            if (receivedBlockNumber != blockNumber) {
-                // Handle error, resend packet or abort
-                System.err.println("Received ACK for unexpected block number: " + receivedBlockNumber);
-                return;
-            }
-
-            blockNumber++;
-            offset = end;
-        }
-
-        System.out.println("File successfully sent.");
-    }
-}
\ No newline at end of file
+package client;
+
+import com.aa2796.tftp.common.ChunkIndex;
+import com.aa2796.tftp.common.Netascii;
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.common.RetransmitTimer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class TFTPClient {
+    private static final int SERVER_PORT = 69;
+    private static final int DEFAULT_BLOCK_SIZE = 512; // Used when the server does not answer with an OACK
+    private static final int REQUESTED_BLOCK_SIZE = 1468; // Fills a 1500 byte Ethernet MTU (RFC 2348)
+    private static final int DEFAULT_WINDOW_SIZE = 8; // Blocks in flight, negotiated with the server (RFC 7440)
+    private static final int MAX_REQUEST_LENGTH = 512; // RFC 2347 limit for RRQ/WRQ, options included
+    // Transfer mode for requests, "octet" or "netascii" (text sent with CR LF line ends)
+    private static final String TRANSFER_MODE = System.getProperty("tftp.mode", "octet");
+    private static final boolean NETASCII = Netascii.isNetascii(TRANSFER_MODE);
+    // What block numbers wrap to after 65535 (-Dtftp.rollover=0 or 1), asked for with the "rollover" option if set
+    private static final int REQUESTED_ROLLOVER = Integer.getInteger("tftp.rollover", -1);
+    private static final int DEFAULT_ROLLOVER_BASE = REQUESTED_ROLLOVER == 1 ? 1 : 0;
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 6) {
+            System.out.println("Usage: java TFTPClient [server_ip] [mode] [filename] [windowsize] [blksize] [resume]");
+            return;
+        }
+
+        String serverIp = args[0];
+        String mode = args[1];
+        String filename = args[2];
+        int windowSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WINDOW_SIZE;
+        int blockSize = args.length > 4 ? Integer.parseInt(args[4]) : REQUESTED_BLOCK_SIZE;
+        boolean resume = args.length > 5 && args[5].equalsIgnoreCase("resume");
+
+        if (!mode.equalsIgnoreCase("read") && !mode.equalsIgnoreCase("write") && !mode.equalsIgnoreCase("mread")) {
+            System.out.println("Invalid mode. Use 'read', 'write' or 'mread' (multicast read).");
+            return;
+        }
+
+        try {
+            InetAddress serverAddress = InetAddress.getByName(serverIp);
+            transfer(serverAddress, mode, filename, filename, windowSize, blockSize, resume);
+            if (mode.equalsIgnoreCase("write")) {
+                System.out.println("File successfully sent.");
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs one RRQ ("read") or WRQ ("write") on a socket of its own, so every call
+     * gets a fresh TID and calls from different threads never interfere. Throws if
+     * the transfer did not complete. With resume set, the transfer continues from
+     * the bytes both sides already agree on, and a failed download keeps its
+     * partial file for the next attempt. "mread" downloads through a multicast
+     * group shared with other clients (RFC 2090), or as a plain read if the server
+     * does not offer one; it never resumes. Netascii transfers (-Dtftp.mode=netascii)
+     * never resume either. Returns the bytes that crossed the network, so a resumed
+     * prefix is not counted.
+     */
+    static long transfer(InetAddress serverAddress, String mode, String remoteFilename, String localFilename,
+                         int windowSize, int blockSize, boolean resume) throws IOException {
+        if (mode.equalsIgnoreCase("mread")) {
+            ByteBuffer request = createRequest(mode, remoteFilename, windowSize, blockSize, 0, -1, ChunkIndex.MISSING);
+            Path localPath = Paths.get(localFilename);
+            boolean received;
+            try {
+                received = MulticastReceiver.receive(serverAddress, request, localPath, windowSize, blockSize);
+            } catch (IOException e) {
+                Files.deleteIfExists(localPath);
+                throw e;
+            }
+            if (!received) {
+                return transfer(serverAddress, "read", remoteFilename, localFilename, windowSize, blockSize, resume);
+            }
+            return Files.size(localPath);
+        }
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), 2 * windowSize * (blockSize + 4)));
+            Path localPath = Paths.get(localFilename);
+
+            if (mode.equalsIgnoreCase("read")) {
+                // Offer what we already hold, the server checks it against its own copy
+                long held = resume && !NETASCII && Files.isRegularFile(localPath) ? Files.size(localPath) : -1;
+                long heldDigest = held > 0 ? ChunkIndex.digestPrefix(localPath, held) : ChunkIndex.MISSING;
+                ByteBuffer request = createRequest(mode, remoteFilename, windowSize, blockSize, 0, held, heldDigest);
+                DatagramPacket requestPacket = new DatagramPacket(request.array(), request.limit(), serverAddress, SERVER_PORT);
+                socket.send(requestPacket);
+                try {
+                    return receiveFile(socket, requestPacket, localFilename, blockSize);
+                } catch (IOException e) {
+                    // Never leave a partial download behind, unless there is something to resume
+                    if (!resume || Files.size(localPath) == 0) {
+                        Files.deleteIfExists(localPath);
+                    }
+                    throw e;
+                }
+            } else {
+                // Open the local file first so a missing one never leaves an empty file on the server
+                try (FileChannel fileChannel = FileChannel.open(localPath, StandardOpenOption.READ)) {
+                    long size = NETASCII
+                            ? Netascii.encodedLength(Netascii.of(fileChannel), fileChannel.size(), ByteBuffer.allocate(64 * 1024))
+                            : fileChannel.size();
+                    ByteBuffer request = createRequest(mode, remoteFilename, windowSize, blockSize, size,
+                            resume && !NETASCII ? 0 : -1, ChunkIndex.MISSING);
+                    DatagramPacket requestPacket = new DatagramPacket(request.array(), request.limit(), serverAddress, SERVER_PORT);
+                    socket.send(requestPacket);
+                    long sent = sendFile(socket, requestPacket, fileChannel);
+                    if (sent < 0) {
+                        // The server's partial copy is not a prefix of ours, replace it instead
+                        return transfer(serverAddress, mode, remoteFilename, localFilename, windowSize, blockSize, false);
+                    }
+                    return sent;
+                }
+            }
+        }
+    }
+
+    /**
+     * transferSize is the tsize to send: 0 on an RRQ to ask for the size, the file size on a WRQ.
+     * resumeOffset is -1 to leave out the resume options; resumeDigest is only sent if it is not -1.
+     */
+    private static ByteBuffer createRequest(String mode, String filename, int windowSize, int blockSize,
+                                            long transferSize, long resumeOffset, long resumeDigest) {
+        // Creating read or write request packet
+        int opcode = mode.equalsIgnoreCase("write") ? PacketCodec.OP_WRQ : PacketCodec.OP_RRQ;
+        ByteBuffer request = PacketCodec.beginRequest(ByteBuffer.allocate(MAX_REQUEST_LENGTH), opcode, filename, TRANSFER_MODE);
+        if (blockSize != DEFAULT_BLOCK_SIZE) {
+            PacketCodec.putOption(request, "blksize", blockSize);
+        }
+        if (windowSize > 1) {
+            PacketCodec.putOption(request, "windowsize", windowSize);
+        }
+        PacketCodec.putOption(request, "tsize", transferSize); // RFC 2349
+        if (REQUESTED_ROLLOVER == 0 || REQUESTED_ROLLOVER == 1) {
+            PacketCodec.putOption(request, "rollover", REQUESTED_ROLLOVER);
+        }
+        if (mode.equalsIgnoreCase("mread")) {
+            PacketCodec.putOption(request, "multicast", ""); // RFC 2090
+        }
+        if (resumeOffset >= 0) {
+            PacketCodec.putOption(request, "resume", resumeOffset);
+            if (resumeDigest != ChunkIndex.MISSING) {
+                PacketCodec.putOption(request, "resumecrc", resumeDigest);
+            }
+        }
+        return request.flip();
+    }
+
+    // Returns the file bytes received, after any resumed prefix
+    private static long receiveFile(DatagramSocket socket, DatagramPacket requestPacket, String filename, int requestedBlockSize) throws IOException {
+        Path filePath = Paths.get(filename);
+        int windowSize = 1;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int expectedBlock = 1; // Counted from the start, the wire number wraps at 65535
+        int rolloverBase = DEFAULT_ROLLOVER_BASE;
+        long startOffset = 0; // Where block 1 goes, beyond 0 only if the server agreed to resume
+        long transferSize = -1; // File size from the OACK, if the server sent tsize
+        int serverPort = -1; // Server TID, known once it first answers
+        long written = 0; // File bytes the blocks so far came to, after netascii decoding
+        Netascii.Decoder decoder = NETASCII ? new Netascii.Decoder() : null;
+        ByteBuffer decoded = null;
+        RetransmitTimer timer = new RetransmitTimer();
+        timer.packetSent(System.currentTimeMillis());
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[Math.max(requestedBlockSize, DEFAULT_BLOCK_SIZE) + 4]; // Largest packet the server may send
+            DatagramPacket dataPacket = new DatagramPacket(buffer, buffer.length);
+            ByteBuffer received = ByteBuffer.wrap(buffer);
+            PacketReader packet = new PacketReader();
+            ByteBuffer ack = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH);
+            DatagramPacket ackPacket = new DatagramPacket(ack.array(), ack.capacity(), requestPacket.getAddress(), SERVER_PORT);
+            while (true) {
+                dataPacket.setLength(buffer.length);
+                socket.setSoTimeout((int) timer.getTimeout());
+                try {
+                    socket.receive(dataPacket);
+                } catch (SocketTimeoutException e) {
+                    if (!timer.timedOut()) {
+                        throw new IOException("Server stopped responding, giving up.");
+                    }
+                    // Repeat the request, or tell the server where we are so it resends from there
+                    if (serverPort < 0) {
+                        socket.send(requestPacket);
+                    } else {
+                        sendAck(socket, ackPacket, ack, expectedBlock - 1, rolloverBase);
+                    }
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                if (serverPort < 0 && dataPacket.getAddress().equals(requestPacket.getAddress())) {
+                    serverPort = dataPacket.getPort(); // The first answer fixes the server's TID
+                    ackPacket.setPort(serverPort);
+                } else if (!fromServer(socket, dataPacket, requestPacket.getAddress(), serverPort)) {
+                    continue;
+                }
+                received.clear().limit(dataPacket.getLength());
+                packet.wrap(received);
+                int opcode = packet.opcode();
+
+                if (opcode == PacketCodec.OP_OACK) { // Confirm the negotiated options with ACK 0
+                    while (packet.nextOption()) {
+                        if (packet.optionIs("windowsize")) {
+                            windowSize = (int) packet.optionValue();
+                        } else if (packet.optionIs("blksize")) {
+                            blockSize = (int) packet.optionValue();
+                        } else if (packet.optionIs("resume")) {
+                            startOffset = Math.max(0, packet.optionValue());
+                        } else if (packet.optionIs("tsize")) {
+                            transferSize = packet.optionValue();
+                        } else if (packet.optionIs("rollover")) {
+                            rolloverBase = packet.optionValue() == 1 ? 1 : 0;
+                        }
+                    }
+                    if (transferSize > startOffset) {
+                        reserve(socket, ackPacket, filePath, transferSize - startOffset);
+                    }
+                    timer.ackReceived(now);
+                    sendAck(socket, ackPacket, ack, 0, rolloverBase);
+                    timer.packetSent(now);
+                } else if (opcode == PacketCodec.OP_DATA) {
+                    if (packet.length() < PacketCodec.HEADER_LENGTH) {
+                        continue; // Truncated, let the timer recover it
+                    }
+                    int blockNumber = packet.blockNumber();
+                    if (blockNumber != PacketCodec.wireBlock(expectedBlock, rolloverBase)) {
+                        // Lost or duplicate block, ACK the last one we have so the server resends from there
+                        sendAck(socket, ackPacket, ack, expectedBlock - 1, rolloverBase);
+                        continue;
+                    }
+                    timer.ackReceived(now);
+                    if (expectedBlock == 1) {
+                        file.truncate(startOffset); // Drop whatever the server did not vouch for
+                        if (transferSize > startOffset) {
+                            file.write(ByteBuffer.allocate(1), transferSize - 1); // Blocks now land inside the file
+                        }
+                    }
+                    boolean lastBlock = packet.payloadLength() < blockSize;
+                    long position = startOffset + written;
+                    ByteBuffer payload = packet.payload();
+                    if (decoder != null) {
+                        if (decoded == null) {
+                            decoded = ByteBuffer.allocate(blockSize + 1); // The block size is settled by now
+                        }
+                        decoder.decode(payload, decoded.clear(), lastBlock);
+                        payload = decoded.flip();
+                    }
+                    int length = payload.remaining();
+                    while (payload.hasRemaining()) {
+                        position += file.write(payload, position);
+                    }
+                    written += length;
+                    if (lastBlock) {
+                        file.truncate(position); // In case tsize promised more
+                    }
+                    if (lastBlock || expectedBlock % windowSize == 0) {
+                        sendAck(socket, ackPacket, ack, expectedBlock, rolloverBase);
+                        timer.packetSent(now);
+                    }
+                    expectedBlock++;
+                    if (lastBlock) {
+                        break; // Last packet received
+                    }
+                } else if (opcode == PacketCodec.OP_ERROR) {
+                    throw new IOException("Error occurred: " + packet.errorMessage());
+                } else {
+                    throw new IOException("Unexpected packet received.");
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Answers the OACK with ERROR 3 instead of ACK 0 if the rest of the download cannot fit on disk.
+     */
+    private static void reserve(DatagramSocket socket, DatagramPacket serverPacket, Path filePath, long needed)
+            throws IOException {
+        long usable = Files.getFileStore(filePath.toAbsolutePath().getParent()).getUsableSpace();
+        if (needed > usable) {
+            ByteBuffer error = PacketCodec.encodeError(ByteBuffer.allocate(MAX_REQUEST_LENGTH),
+                    PacketCodec.ERROR_DISK_FULL, "Not enough disk space");
+            socket.send(new DatagramPacket(error.array(), error.limit(), serverPacket.getAddress(), serverPacket.getPort()));
+            throw new IOException("Not enough disk space: " + needed + " bytes needed, " + usable + " available");
+        }
+    }
+
+    /**
+     * True if the packet came from the server's TID. Anything else is answered with
+     * ERROR 5 and dropped, as RFC 1350 asks, without disturbing the transfer.
+     */
+    private static boolean fromServer(DatagramSocket socket, DatagramPacket received, InetAddress serverAddress,
+                                      int serverPort) throws IOException {
+        if (received.getPort() == serverPort && received.getAddress().equals(serverAddress)) {
+            return true;
+        }
+        ByteBuffer error = PacketCodec.encodeError(ByteBuffer.allocate(MAX_REQUEST_LENGTH),
+                PacketCodec.ERROR_UNKNOWN_TID, "Unknown transfer ID");
+        socket.send(new DatagramPacket(error.array(), error.limit(), received.getAddress(), received.getPort()));
+        return false;
+    }
+
+    // Re-encodes the one ACK packet of a transfer in place; blockNumber counts from the start of the transfer
+    private static void sendAck(DatagramSocket socket, DatagramPacket ackPacket, ByteBuffer ack, int blockNumber,
+                                int rolloverBase) throws IOException {
+        PacketCodec.encodeAck(ack, PacketCodec.wireBlock(blockNumber, rolloverBase));
+        socket.send(ackPacket);
+    }
+
+    /**
+     * Returns the bytes sent after the agreed resume point, or -1, having refused
+     * the OACK, if the server offered to resume from data that does not match the
+     * start of our file.
+     */
+    private static long sendFile(DatagramSocket socket, DatagramPacket requestPacket, FileChannel fileChannel) throws IOException {
+        InetAddress serverAddress = requestPacket.getAddress();
+        RetransmitTimer timer = new RetransmitTimer();
+        timer.packetSent(System.currentTimeMillis());
+
+        // The server answers the WRQ with ACK 0 or OACK from the TID used for the rest of the transfer
+        byte[] ackBuffer = new byte[DEFAULT_BLOCK_SIZE + 4];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+        ByteBuffer received = ByteBuffer.wrap(ackBuffer);
+        PacketReader packet = new PacketReader();
+        while (true) {
+            ackPacket.setLength(ackBuffer.length);
+            socket.setSoTimeout((int) timer.getTimeout());
+            try {
+                socket.receive(ackPacket);
+                if (ackPacket.getAddress().equals(serverAddress)) {
+                    break;
+                }
+                fromServer(socket, ackPacket, serverAddress, -1); // Refused, whatever its port
+            } catch (SocketTimeoutException e) {
+                if (!timer.timedOut()) {
+                    throw new IOException("No answer to write request.");
+                }
+                socket.send(requestPacket);
+            }
+        }
+        timer.ackReceived(System.currentTimeMillis());
+        packet.wrap(received.clear().limit(ackPacket.getLength()));
+        int windowSize = 1;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        long startOffset = 0;
+        long startDigest = ChunkIndex.MISSING;
+        int rolloverBase = DEFAULT_ROLLOVER_BASE;
+        if (packet.opcode() == PacketCodec.OP_OACK) {
+            while (packet.nextOption()) {
+                if (packet.optionIs("windowsize")) {
+                    windowSize = (int) packet.optionValue();
+                } else if (packet.optionIs("blksize")) {
+                    blockSize = (int) packet.optionValue();
+                } else if (packet.optionIs("resume")) {
+                    startOffset = Math.max(0, packet.optionValue());
+                } else if (packet.optionIs("resumecrc")) {
+                    startDigest = packet.optionValue();
+                } else if (packet.optionIs("rollover")) {
+                    rolloverBase = packet.optionValue() == 1 ? 1 : 0;
+                }
+            }
+        } else if (packet.opcode() == PacketCodec.OP_ERROR) {
+            throw new IOException("Server refused write request: " + packet.errorMessage());
+        } else if (packet.opcode() != PacketCodec.OP_ACK) {
+            throw new IOException("Server refused write request.");
+        }
+        int serverPort = ackPacket.getPort();
+
+        long fileSize = fileChannel.size();
+        if (startOffset > 0 && (startOffset > fileSize
+                || ChunkIndex.digest(fileChannel, 0, startOffset, ByteBuffer.allocate(64 * 1024)) != startDigest)) {
+            ByteBuffer error = PacketCodec.encodeError(ByteBuffer.allocate(MAX_REQUEST_LENGTH),
+                    PacketCodec.ERROR_OPTION_REFUSED, "Resume point does not match");
+            socket.send(new DatagramPacket(error.array(), error.limit(), serverAddress, serverPort));
+            return -1;
+        }
+        Netascii.Encoder encoder = null;
+        if (NETASCII) {
+            Netascii.Source source = Netascii.of(fileChannel);
+            encoder = new Netascii.Encoder(source, blockSize, windowSize);
+            fileSize = Netascii.encodedLength(source, fileSize, ByteBuffer.allocate(64 * 1024));
+        }
+        int blockCount;
+        try {
+            blockCount = Math.toIntExact((fileSize - startOffset) / blockSize + 1);
+        } catch (ArithmeticException e) {
+            ByteBuffer error = PacketCodec.encodeError(ByteBuffer.allocate(MAX_REQUEST_LENGTH),
+                    PacketCodec.ERROR_NOT_DEFINED, "File too large for the block size");
+            socket.send(new DatagramPacket(error.array(), error.limit(), serverAddress, serverPort));
+            throw new IOException("File too large for " + blockSize + "-byte blocks");
+        }
+        int base = 1; // Oldest unacknowledged block
+        int nextBlock = 1;
+        // Blocks are read from disk straight into one reusable packet, never the whole file
+        ByteBuffer data = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH + blockSize);
+        DatagramPacket dataPacket = new DatagramPacket(data.array(), data.capacity(), serverAddress, serverPort);
+
+        while (base <= blockCount) {
+            // Fill the window
+            while (nextBlock < base + windowSize && nextBlock <= blockCount) {
+                PacketCodec.beginData(data, PacketCodec.wireBlock(nextBlock, rolloverBase));
+                if (encoder != null) {
+                    encoder.read(nextBlock, data);
+                } else {
+                    long offset = startOffset + (long) (nextBlock - 1) * blockSize;
+                    int length = (int) Math.min(blockSize, fileSize - offset);
+                    data.limit(PacketCodec.HEADER_LENGTH + length);
+                    while (data.hasRemaining()) {
+                        if (fileChannel.read(data, offset + data.position() - PacketCodec.HEADER_LENGTH) < 0) {
+                            break;
+                        }
+                    }
+                }
+
+                dataPacket.setLength(data.position());
+                socket.send(dataPacket);
+                timer.packetSent(System.currentTimeMillis());
+                nextBlock++;
+            }
+
+            // Wait for ACK, going back to the oldest unacknowledged block when the timer expires
+            ackPacket.setLength(ackBuffer.length);
+            socket.setSoTimeout((int) timer.getTimeout());
+            try {
+                socket.receive(ackPacket);
+            } catch (SocketTimeoutException e) {
+                if (!timer.timedOut()) {
+                    throw new IOException("Server stopped acknowledging at block " + base + ", giving up.");
+                }
+                nextBlock = base;
+                continue;
+            }
+            if (!fromServer(socket, ackPacket, serverAddress, serverPort)) {
+                continue;
+            }
+            packet.wrap(received.clear().limit(ackPacket.getLength()));
+            if (packet.opcode() == PacketCodec.OP_ERROR) {
+                throw new IOException("Error occurred: " + packet.errorMessage());
+            }
+            if (packet.length() < PacketCodec.HEADER_LENGTH) {
+                continue;
+            }
+
+            int receivedBlockNumber = packet.blockNumber();
+            int acked = PacketCodec.unwrapBlock(receivedBlockNumber, base, rolloverBase);
+            if (acked < 0 || acked >= nextBlock) {
+                continue; // Stale or duplicate ACK
+            }
+            timer.ackReceived(System.currentTimeMillis());
+            base = acked + 1;
+            nextBlock = base; // A partial ACK means the server lost something, resend from there
+        }
+        return fileSize - startOffset;
+    }
+}
@@ -0,0 +1,109 @@
+package com.aa2796.tftp.bench;
+
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+import com.aa2796.tftp.server.TransferOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet encode/decode on the hot path: DATA and ACK in both directions, plus
+ * the request parsing done by RequestHandler for every RRQ/WRQ. The steady-state
+ * DATA/ACK benchmarks should show gc.alloc.rate.norm at 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"512", "1468", "65464"})
+    public int blockSize;
+
+    private ByteBuffer payload;
+    private ByteBuffer dataPacket;
+    private ByteBuffer ackPacket;
+    private ByteBuffer receivedData;
+    private ByteBuffer receivedAck;
+    private ByteBuffer request;
+    private final PacketReader reader = new PacketReader();
+    private InetAddress client;
+    private int blockNumber;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = new byte[blockSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        payload = ByteBuffer.allocateDirect(blockSize).put(bytes).flip();
+        dataPacket = ByteBuffer.allocateDirect(PacketCodec.HEADER_LENGTH + blockSize);
+        ackPacket = ByteBuffer.allocateDirect(PacketCodec.HEADER_LENGTH);
+
+        receivedData = ByteBuffer.allocateDirect(PacketCodec.HEADER_LENGTH + blockSize);
+        PacketCodec.beginData(receivedData, 42).put(payload.duplicate()).flip();
+        receivedAck = PacketCodec.encodeAck(ByteBuffer.allocateDirect(PacketCodec.HEADER_LENGTH), 42);
+
+        request = PacketCodec.beginRequest(ByteBuffer.allocateDirect(512), PacketCodec.OP_RRQ, "big.bin", "octet");
+        PacketCodec.putOption(request, "blksize", blockSize);
+        PacketCodec.putOption(request, "windowsize", 8);
+        request.flip();
+        client = InetAddress.getLoopbackAddress();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeData() {
+        PacketCodec.beginData(dataPacket, ++blockNumber);
+        payload.rewind();
+        return dataPacket.put(payload).flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeAck() {
+        return PacketCodec.encodeAck(ackPacket, ++blockNumber);
+    }
+
+    @Benchmark
+    public void decodeData(Blackhole bh) {
+        receivedData.rewind();
+        reader.wrap(receivedData);
+        bh.consume(reader.opcode());
+        bh.consume(reader.blockNumber());
+        bh.consume(reader.payload());
+    }
+
+    @Benchmark
+    public void decodeAck(Blackhole bh) {
+        receivedAck.rewind();
+        reader.wrap(receivedAck);
+        bh.consume(reader.opcode());
+        bh.consume(reader.blockNumber());
+    }
+
+    /**
+     * Opcode dispatch and option negotiation for a new request, as done on the listening socket.
+     */
+    @Benchmark
+    public TransferOptions parseRequest() {
+        request.rewind();
+        reader.wrap(request);
+        if (reader.opcode() != PacketCodec.OP_RRQ) {
+            throw new IllegalStateException("Not an RRQ");
+        }
+        return TransferOptions.parse(reader, client);
+    }
+}
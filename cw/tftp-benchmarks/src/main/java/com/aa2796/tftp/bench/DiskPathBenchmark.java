@@ -0,0 +1,182 @@
+package com.aa2796.tftp.bench;
+
+import com.aa2796.tftp.server.BlockCache;
+import com.aa2796.tftp.server.BlockReader;
+import com.aa2796.tftp.server.BlockWriter;
+import com.aa2796.tftp.common.PacketCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The server's disk paths. Reads walk a file block by block into a DATA packet
+ * the way ReadSession does, once per BlockReader mode; the mode is fixed when the
+ * reader is opened, so positional, mapped and cached reads each get a fork with
+ * their own tftp.mmapThreshold (mapped files skip the cache). Writes push a whole upload through BlockWriter.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiskPathBenchmark {
+
+    @State(Scope.Thread)
+    public static class ReadState {
+        @Param({"1048576", "67108864"})
+        public long fileSize;
+
+        @Param({"512", "1468", "65464"})
+        public int blockSize;
+
+        Path file;
+        BlockReader reader;
+        BlockReader cachedReader;
+        ByteBuffer packet;
+        long position;
+        int blockNumber;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            file = createRandomFile(fileSize);
+            reader = new BlockReader(file);
+            cachedReader = new BlockReader(file, new BlockCache(fileSize + BlockCache.CHUNK_SIZE));
+            packet = ByteBuffer.allocateDirect(PacketCodec.HEADER_LENGTH + blockSize);
+        }
+
+        ByteBuffer nextBlock(BlockReader from) throws IOException {
+            PacketCodec.beginData(packet, ++blockNumber);
+            from.read(position, packet, blockSize);
+            position += blockSize;
+            if (position >= fileSize) {
+                position = 0;
+            }
+            return packet.flip();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            reader.close();
+            cachedReader.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WriteState {
+        @Param({"1048576", "67108864"})
+        public long fileSize;
+
+        @Param({"512", "1468", "65464"})
+        public int blockSize;
+
+        Path directory;
+        Path target;
+        ByteBuffer block;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("tftp-bench");
+            byte[] bytes = new byte[blockSize];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            block = ByteBuffer.allocateDirect(blockSize).put(bytes).flip();
+        }
+
+        @Setup(Level.Invocation)
+        public void newTarget() {
+            target = directory.resolve("upload.bin");
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteTarget() throws IOException {
+            Files.deleteIfExists(target);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Fork(value = 1, jvmArgsAppend = "-Dtftp.mmapThreshold=9223372036854775807")
+    public ByteBuffer readPositional(ReadState state) throws IOException {
+        return state.nextBlock(state.reader);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Fork(value = 1, jvmArgsAppend = "-Dtftp.mmapThreshold=0")
+    public ByteBuffer readMapped(ReadState state) throws IOException {
+        return state.nextBlock(state.reader);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Fork(value = 1, jvmArgsAppend = "-Dtftp.mmapThreshold=9223372036854775807")
+    public ByteBuffer readCached(ReadState state) throws IOException {
+        return state.nextBlock(state.cachedReader);
+    }
+
+    /**
+     * One complete upload: every block in order, then the final flush.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void writeFile(WriteState state) throws IOException {
+        try (BlockWriter writer = new BlockWriter(state.target)) {
+            for (long position = 0; position < state.fileSize; position += state.blockSize) {
+                state.block.rewind();
+                writer.write(position, state.block);
+            }
+            writer.complete();
+        }
+    }
+
+    static Path createRandomFile(long size) throws IOException {
+        Path file = Files.createTempFile("tftp-bench", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                ThreadLocalRandom.current().nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Deletes a scratch directory with everything the server left in it,
+     * chunk index sidecars included.
+     */
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
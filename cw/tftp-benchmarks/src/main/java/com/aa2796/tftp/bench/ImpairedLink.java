@@ -0,0 +1,159 @@
+package com.aa2796.tftp.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One direction of an impaired network path. Every submitted packet gets a
+ * delivery time from the bandwidth cap (its serialization behind what is
+ * already queued), the latency and a random jitter. One thread hands packets
+ * to their {@link Delivery} in delivery-time order, so jitter and "reorder"
+ * let later packets overtake earlier ones.
+ * <p>
+ * All random choices are made under one lock in submission order from a seeded
+ * Random, so the same traffic meets the same losses on every run. An ordered
+ * link (for TCP streams) never drops, duplicates or reorders. It blocks the
+ * submitter when its queue is full instead of tail-dropping.
+ */
+final class ImpairedLink implements Closeable {
+    /**
+     * Puts one packet on the wire at its delivery time. Called on the link's thread.
+     */
+    interface Delivery {
+        void deliver() throws IOException;
+    }
+
+    private final Impairment impairment;
+    private final boolean ordered;
+    private final Random random;
+    private final DelayQueue<Scheduled> queue = new DelayQueue<>();
+    private final Thread sender;
+    private long nextFreeNanos;   // when the capped link finishes sending what is queued
+    private long lastReleaseNanos;
+    private long queuedBytes;
+    private long sequence;
+    private volatile boolean closed;
+
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong duplicated = new AtomicLong();
+    final AtomicLong reordered = new AtomicLong();
+
+    ImpairedLink(String name, Impairment impairment, boolean ordered) {
+        this.impairment = impairment;
+        this.ordered = ordered;
+        this.random = new Random(impairment.seed);
+        this.sender = new Thread(this::run, name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Schedules a packet of the given size. Returns false if it was dropped.
+     */
+    boolean submit(int size, Delivery delivery) throws InterruptedException {
+        synchronized (this) {
+            if (ordered) {
+                while (queuedBytes > 0 && queuedBytes + size > impairment.queueBytes && !closed) {
+                    wait();
+                }
+            } else if (random.nextDouble() < impairment.loss
+                    || (impairment.bytesPerSecond > 0 && queuedBytes + size > impairment.queueBytes)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            long now = System.nanoTime();
+            long release = now;
+            if (impairment.bytesPerSecond > 0) {
+                nextFreeNanos = Math.max(now, nextFreeNanos) + size * 1_000_000_000L / impairment.bytesPerSecond;
+                release = nextFreeNanos;
+            }
+            double delayMillis = impairment.latencyMillis;
+            if (impairment.jitterMillis > 0) {
+                delayMillis += (random.nextDouble() * 2 - 1) * impairment.jitterMillis;
+            }
+            if (!ordered && random.nextDouble() < impairment.reorder) {
+                delayMillis += impairment.reorderDelayMillis;
+                reordered.incrementAndGet();
+            }
+            release += (long) (Math.max(0, delayMillis) * 1_000_000);
+            if (ordered) {
+                release = Math.max(release, lastReleaseNanos);
+                lastReleaseNanos = release;
+            }
+            queuedBytes += size;
+            queue.put(new Scheduled(release, sequence++, size, delivery));
+            if (!ordered && random.nextDouble() < impairment.duplicate) {
+                duplicated.incrementAndGet();
+                queue.put(new Scheduled(release, sequence++, 0, delivery));
+            }
+            return true;
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            Scheduled next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                next.delivery.deliver();
+                delivered.incrementAndGet();
+            } catch (IOException e) {
+                // The endpoint went away; its packets just vanish, like on a real network
+            }
+            synchronized (this) {
+                queuedBytes -= next.size;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        sender.interrupt();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "delivered=" + delivered + " dropped=" + dropped + " duplicated=" + duplicated + " reordered=" + reordered;
+    }
+
+    private static final class Scheduled implements Delayed {
+        final long releaseNanos;
+        final long sequence;
+        final int size;
+        final Delivery delivery;
+
+        Scheduled(long releaseNanos, long sequence, int size, Delivery delivery) {
+            this.releaseNanos = releaseNanos;
+            this.sequence = sequence;
+            this.size = size;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(releaseNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Scheduled that = (Scheduled) other;
+            int byTime = Long.compare(releaseNanos, that.releaseNanos);
+            return byTime != 0 ? byTime : Long.compare(sequence, that.sequence);
+        }
+    }
+}
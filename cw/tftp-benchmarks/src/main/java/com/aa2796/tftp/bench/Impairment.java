@@ -0,0 +1,119 @@
+package com.aa2796.tftp.bench;
+
+/**
+ * What an {@link ImpairedLink} does to the traffic in one direction. Parsed from
+ * a spec such as "latency=20;jitter=5;loss=0.01;rate=1250000". Keys are
+ * separated by ';', ',' or spaces, and any key left out takes the value below.
+ * <ul>
+ * <li>latency, jitter: one-way delay and its uniform +/- spread, in milliseconds</li>
+ * <li>loss, dup, reorder: probability (0..1) that a packet is dropped, sent twice, or held back</li>
+ * <li>reorderDelay: how long a reordered packet is held back, in milliseconds (default 10)</li>
+ * <li>rate: bandwidth cap in bytes per second, 0 for none</li>
+ * <li>queue: bytes that may wait for the capped link before packets are tail-dropped (default 256 KB)</li>
+ * <li>seed: seed for the random choices, so a run can be repeated exactly (default 1)</li>
+ * </ul>
+ */
+public final class Impairment {
+    public static final Impairment NONE = new Impairment(0, 0, 0, 0, 0, 10, 0, 256 * 1024, 1);
+
+    final double latencyMillis;
+    final double jitterMillis;
+    final double loss;
+    final double duplicate;
+    final double reorder;
+    final double reorderDelayMillis;
+    final long bytesPerSecond;
+    final long queueBytes;
+    final long seed;
+
+    public Impairment(double latencyMillis, double jitterMillis, double loss, double duplicate, double reorder,
+                      double reorderDelayMillis, long bytesPerSecond, long queueBytes, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.loss = loss;
+        this.duplicate = duplicate;
+        this.reorder = reorder;
+        this.reorderDelayMillis = reorderDelayMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.queueBytes = queueBytes;
+        this.seed = seed;
+    }
+
+    public static Impairment parse(String spec) {
+        double latency = NONE.latencyMillis;
+        double jitter = NONE.jitterMillis;
+        double loss = NONE.loss;
+        double duplicate = NONE.duplicate;
+        double reorder = NONE.reorder;
+        double reorderDelay = NONE.reorderDelayMillis;
+        long rate = NONE.bytesPerSecond;
+        long queue = NONE.queueBytes;
+        long seed = NONE.seed;
+        if (spec == null || spec.isBlank() || spec.equalsIgnoreCase("none")) {
+            return NONE;
+        }
+        for (String setting : spec.trim().split("[;,\\s]+")) {
+            int equals = setting.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected key=value, got '" + setting + "'");
+            }
+            String key = setting.substring(0, equals).trim();
+            String value = setting.substring(equals + 1).trim();
+            switch (key) {
+                case "latency":
+                    latency = Double.parseDouble(value);
+                    break;
+                case "jitter":
+                    jitter = Double.parseDouble(value);
+                    break;
+                case "loss":
+                    loss = probability(key, value);
+                    break;
+                case "dup":
+                    duplicate = probability(key, value);
+                    break;
+                case "reorder":
+                    reorder = probability(key, value);
+                    break;
+                case "reorderDelay":
+                    reorderDelay = Double.parseDouble(value);
+                    break;
+                case "rate":
+                    rate = Long.parseLong(value);
+                    break;
+                case "queue":
+                    queue = Long.parseLong(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown impairment '" + key + "'");
+            }
+        }
+        return new Impairment(latency, jitter, loss, duplicate, reorder, reorderDelay, rate, queue, seed);
+    }
+
+    private static double probability(String key, String value) {
+        double probability = Double.parseDouble(value);
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException(key + " must be between 0 and 1, got " + value);
+        }
+        return probability;
+    }
+
+    /**
+     * Same settings with another seed, so the two directions of a proxy make different choices.
+     */
+    public Impairment withSeed(long seed) {
+        return new Impairment(latencyMillis, jitterMillis, loss, duplicate, reorder, reorderDelayMillis,
+                bytesPerSecond, queueBytes, seed);
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + latencyMillis + ";jitter=" + jitterMillis + ";loss=" + loss + ";dup=" + duplicate
+                + ";reorder=" + reorder + ";reorderDelay=" + reorderDelayMillis + ";rate=" + bytesPerSecond
+                + ";queue=" + queueBytes + ";seed=" + seed;
+    }
+}
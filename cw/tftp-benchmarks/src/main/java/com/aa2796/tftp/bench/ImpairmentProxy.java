@@ -0,0 +1,55 @@
+package com.aa2796.tftp.bench;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Runs an impairment proxy on its own, in front of a real server, so the
+ * ordinary clients can be tried on a bad network:
+ * <pre>
+ * java -cp benchmarks.jar com.aa2796.tftp.bench.ImpairmentProxy udp 69 localhost:6969 "latency=20;jitter=5;loss=0.01"
+ * </pre>
+ * The clients always send to port 69, so put the server on another port and the
+ * proxy on 69. The second spec, if given, is used for the server-to-client
+ * direction instead of the first. Statistics are printed every 10 seconds.
+ */
+public class ImpairmentProxy {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !(args[0].equals("udp") || args[0].equals("tcp"))) {
+            System.out.println("Usage: ImpairmentProxy <udp|tcp> <listenPort> <host:port> [spec] [downstreamSpec]");
+            return;
+        }
+        int listenPort = Integer.parseInt(args[1]);
+        int colon = args[2].lastIndexOf(':');
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(args[2].substring(0, colon)),
+                Integer.parseInt(args[2].substring(colon + 1)));
+        Impairment upstream = Impairment.parse(args.length > 3 ? args[3] : "none");
+        Impairment downstream = args.length > 4 ? Impairment.parse(args[4]) : upstream.withSeed(upstream.seed + 1);
+
+        System.out.println("Forwarding " + args[0] + " port " + listenPort + " to " + server);
+        System.out.println("To server: " + upstream);
+        System.out.println("To client: " + downstream);
+        if (args[0].equals("udp")) {
+            UdpImpairmentProxy proxy = new UdpImpairmentProxy(listenPort, server, upstream, downstream);
+            closeOnExit(proxy);
+            while (true) {
+                Thread.sleep(10_000);
+                System.out.println(proxy.statistics());
+            }
+        } else {
+            closeOnExit(new TcpImpairmentProxy(listenPort, server, upstream, downstream));
+            Thread.currentThread().join();
+        }
+    }
+
+    private static void closeOnExit(Closeable proxy) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                proxy.close();
+            } catch (Exception e) {
+                // Exiting anyway
+            }
+        }));
+    }
+}
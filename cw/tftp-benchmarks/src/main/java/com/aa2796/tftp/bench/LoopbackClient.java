@@ -0,0 +1,198 @@
+package com.aa2796.tftp.bench;
+
+import com.aa2796.tftp.common.PacketCodec;
+import com.aa2796.tftp.common.PacketReader;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal windowed TFTP client for loopback benchmarks. Downloads are counted
+ * and discarded and uploads come from memory, so the numbers measure the server
+ * and the network stack rather than the client's disk.
+ */
+final class LoopbackClient {
+    private static final int TIMEOUT_MILLIS = 200;
+    private static final int MAX_RETRIES = 25;
+
+    private final DatagramSocket socket;
+    private final InetAddress server;
+    private final int port;
+    private final int blockSize;
+    private final int windowSize;
+    private final ByteBuffer send;
+    private final ByteBuffer receive;
+    private final DatagramPacket sendPacket;
+    private final DatagramPacket receivePacket;
+    private final PacketReader packet = new PacketReader();
+
+    LoopbackClient(int port, int blockSize, int windowSize) throws IOException {
+        this.socket = new DatagramSocket();
+        this.server = InetAddress.getLoopbackAddress();
+        this.port = port;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+        this.send = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH + Math.max(blockSize, 512));
+        this.receive = ByteBuffer.allocate(PacketCodec.HEADER_LENGTH + Math.max(blockSize, 512));
+        this.sendPacket = new DatagramPacket(send.array(), 0, server, port);
+        this.receivePacket = new DatagramPacket(receive.array(), receive.capacity());
+        socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), 2 * windowSize * (blockSize + 4)));
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Downloads filename and returns the number of bytes received.
+     */
+    long read(String filename) throws IOException {
+        sendRequest(PacketCodec.OP_RRQ, filename);
+        long bytes = 0;
+        int expected = 1;
+        int negotiatedBlockSize = 512;
+        int negotiatedWindowSize = 1;
+        int retries = 0;
+        while (true) {
+            if (!receive()) {
+                if (++retries > MAX_RETRIES) {
+                    throw new IOException("Download of " + filename + " stalled at block " + expected);
+                }
+                if (expected == 1 && sendPacket.getPort() == port) {
+                    socket.send(sendPacket); // Request (or ACK 0) got lost
+                } else {
+                    sendAck(expected - 1);
+                }
+                continue;
+            }
+            retries = 0;
+            int opcode = packet.opcode();
+            if (opcode == PacketCodec.OP_OACK) {
+                while (packet.nextOption()) {
+                    if (packet.optionIs("blksize")) {
+                        negotiatedBlockSize = (int) packet.optionValue();
+                    } else if (packet.optionIs("windowsize")) {
+                        negotiatedWindowSize = (int) packet.optionValue();
+                    }
+                }
+                sendPacket.setPort(receivePacket.getPort());
+                sendAck(0);
+            } else if (opcode == PacketCodec.OP_DATA && packet.length() >= PacketCodec.HEADER_LENGTH) {
+                sendPacket.setPort(receivePacket.getPort());
+                if (packet.blockNumber() != (expected & 0xffff)) {
+                    sendAck(expected - 1);
+                    continue;
+                }
+                bytes += packet.payloadLength();
+                boolean last = packet.payloadLength() < negotiatedBlockSize;
+                if (last || expected % negotiatedWindowSize == 0) {
+                    sendAck(expected);
+                }
+                expected++;
+                if (last) {
+                    return bytes;
+                }
+            } else if (opcode == PacketCodec.OP_ERROR) {
+                throw new IOException("Server error: " + packet.errorMessage());
+            }
+        }
+    }
+
+    /**
+     * Uploads data as filename with a go-back-N window.
+     */
+    void write(String filename, byte[] data) throws IOException {
+        sendRequest(PacketCodec.OP_WRQ, filename);
+        int negotiatedBlockSize = 512;
+        int negotiatedWindowSize = 1;
+        for (int retries = 0; ; retries++) {
+            if (retries > MAX_RETRIES) {
+                throw new IOException("No answer to WRQ for " + filename);
+            }
+            if (!receive()) {
+                socket.send(sendPacket);
+                continue;
+            }
+            if (packet.opcode() == PacketCodec.OP_ERROR) {
+                throw new IOException("Server error: " + packet.errorMessage());
+            }
+            while (packet.opcode() == PacketCodec.OP_OACK && packet.nextOption()) {
+                if (packet.optionIs("blksize")) {
+                    negotiatedBlockSize = (int) packet.optionValue();
+                } else if (packet.optionIs("windowsize")) {
+                    negotiatedWindowSize = (int) packet.optionValue();
+                }
+            }
+            break;
+        }
+        sendPacket.setPort(receivePacket.getPort());
+
+        int blockCount = data.length / negotiatedBlockSize + 1;
+        int base = 1;
+        int next = 1;
+        int retries = 0;
+        while (base <= blockCount) {
+            while (next < base + negotiatedWindowSize && next <= blockCount) {
+                int offset = (next - 1) * negotiatedBlockSize;
+                int length = Math.min(negotiatedBlockSize, data.length - offset);
+                PacketCodec.beginData(send, next).put(data, offset, length).flip();
+                sendPacket.setLength(send.limit());
+                socket.send(sendPacket);
+                next++;
+            }
+            if (!receive()) {
+                if (++retries > MAX_RETRIES) {
+                    throw new IOException("Upload of " + filename + " stalled at block " + base);
+                }
+                next = base;
+                continue;
+            }
+            if (packet.opcode() == PacketCodec.OP_ERROR) {
+                throw new IOException("Server error: " + packet.errorMessage());
+            }
+            if (packet.opcode() != PacketCodec.OP_ACK || packet.length() < PacketCodec.HEADER_LENGTH) {
+                continue;
+            }
+            int acked = base + ((packet.blockNumber() - base) & 0xffff);
+            if (acked < next) {
+                retries = 0;
+                base = acked + 1;
+                next = base;
+            }
+        }
+    }
+
+    void close() {
+        socket.close();
+    }
+
+    private void sendRequest(int opcode, String filename) throws IOException {
+        PacketCodec.beginRequest(send, opcode, filename, "octet");
+        PacketCodec.putOption(send, "blksize", blockSize);
+        PacketCodec.putOption(send, "windowsize", windowSize);
+        send.flip();
+        sendPacket.setPort(port);
+        sendPacket.setLength(send.limit());
+        socket.send(sendPacket);
+    }
+
+    private void sendAck(int blockNumber) throws IOException {
+        PacketCodec.encodeAck(send, blockNumber);
+        sendPacket.setLength(send.limit());
+        socket.send(sendPacket);
+    }
+
+    // Returns false on timeout, otherwise leaves the reader on the new packet
+    private boolean receive() throws IOException {
+        receivePacket.setLength(receive.capacity());
+        try {
+            socket.receive(receivePacket);
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        receive.clear().limit(receivePacket.getLength());
+        packet.wrap(receive);
+        return true;
+    }
+}
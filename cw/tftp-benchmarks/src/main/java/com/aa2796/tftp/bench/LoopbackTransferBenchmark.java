@@ -0,0 +1,170 @@
+package com.aa2796.tftp.bench;
+
+import com.aa2796.tftp.server.TFTPServer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end RRQ/WRQ transfers against an in-process server on loopback. Each
+ * operation runs `concurrency` transfers at once; the bytes counter turns the
+ * result into a byte rate, and the GC profiler added by BenchmarkMain reports
+ * the allocation rate of server and clients together.
+ * <p>
+ * impairment puts a {@link UdpImpairmentProxy} between clients and server, e.g.
+ * -p impairment="latency=10;loss=0.01" (use ';' between keys, JMH splits on ',').
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+    @Param({"65536", "4194304", "33554432"})
+    public int fileSize;
+
+    @Param({"512", "1468", "65464"})
+    public int blockSize;
+
+    @Param({"8"})
+    public int windowSize;
+
+    @Param({"1", "4", "16"})
+    public int concurrency;
+
+    @Param({"none"})
+    public String impairment;
+
+    private TFTPServer server;
+    private UdpImpairmentProxy proxy;
+    private int port;
+    private Path directory;
+    private Path source;
+    private byte[] upload;
+    private ExecutorService clients;
+    private final AtomicInteger uploadCount = new AtomicInteger();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("tftp-bench");
+        source = Files.move(DiskPathBenchmark.createRandomFile(fileSize), directory.resolve("source.bin"));
+        upload = Files.readAllBytes(source);
+        server = new TFTPServer(0, Runtime.getRuntime().availableProcessors());
+        server.start();
+        port = server.getPort();
+        Impairment settings = Impairment.parse(impairment);
+        if (settings != Impairment.NONE) {
+            proxy = new UdpImpairmentProxy(0, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    settings, settings.withSeed(settings.seed + 1));
+            port = proxy.getPort();
+        }
+        clients = Executors.newFixedThreadPool(concurrency);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteUploads() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.equals(source)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        clients.shutdownNow();
+        if (proxy != null) {
+            System.out.println(proxy.statistics());
+            proxy.close();
+        }
+        server.shutdown();
+        DiskPathBenchmark.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void read(Bytes counter) throws Exception {
+        long received = runConcurrently(() -> {
+            LoopbackClient client = new LoopbackClient(port, blockSize, windowSize);
+            try {
+                return client.read(source.toString());
+            } finally {
+                client.close();
+            }
+        });
+        if (received != (long) fileSize * concurrency) {
+            throw new IllegalStateException("Received " + received + " bytes, expected " + (long) fileSize * concurrency);
+        }
+        counter.bytes += received;
+    }
+
+    @Benchmark
+    public void write(Bytes counter) throws Exception {
+        counter.bytes += runConcurrently(() -> {
+            Path target = directory.resolve("upload-" + uploadCount.incrementAndGet() + ".bin");
+            LoopbackClient client = new LoopbackClient(port, blockSize, windowSize);
+            try {
+                client.write(target.toString(), upload);
+                return (long) upload.length;
+            } finally {
+                client.close();
+            }
+        });
+    }
+
+    private long runConcurrently(Callable<Long> transfer) throws Exception {
+        List<Future<Long>> transfers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            transfers.add(clients.submit(transfer));
+        }
+        long total = 0;
+        for (Future<Long> future : transfers) {
+            try {
+                total += future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Transfer failed", e.getCause());
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,124 @@
+package com.aa2796.tftp.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TCP relay for the TCP transfer mode. Each accepted connection is paired with
+ * one to the server, and each direction goes through an ordered
+ * {@link ImpairedLink}. Only latency, jitter and the bandwidth cap apply here.
+ * TCP recovers from loss, duplication and reordering below the socket API, so
+ * dropping bytes at this level would corrupt the stream rather than slow it
+ * down. Lossy paths are modelled on the UDP side.
+ */
+public final class TcpImpairmentProxy implements Closeable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ServerSocket listener;
+    private final InetSocketAddress server;
+    private final Impairment upstream;
+    private final Impairment downstream;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    public TcpImpairmentProxy(int listenPort, InetSocketAddress server, Impairment upstream, Impairment downstream)
+            throws IOException {
+        this.listener = new ServerSocket(listenPort);
+        this.server = server;
+        this.upstream = upstream;
+        this.downstream = downstream;
+        Thread acceptor = new Thread(this::accept, "tcp-proxy-" + listener.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    private void accept() {
+        while (!closed) {
+            Socket client;
+            try {
+                client = listener.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Proxy stopped: " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                Socket target = new Socket(server.getAddress(), server.getPort());
+                client.setTcpNoDelay(true);
+                target.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(target);
+                String name = client.getPort() + "";
+                pump(client, target, new ImpairedLink("impair-up-" + name, upstream, true), "tcp-proxy-up-" + name);
+                pump(target, client, new ImpairedLink("impair-down-" + name, downstream, true), "tcp-proxy-down-" + name);
+            } catch (IOException e) {
+                System.out.println("Could not connect to " + server + ": " + e.getMessage());
+                close(client);
+            }
+        }
+    }
+
+    /**
+     * Copies from one socket to the other through the link. The end of the stream
+     * is passed on as a half close once everything before it has been delivered.
+     */
+    private void pump(Socket from, Socket to, ImpairedLink link, String name) {
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    byte[] chunk = Arrays.copyOf(buffer, read);
+                    link.submit(read, () -> out.write(chunk));
+                }
+                link.submit(0, () -> {
+                    to.shutdownOutput();
+                    link.close();
+                    if (from.isOutputShutdown()) {
+                        close(from);
+                        close(to);
+                    }
+                });
+            } catch (IOException | InterruptedException e) {
+                link.close();
+                close(from);
+                close(to);
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        for (Socket socket : sockets) {
+            close(socket);
+        }
+    }
+}
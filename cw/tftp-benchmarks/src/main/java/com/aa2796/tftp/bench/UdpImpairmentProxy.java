@@ -0,0 +1,152 @@
+package com.aa2796.tftp.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UDP relay that sits between TFTP clients and a server and passes every
+ * datagram through an {@link ImpairedLink}. Clients send to the proxy's port
+ * instead of the server's. Each client address gets its own upstream socket, so
+ * the server sees one peer per client and picks a fresh TID for it as usual.
+ * The first reply reveals that TID, and the client's later packets are sent
+ * there. Replies reach the client from the proxy's own port.
+ */
+public final class UdpImpairmentProxy implements Closeable {
+    private static final int MAX_DATAGRAM = 65535;
+    private static final long IDLE_MILLIS = 60_000;
+
+    private final DatagramSocket listener;
+    private final InetSocketAddress server;
+    private final ImpairedLink toServer;
+    private final ImpairedLink toClient;
+    private final Map<SocketAddress, Flow> flows = new ConcurrentHashMap<>();
+    private final Thread relay;
+    private volatile boolean closed;
+
+    public UdpImpairmentProxy(int listenPort, InetSocketAddress server, Impairment upstream, Impairment downstream)
+            throws IOException {
+        this.listener = new DatagramSocket(listenPort);
+        this.server = server;
+        this.toServer = new ImpairedLink("impair-up-" + listener.getLocalPort(), upstream, false);
+        this.toClient = new ImpairedLink("impair-down-" + listener.getLocalPort(), downstream, false);
+        listener.setSoTimeout(1000);
+        this.relay = new Thread(this::relayFromClients, "udp-proxy-" + listener.getLocalPort());
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * One client's conversation: its upstream socket and the server TID it talks to.
+     */
+    private final class Flow {
+        final SocketAddress client;
+        final DatagramSocket upstream;
+        volatile SocketAddress peer = server;
+        volatile long lastActive = System.currentTimeMillis();
+
+        Flow(SocketAddress client) throws SocketException {
+            this.client = client;
+            this.upstream = new DatagramSocket();
+            Thread reader = new Thread(this::relayFromServer, "udp-proxy-flow-" + upstream.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void relayFromServer() {
+            DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+            try {
+                while (!closed) {
+                    upstream.receive(packet);
+                    peer = packet.getSocketAddress();
+                    lastActive = System.currentTimeMillis();
+                    DatagramPacket reply = new DatagramPacket(
+                            Arrays.copyOf(packet.getData(), packet.getLength()), packet.getLength(), client);
+                    toClient.submit(reply.getLength(), () -> listener.send(reply));
+                }
+            } catch (IOException | InterruptedException e) {
+                // Socket closed when the flow expired or the proxy shut down
+            }
+        }
+
+        void close() {
+            upstream.close();
+        }
+    }
+
+    private void relayFromClients() {
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        while (!closed) {
+            try {
+                listener.receive(packet);
+            } catch (SocketTimeoutException e) {
+                expireIdleFlows();
+                continue;
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Proxy stopped: " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                SocketAddress client = packet.getSocketAddress();
+                Flow flow = flows.get(client);
+                if (flow == null) {
+                    flow = new Flow(client);
+                    flows.put(client, flow);
+                }
+                flow.lastActive = System.currentTimeMillis();
+                DatagramSocket upstream = flow.upstream;
+                DatagramPacket request = new DatagramPacket(
+                        Arrays.copyOf(packet.getData(), packet.getLength()), packet.getLength(), flow.peer);
+                toServer.submit(request.getLength(), () -> upstream.send(request));
+            } catch (SocketException e) {
+                System.out.println("Could not open upstream socket: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void expireIdleFlows() {
+        long cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+        flows.values().removeIf(flow -> {
+            if (flow.lastActive < cutoff) {
+                flow.close();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Counters of both directions, for a summary after a run.
+     */
+    public String statistics() {
+        return "to server: " + toServer + ", to client: " + toClient;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        listener.close();
+        for (Flow flow : flows.values()) {
+            flow.close();
+        }
+        flows.clear();
+        toServer.close();
+        toClient.close();
+    }
+}
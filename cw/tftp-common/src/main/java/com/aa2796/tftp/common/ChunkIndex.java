@@ -0,0 +1,281 @@
+package com.aa2796.tftp.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C digest of every fixed-size chunk of a file. While a file is being
+ * received its digests live in a "&lt;file&gt;.crc32c" sidecar, so a transfer that
+ * dies part way can carry on from what is already on disk. When a transfer
+ * resumes, each recorded chunk is checked against the file again. A chunk that
+ * was torn or corrupted is treated as missing and gets sent again.
+ * <p>
+ * Sidecar layout: the chunk size as an int, then one long per chunk holding its
+ * digest, or {@link #MISSING}.
+ */
+public class ChunkIndex implements Closeable {
+    public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("tftp.chunkSize", 1024 * 1024);
+    public static final int MIN_CHUNK_SIZE = 4096;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final long MISSING = -1;
+    public static final String SUFFIX = ".crc32c";
+    private static final int HEADER_LENGTH = 4;
+
+    private final Path sidecarPath;
+    private final FileChannel sidecar;
+    private final int chunkSize;
+    private final ByteBuffer entry = ByteBuffer.allocate(8);
+    private long[] digests;
+    // Running digest of the chunk being appended, see append()
+    private final CRC32C appending = new CRC32C();
+    private long appendPosition = -1;
+
+    private ChunkIndex(Path sidecarPath, FileChannel sidecar, int chunkSize, long[] digests) {
+        this.sidecarPath = sidecarPath;
+        this.sidecar = sidecar;
+        this.chunkSize = chunkSize;
+        this.digests = digests;
+    }
+
+    public static Path sidecarPath(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + SUFFIX);
+    }
+
+    /**
+     * True if filePath names a sidecar. Servers refuse such names from clients: a
+     * sidecar must only ever be written by the transfer it belongs to, or anyone could
+     * make a finished file look partial and overwrite it.
+     */
+    public static boolean isSidecar(Path filePath) {
+        Path name = filePath.getFileName();
+        return name != null && name.toString().toLowerCase().endsWith(SUFFIX);
+    }
+
+    /**
+     * True if filePath is an unfinished download or upload that can be resumed.
+     */
+    public static boolean isPartial(Path filePath) {
+        return Files.exists(sidecarPath(filePath));
+    }
+
+    /**
+     * Opens the receiving side's index for filePath. A surviving sidecar is
+     * checked chunk by chunk against the file. An existing file without one counts
+     * as fully held, so the sender only has to send what differs. Otherwise the
+     * index starts empty. chunkSize is only used when there is no sidecar yet.
+     */
+    public static ChunkIndex openForReceive(Path filePath, int chunkSize) throws IOException {
+        Path sidecarPath = sidecarPath(filePath);
+        long[] digests = new long[0];
+        boolean existing = Files.exists(sidecarPath);
+        if (existing) {
+            ByteBuffer stored = ByteBuffer.wrap(Files.readAllBytes(sidecarPath));
+            int storedChunkSize = stored.remaining() >= HEADER_LENGTH ? stored.getInt() : 0;
+            if (storedChunkSize >= MIN_CHUNK_SIZE && storedChunkSize <= MAX_CHUNK_SIZE) {
+                chunkSize = storedChunkSize;
+                digests = new long[stored.remaining() / 8];
+                for (int i = 0; i < digests.length; i++) {
+                    digests[i] = stored.getLong();
+                }
+            }
+        }
+        if (Files.exists(filePath)) {
+            try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                if (existing) {
+                    verify(file, chunkSize, digests);
+                } else {
+                    digests = digestAll(file, chunkSize);
+                }
+            }
+        } else {
+            digests = new long[0];
+        }
+
+        FileChannel sidecar = FileChannel.open(sidecarPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer contents = ByteBuffer.allocate(HEADER_LENGTH + digests.length * 8);
+        contents.putInt(chunkSize);
+        for (long digest : digests) {
+            contents.putLong(digest);
+        }
+        contents.flip();
+        while (contents.hasRemaining()) {
+            sidecar.write(contents);
+        }
+        return new ChunkIndex(sidecarPath, sidecar, chunkSize, digests);
+    }
+
+    /**
+     * Digests of every chunk of a file, the last one possibly short. Used by the sending side.
+     */
+    public static long[] digestAll(FileChannel file, int chunkSize) throws IOException {
+        long size = file.size();
+        long[] digests = new long[(int) ((size + chunkSize - 1) / chunkSize)];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+        for (int i = 0; i < digests.length; i++) {
+            long position = (long) i * chunkSize;
+            digests[i] = digest(file, position, (int) Math.min(chunkSize, size - position), buffer);
+        }
+        return digests;
+    }
+
+    /**
+     * CRC32C of length bytes at position, or {@link #MISSING} if the file ends first.
+     */
+    public static long digest(FileChannel file, long position, long length, ByteBuffer buffer) throws IOException {
+        CRC32C crc = new CRC32C();
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    return MISSING;
+                }
+            }
+            buffer.flip();
+            position += buffer.remaining();
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * CRC32C of the first length bytes of a file, or {@link #MISSING} if it is shorter.
+     */
+    public static long digestPrefix(Path filePath, long length) throws IOException {
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            return digest(file, 0, length, ByteBuffer.allocate(64 * 1024));
+        }
+    }
+
+    public static long digest(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    private static void verify(FileChannel file, int chunkSize, long[] digests) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+        long size = file.size();
+        for (int i = 0; i < digests.length; i++) {
+            long position = (long) i * chunkSize;
+            if (digests[i] != MISSING
+                    && digests[i] != digest(file, position, Math.min(chunkSize, Math.max(0, size - position)), buffer)) {
+                digests[i] = MISSING;
+            }
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return digests.length;
+    }
+
+    /**
+     * Digest held for the given chunk, or {@link #MISSING}.
+     */
+    public long get(int chunk) {
+        return chunk < digests.length ? digests[chunk] : MISSING;
+    }
+
+    /**
+     * Length of the run of whole, held chunks at the start of a file of the given
+     * size, in bytes. A sequential transfer such as TFTP can only skip this much.
+     */
+    public long heldPrefix(long fileSize) {
+        int chunks = 0;
+        while (chunks < digests.length && digests[chunks] != MISSING && (long) (chunks + 1) * chunkSize <= fileSize) {
+            chunks++;
+        }
+        return (long) chunks * chunkSize;
+    }
+
+    /**
+     * Records that chunk now holds data with the given digest, in memory and in the sidecar.
+     */
+    public void record(int chunk, long digest) throws IOException {
+        if (chunk >= digests.length) {
+            int length = digests.length;
+            digests = Arrays.copyOf(digests, chunk + 1);
+            Arrays.fill(digests, length, digests.length, MISSING);
+            for (int i = length; i < chunk; i++) {
+                writeEntry(i, MISSING);
+            }
+        }
+        digests[chunk] = digest;
+        writeEntry(chunk, digest);
+    }
+
+    /**
+     * Forgets everything from position on, for a sender that starts over or resumes at position.
+     */
+    public void truncate(long position) throws IOException {
+        int chunks = (int) (position / chunkSize);
+        if (chunks < digests.length) {
+            digests = Arrays.copyOf(digests, chunks);
+            sidecar.truncate(HEADER_LENGTH + (long) chunks * 8);
+        }
+        appendPosition = -1;
+    }
+
+    /**
+     * Feeds data received in file order starting at position, recording each chunk
+     * once it is complete. Data that does not continue the previous call is ignored
+     * until the next chunk boundary. Does not move src's position.
+     */
+    public void append(long position, ByteBuffer src) throws IOException {
+        ByteBuffer data = src.duplicate();
+        if (position != appendPosition) {
+            if (position % chunkSize != 0) {
+                return;
+            }
+            appending.reset();
+        }
+        while (data.hasRemaining()) {
+            int room = (int) (chunkSize - position % chunkSize);
+            int length = Math.min(room, data.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + length);
+            appending.update(data);
+            data.limit(limit);
+            position += length;
+            if (length == room) {
+                record((int) (position / chunkSize) - 1, appending.getValue());
+                appending.reset();
+            }
+        }
+        appendPosition = position;
+    }
+
+    private void writeEntry(int chunk, long digest) throws IOException {
+        entry.clear();
+        entry.putLong(digest).flip();
+        while (entry.hasRemaining()) {
+            sidecar.write(entry, HEADER_LENGTH + (long) chunk * 8 + entry.position());
+        }
+    }
+
+    /**
+     * The file is complete: drops the sidecar.
+     */
+    public void complete() throws IOException {
+        sidecar.close();
+        Files.deleteIfExists(sidecarPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sidecar.close();
+    }
+}
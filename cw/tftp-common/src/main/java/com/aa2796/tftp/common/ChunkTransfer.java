@@ -0,0 +1,221 @@
+package com.aa2796.tftp.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+
+/**
+ * Resumable transfer of one file over a TCP connection, used by the RRQ_RESUME
+ * and WRQ_RESUME commands. The receiving side first announces its
+ * {@link ChunkIndex}: int chunk size, int count, then one long digest per chunk.
+ * The sending side answers with its file size (-1 if it has no such file), its
+ * own count and digests, then every chunk whose digest differs as long offset,
+ * int length and the bytes. An offset of -1 ends the transfer. Each chunk is
+ * checked against the sender's digest before it is written.
+ */
+public final class ChunkTransfer {
+    private static final int END = -1;
+    private static final int DIGEST_BATCH = 1024; // Digests read from the socket at once
+
+    private ChunkTransfer() {
+    }
+
+    /**
+     * Sending side. Returns the number of bytes sent, or -1 if the file does not exist.
+     * progress (may be null) is told the length of every chunk sent.
+     */
+    public static long send(SocketChannel socket, Path filePath, IntConsumer progress) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        int chunkSize = readInt(socket, header);
+        if (chunkSize < ChunkIndex.MIN_CHUNK_SIZE || chunkSize > ChunkIndex.MAX_CHUNK_SIZE) {
+            throw new IOException("Unsupported chunk size " + chunkSize);
+        }
+        int heldCount = readCount(socket, header);
+        if (!Files.isRegularFile(filePath)) {
+            readDigests(socket, heldCount, 0); // Keep the stream in step for whatever follows
+            header.clear();
+            header.putLong(END);
+            write(socket, header);
+            return -1;
+        }
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = file.size();
+            // Digests past the end of our file can never match, so are read and dropped
+            long[] held = readDigests(socket, heldCount, chunkCount(size, chunkSize));
+            long[] digests = ChunkIndex.digestAll(file, chunkSize);
+            ByteBuffer list = ByteBuffer.allocate(12 + digests.length * 8);
+            list.putLong(size).putInt(digests.length);
+            for (long digest : digests) {
+                list.putLong(digest);
+            }
+            write(socket, list);
+
+            long sent = 0;
+            for (int i = 0; i < digests.length; i++) {
+                if (i < held.length && held[i] == digests[i]) {
+                    continue;
+                }
+                long position = (long) i * chunkSize;
+                int length = (int) Math.min(chunkSize, size - position);
+                header.clear();
+                header.putLong(position).putInt(length);
+                write(socket, header);
+                long end = position + length;
+                while (position < end) {
+                    position += file.transferTo(position, end - position, socket);
+                }
+                sent += length;
+                if (progress != null) {
+                    progress.accept(length);
+                }
+            }
+            header.clear();
+            header.putLong(END);
+            write(socket, header);
+            return sent;
+        }
+    }
+
+    /**
+     * Receiving side. Returns the number of bytes received, or -1 if the sender has
+     * no such file. Throws if the announced size does not fit on the disk, or if a chunk
+     * fails its digest or never arrives; whatever was verified stays recorded in the
+     * sidecar for the next attempt.
+     */
+    public static long receive(SocketChannel socket, Path filePath, IntConsumer progress) throws IOException {
+        try (ChunkIndex index = ChunkIndex.openForReceive(filePath, ChunkIndex.DEFAULT_CHUNK_SIZE)) {
+            int chunkSize = index.getChunkSize();
+            ByteBuffer list = ByteBuffer.allocate(8 + index.getChunkCount() * 8);
+            list.putInt(chunkSize).putInt(index.getChunkCount());
+            for (int i = 0; i < index.getChunkCount(); i++) {
+                list.putLong(index.get(i));
+            }
+            write(socket, list);
+
+            ByteBuffer header = ByteBuffer.allocate(12);
+            long size = readLong(socket, header);
+            if (size < 0) {
+                if (!Files.exists(filePath)) {
+                    index.complete(); // Nothing was ever received, leave no sidecar behind
+                }
+                return -1;
+            }
+            // The size bounds the digest list below, so a size that cannot fit is refused before reading it
+            long held = Files.exists(filePath) ? Files.size(filePath) : 0;
+            Path directory = filePath.toAbsolutePath().getParent();
+            if (size - held > Files.getFileStore(directory).getUsableSpace()) {
+                throw new IOException("Not enough disk space for " + size + " bytes");
+            }
+            int count = readCount(socket, header);
+            if (count != chunkCount(size, chunkSize)) {
+                throw new IOException("Bad digest count " + count + " for " + size + " bytes");
+            }
+            long[] digests = readDigests(socket, count, count);
+
+            long received = 0;
+            try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+                long position;
+                while ((position = readLong(socket, header)) != END) {
+                    int length = readInt(socket, header);
+                    int i = (int) (position / chunkSize);
+                    if (position % chunkSize != 0 || i >= digests.length || length < 0 || length > chunkSize) {
+                        throw new IOException("Bad chunk header at offset " + position);
+                    }
+                    chunk.clear().limit(length);
+                    read(socket, chunk);
+                    chunk.flip();
+                    long digest = ChunkIndex.digest(chunk);
+                    if (digest != digests[i]) {
+                        throw new IOException("Chunk at offset " + position + " does not match its digest");
+                    }
+                    while (chunk.hasRemaining()) {
+                        file.write(chunk, position + chunk.position());
+                    }
+                    index.record(i, digest);
+                    received += length;
+                    if (progress != null) {
+                        progress.accept(length);
+                    }
+                }
+                file.truncate(size);
+                for (int i = 0; i < digests.length; i++) {
+                    if (index.get(i) != digests[i]) {
+                        throw new IOException("Chunk " + i + " was never sent");
+                    }
+                }
+            }
+            index.complete();
+            return received;
+        }
+    }
+
+    private static int chunkCount(long size, int chunkSize) {
+        return (int) Math.min(Integer.MAX_VALUE, (size + chunkSize - 1) / chunkSize);
+    }
+
+    private static int readCount(SocketChannel socket, ByteBuffer header) throws IOException {
+        int count = readInt(socket, header);
+        if (count < 0) {
+            throw new IOException("Bad digest count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a list of count digests and returns the first keep of them. The count
+     * comes from the peer, so nothing is allocated for more than keep entries and
+     * the rest is read in small pieces and dropped.
+     */
+    private static long[] readDigests(SocketChannel socket, int count, int keep) throws IOException {
+        long[] digests = new long[Math.min(count, keep)];
+        ByteBuffer list = ByteBuffer.allocate(DIGEST_BATCH * 8);
+        int index = 0;
+        while (index < count) {
+            list.clear().limit(Math.min(DIGEST_BATCH, count - index) * 8);
+            read(socket, list);
+            list.flip();
+            while (list.hasRemaining()) {
+                long digest = list.getLong();
+                if (index < digests.length) {
+                    digests[index] = digest;
+                }
+                index++;
+            }
+        }
+        return digests;
+    }
+
+    public static int readInt(SocketChannel socket, ByteBuffer header) throws IOException {
+        header.clear().limit(4);
+        read(socket, header);
+        return header.getInt(0);
+    }
+
+    private static long readLong(SocketChannel socket, ByteBuffer header) throws IOException {
+        header.clear().limit(8);
+        read(socket, header);
+        return header.getLong(0);
+    }
+
+    private static void read(SocketChannel socket, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (socket.read(dst) < 0) {
+                throw new EOFException("Connection closed in the middle of a transfer");
+            }
+        }
+    }
+
+    private static void write(SocketChannel socket, ByteBuffer src) throws IOException {
+        src.flip();
+        while (src.hasRemaining()) {
+            socket.write(src);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.aa2796.tftp.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame stream for the negotiated "deflate" mode of the TCP transfer. Every
+ * frame is int length, int raw length, then length bytes. When the two lengths
+ * are equal the bytes are stored as they are, because the frame did not get any
+ * smaller. Otherwise they are Deflate output. A length of -1 ends the stream.
+ * <p>
+ * Compression runs on a helper thread and overlaps with the socket. On the
+ * sending side the helper reads and deflates the next frames while the caller
+ * writes the current one. On the receiving side the caller reads from the socket
+ * while the helper inflates and writes to disk. A few frame buffers circulate
+ * between the two threads, so nothing is allocated per frame.
+ */
+public final class CompressedFrames {
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024; // Largest frame a receiver will make room for
+    private static final int FRAMES_IN_FLIGHT = 3;
+    private static final int END = -1;
+
+    private CompressedFrames() {
+    }
+
+    /**
+     * One frame moving between the two threads. error is set on the frame that ends a failed stream.
+     */
+    private static final class Frame {
+        byte[] raw;
+        byte[] packed;
+        int rawLength;
+        int length = END;
+        Throwable error;
+
+        Frame(int capacity) {
+            raw = new byte[capacity];
+            packed = new byte[capacity];
+        }
+    }
+
+    /**
+     * Sends the whole file as compressed frames. progress (may be null) is told
+     * the raw length of every frame once it is written to out.
+     */
+    public static void send(FileChannel file, WritableByteChannel out, int frameSize, IntConsumer progress)
+            throws IOException {
+        BlockingQueue<Frame> free = new ArrayBlockingQueue<>(FRAMES_IN_FLIGHT);
+        BlockingQueue<Frame> ready = new ArrayBlockingQueue<>(FRAMES_IN_FLIGHT);
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++) {
+            free.add(new Frame(frameSize));
+        }
+        Thread compressor = new Thread(() -> compress(file, free, ready), "deflate-" + Thread.currentThread().getName());
+        compressor.setDaemon(true);
+        compressor.start();
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        try {
+            while (true) {
+                Frame frame = take(ready);
+                if (frame.error != null) {
+                    throw new IOException("Compression failed", frame.error);
+                }
+                header.clear();
+                header.putInt(frame.length).putInt(frame.rawLength).flip();
+                writeFully(out, header.limit(frame.length == END ? 4 : 8));
+                if (frame.length == END) {
+                    return;
+                }
+                writeFully(out, ByteBuffer.wrap(frame.length == frame.rawLength ? frame.raw : frame.packed, 0, frame.length));
+                if (progress != null) {
+                    progress.accept(frame.rawLength);
+                }
+                free.add(frame);
+            }
+        } finally {
+            compressor.interrupt();
+        }
+    }
+
+    private static void compress(FileChannel file, BlockingQueue<Frame> free, BlockingQueue<Frame> ready) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        Frame frame = null;
+        try {
+            long position = 0;
+            while (true) {
+                frame = free.take();
+                ByteBuffer raw = ByteBuffer.wrap(frame.raw);
+                while (raw.hasRemaining()) {
+                    int read = file.read(raw, position + raw.position());
+                    if (read < 0) {
+                        break;
+                    }
+                }
+                if (raw.position() == 0) {
+                    frame.length = END;
+                    ready.put(frame);
+                    return;
+                }
+                position += raw.position();
+                frame.rawLength = raw.position();
+                deflater.reset();
+                deflater.setInput(frame.raw, 0, frame.rawLength);
+                deflater.finish();
+                // Give up as soon as the output would not be smaller: such frames go out stored
+                int packed = deflater.deflate(frame.packed, 0, frame.rawLength - 1);
+                frame.length = deflater.finished() ? packed : frame.rawLength;
+                ready.put(frame);
+                frame = null;
+            }
+        } catch (InterruptedException e) {
+            // The sender gave up, nothing more to do
+        } catch (IOException | RuntimeException e) {
+            if (frame == null) {
+                frame = new Frame(0);
+            }
+            frame.error = e;
+            ready.offer(frame);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Receives compressed frames into the file from position 0 until the end marker.
+     * progress (may be null) is told the raw length of every frame written.
+     */
+    public static long receive(ReadableByteChannel in, FileChannel file, int frameSize, IntConsumer progress)
+            throws IOException {
+        BlockingQueue<Frame> free = new ArrayBlockingQueue<>(FRAMES_IN_FLIGHT);
+        BlockingQueue<Frame> ready = new ArrayBlockingQueue<>(FRAMES_IN_FLIGHT);
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++) {
+            free.add(new Frame(frameSize));
+        }
+        long[] written = new long[1];
+        Throwable[] failure = new Throwable[1];
+        Thread inflaterThread = new Thread(() -> {
+            try {
+                written[0] = inflate(file, free, ready, progress);
+            } catch (IOException | DataFormatException | RuntimeException e) {
+                failure[0] = e;
+                free.clear();
+                free.offer(new Frame(0)); // Wake the reader up so it notices
+            } catch (InterruptedException e) {
+                // The reader gave up
+            }
+        }, "inflate-" + Thread.currentThread().getName());
+        inflaterThread.setDaemon(true);
+        inflaterThread.start();
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        boolean done = false;
+        try {
+            while (true) {
+                header.clear().limit(4);
+                readFully(in, header);
+                int length = header.getInt(0);
+                Frame frame = take(free);
+                if (failure[0] != null) {
+                    break;
+                }
+                if (length == END) {
+                    frame.length = END;
+                    ready.put(frame);
+                    break;
+                }
+                header.clear().limit(4);
+                readFully(in, header);
+                int rawLength = header.getInt(0);
+                if (length < 0 || rawLength < length || rawLength > MAX_FRAME_SIZE) {
+                    throw new IOException("Bad compressed frame header " + length + "/" + rawLength);
+                }
+                if (frame.raw.length < rawLength) {
+                    frame.raw = new byte[rawLength]; // Sender uses bigger frames than we do
+                    frame.packed = new byte[rawLength];
+                }
+                frame.length = length;
+                frame.rawLength = rawLength;
+                readFully(in, ByteBuffer.wrap(length == rawLength ? frame.raw : frame.packed, 0, length));
+                ready.put(frame);
+            }
+            inflaterThread.join();
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving", e);
+        } finally {
+            if (!done) {
+                inflaterThread.interrupt();
+            }
+        }
+        if (failure[0] != null) {
+            throw new IOException("Could not unpack frame: " + failure[0].getMessage(), failure[0]);
+        }
+        return written[0];
+    }
+
+    private static long inflate(FileChannel file, BlockingQueue<Frame> free, BlockingQueue<Frame> ready,
+                                IntConsumer progress) throws IOException, DataFormatException, InterruptedException {
+        Inflater inflater = new Inflater();
+        try {
+            long position = 0;
+            while (true) {
+                Frame frame = ready.take();
+                if (frame.length == END) {
+                    return position;
+                }
+                if (frame.length != frame.rawLength) {
+                    inflater.reset();
+                    inflater.setInput(frame.packed, 0, frame.length);
+                    int unpacked = inflater.inflate(frame.raw, 0, frame.rawLength);
+                    if (unpacked != frame.rawLength || !inflater.finished()) {
+                        throw new DataFormatException("frame unpacked to " + unpacked + " bytes, expected " + frame.rawLength);
+                    }
+                }
+                ByteBuffer raw = ByteBuffer.wrap(frame.raw, 0, frame.rawLength);
+                while (raw.hasRemaining()) {
+                    file.write(raw, position + raw.position());
+                }
+                position += frame.rawLength;
+                if (progress != null) {
+                    progress.accept(frame.rawLength);
+                }
+                free.put(frame);
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Frame take(BlockingQueue<Frame> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transferring", e);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst) < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.aa2796.tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming netascii translation (RFC 1350, RFC 764). On the wire a line ends in
+ * CR LF and a bare CR is sent as CR NUL. In local files a line ends in LF. Both
+ * directions work one block at a time and keep only what straddles a block
+ * boundary: the second byte of a CR LF or CR NUL that did not fit, or a CR
+ * still waiting for its partner.
+ * <p>
+ * The encoded length is counted in one pass before sending. The sender therefore
+ * knows the block count, and the last block comes out short exactly as in octet
+ * mode, possibly empty.
+ */
+public final class Netascii {
+    public static final String MODE = "netascii";
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte NUL = 0;
+    private static final int NONE = -1;
+
+    private Netascii() {
+    }
+
+    /**
+     * Where the encoder reads the local file from. Same contract as the server's BlockReader.read:
+     * copies up to length bytes at position into dst and returns how many, short only at the end.
+     */
+    public interface Source {
+        int read(long position, ByteBuffer dst, int length) throws IOException;
+    }
+
+    /**
+     * Source reading straight from a file with positional reads.
+     */
+    public static Source of(FileChannel file) {
+        return (position, dst, length) -> {
+            int limit = dst.limit();
+            dst.limit(dst.position() + length);
+            int count = 0;
+            try {
+                int n;
+                while (dst.hasRemaining() && (n = file.read(dst, position + count)) > 0) {
+                    count += n;
+                }
+            } finally {
+                dst.limit(limit);
+            }
+            return count;
+        };
+    }
+
+    public static boolean isNetascii(String mode) {
+        return MODE.equalsIgnoreCase(mode);
+    }
+
+    /**
+     * Length of the first size bytes of source once encoded: one extra byte for every LF and every CR.
+     */
+    public static long encodedLength(Source source, long size, ByteBuffer scratch) throws IOException {
+        long length = size;
+        long position = 0;
+        while (position < size) {
+            scratch.clear();
+            int count = source.read(position, scratch, (int) Math.min(scratch.capacity(), size - position));
+            if (count <= 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                byte b = scratch.get(i);
+                if (b == LF || b == CR) {
+                    length++;
+                }
+            }
+            position += count;
+        }
+        return length;
+    }
+
+    /**
+     * Produces netascii blocks from a local file. Blocks are made in order, but any of
+     * the last windowSize blocks, and the one after them, can be made again: the
+     * encoder keeps where each of them starts, not their bytes.
+     */
+    public static final class Encoder {
+        private final Source source;
+        private final int blockSize;
+        private final ByteBuffer scratch;
+        private final int[] blocks;     // block number each start point belongs to
+        private final long[] positions; // file position the block starts at
+        private final int[] carried;    // byte left over from the block before, or NONE
+
+        public Encoder(Source source, int blockSize, int windowSize) {
+            this.source = source;
+            this.blockSize = blockSize;
+            this.scratch = ByteBuffer.allocate(blockSize);
+            this.blocks = new int[windowSize + 1];
+            this.positions = new long[windowSize + 1];
+            this.carried = new int[windowSize + 1];
+            blocks[1 % blocks.length] = 1;
+            carried[1 % blocks.length] = NONE;
+        }
+
+        /**
+         * Appends block blockNumber (1 is the first) to dst, which needs room for blockSize bytes.
+         * Returns its length, short only for the last block.
+         */
+        public int read(int blockNumber, ByteBuffer dst) throws IOException {
+            int slot = blockNumber % blocks.length;
+            if (blocks[slot] != blockNumber) {
+                throw new IllegalStateException("Block " + blockNumber + " is no longer in the window");
+            }
+            long position = positions[slot];
+            int pending = carried[slot];
+            int start = dst.position();
+            int end = start + blockSize;
+            if (pending != NONE) {
+                dst.put((byte) pending);
+                pending = NONE;
+            }
+            while (dst.position() < end) {
+                // Every byte encodes to at least one, so never read more than there is room for
+                scratch.clear();
+                int count = source.read(position, scratch, end - dst.position());
+                if (count <= 0) {
+                    break;
+                }
+                for (int i = 0; i < count && dst.position() < end; i++) {
+                    byte b = scratch.get(i);
+                    position++;
+                    if (b != LF && b != CR) {
+                        dst.put(b);
+                        continue;
+                    }
+                    dst.put(CR);
+                    byte second = b == LF ? LF : NUL;
+                    if (dst.position() < end) {
+                        dst.put(second);
+                    } else {
+                        pending = second;
+                    }
+                }
+            }
+            int next = (blockNumber + 1) % blocks.length;
+            blocks[next] = blockNumber + 1;
+            positions[next] = position;
+            carried[next] = pending;
+            return dst.position() - start;
+        }
+    }
+
+    /**
+     * Turns netascii blocks back into local text, one block at a time, in order.
+     */
+    public static final class Decoder {
+        private boolean carriedCr; // the last block ended in a CR
+
+        /**
+         * Decodes src into dst, which needs room for src.remaining() + 1 bytes. With
+         * last set, a CR left at the very end is kept as it is.
+         */
+        public void decode(ByteBuffer src, ByteBuffer dst, boolean last) {
+            while (src.hasRemaining()) {
+                byte b = src.get();
+                if (carriedCr) {
+                    carriedCr = false;
+                    if (b == LF) {
+                        dst.put(LF);
+                        continue;
+                    }
+                    dst.put(CR);
+                    if (b == NUL) {
+                        continue;
+                    }
+                }
+                if (b == CR) {
+                    carriedCr = true;
+                } else {
+                    dst.put(b);
+                }
+            }
+            if (last && carriedCr) {
+                carriedCr = false;
+                dst.put(CR);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.aa2796.tftp.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes TFTP packets in place into caller-owned ByteBuffers. Nothing is
+ * allocated per packet: DATA headers are written in front of the payload the
+ * caller reads straight into the same buffer, and strings and option values
+ * are copied byte by byte. Received packets are decoded with a {@link PacketReader}.
+ */
+public final class PacketCodec {
+    public static final int OP_RRQ = 1;
+    public static final int OP_WRQ = 2;
+    public static final int OP_DATA = 3;
+    public static final int OP_ACK = 4;
+    public static final int OP_ERROR = 5;
+    public static final int OP_OACK = 6;
+
+    public static final int ERROR_NOT_DEFINED = 0;
+    public static final int ERROR_FILE_NOT_FOUND = 1;
+    public static final int ERROR_ACCESS_VIOLATION = 2;
+    public static final int ERROR_DISK_FULL = 3;
+    public static final int ERROR_ILLEGAL_OPERATION = 4;
+    public static final int ERROR_UNKNOWN_TID = 5;
+    public static final int ERROR_FILE_EXISTS = 6;
+    public static final int ERROR_OPTION_REFUSED = 8;
+
+    public static final int HEADER_LENGTH = 4; // Opcode + block number (or error code)
+
+    private PacketCodec() {
+    }
+
+    /**
+     * Clears dst and writes an RRQ/WRQ header. Options may follow with {@link #putOption}; flip before sending.
+     */
+    public static ByteBuffer beginRequest(ByteBuffer dst, int opcode, String filename, String mode) {
+        dst.clear();
+        dst.putShort((short) opcode);
+        putString(dst, filename);
+        putString(dst, mode);
+        return dst;
+    }
+
+    /**
+     * Clears dst and writes an OACK opcode. Options follow with {@link #putOption}; flip before sending.
+     */
+    public static ByteBuffer beginOack(ByteBuffer dst) {
+        dst.clear();
+        dst.putShort((short) OP_OACK);
+        return dst;
+    }
+
+    public static ByteBuffer putOption(ByteBuffer dst, String name, long value) {
+        putString(dst, name);
+        putDecimal(dst, value);
+        dst.put((byte) 0);
+        return dst;
+    }
+
+    public static ByteBuffer putOption(ByteBuffer dst, String name, String value) {
+        putString(dst, name);
+        putString(dst, value);
+        return dst;
+    }
+
+    /**
+     * Number block (1 is the first) goes on the wire as. Past 65535 the 16-bit
+     * field wraps around to rolloverBase, 0 or 1 depending on the peer.
+     */
+    public static int wireBlock(int block, int rolloverBase) {
+        if (block <= 0xffff) {
+            return block;
+        }
+        return rolloverBase + (block - rolloverBase) % (0x10000 - rolloverBase);
+    }
+
+    /**
+     * Inverse of {@link #wireBlock}: the first block at or after from that goes on
+     * the wire as wire. Returns -1 for a number the sequence never reaches again,
+     * such as 0 when wrapping to 1.
+     */
+    public static int unwrapBlock(int wire, int from, int rolloverBase) {
+        if (wire < rolloverBase) {
+            return from <= wire ? wire : -1;
+        }
+        int start = Math.max(from, rolloverBase);
+        return start + Math.floorMod(wire - wireBlock(start, rolloverBase), 0x10000 - rolloverBase);
+    }
+
+    /**
+     * Clears dst and writes a DATA header. The caller appends the payload and flips.
+     */
+    public static ByteBuffer beginData(ByteBuffer dst, int blockNumber) {
+        dst.clear();
+        dst.putShort((short) OP_DATA);
+        dst.putShort((short) blockNumber);
+        return dst;
+    }
+
+    /**
+     * Encodes a complete ACK into dst, ready to send.
+     */
+    public static ByteBuffer encodeAck(ByteBuffer dst, int blockNumber) {
+        dst.clear();
+        dst.putShort((short) OP_ACK);
+        dst.putShort((short) blockNumber);
+        return dst.flip();
+    }
+
+    /**
+     * Encodes a complete ERROR into dst, ready to send. The message is cut short if it does not fit.
+     */
+    public static ByteBuffer encodeError(ByteBuffer dst, int errorCode, String message) {
+        dst.clear();
+        dst.putShort((short) OP_ERROR);
+        dst.putShort((short) errorCode);
+        int length = Math.min(message.length(), dst.remaining() - 1);
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            dst.put((byte) (c < 0x80 ? c : '?'));
+        }
+        dst.put((byte) 0);
+        return dst.flip();
+    }
+
+    private static void putString(ByteBuffer dst, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Rare non-ASCII filename, fall back to an encoded copy
+                dst.position(dst.position() - i);
+                dst.put(value.getBytes(StandardCharsets.UTF_8));
+                dst.put((byte) 0);
+                return;
+            }
+            dst.put((byte) c);
+        }
+        dst.put((byte) 0);
+    }
+
+    private static void putDecimal(ByteBuffer dst, long value) {
+        if (value < 0) {
+            dst.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            dst.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+}
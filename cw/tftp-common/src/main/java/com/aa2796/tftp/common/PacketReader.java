@@ -0,0 +1,156 @@
+package com.aa2796.tftp.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight view over a received packet. Header fields are read in place and
+ * option names are matched without building Strings, so one reader can be
+ * re-wrapped around every packet of a transfer. Only the request filename,
+ * mode and error messages are copied out.
+ */
+public final class PacketReader {
+    private ByteBuffer packet;
+    private int start;  // offset of the opcode
+    private int cursor; // next unread NUL-terminated string
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Points the reader at the packet between the buffer's position and limit.
+     */
+    public PacketReader wrap(ByteBuffer packet) {
+        this.packet = packet;
+        this.start = packet.position();
+        this.cursor = start + 2;
+        return this;
+    }
+
+    public int length() {
+        return packet.limit() - start;
+    }
+
+    public int opcode() {
+        return length() < 2 ? -1 : packet.getShort(start) & 0xffff;
+    }
+
+    public int blockNumber() {
+        return packet.getShort(start + 2) & 0xffff;
+    }
+
+    public int errorCode() {
+        return packet.getShort(start + 2) & 0xffff;
+    }
+
+    public String errorMessage() {
+        cursor = start + PacketCodec.HEADER_LENGTH;
+        String message = readString();
+        return message != null ? message : "";
+    }
+
+    public int payloadLength() {
+        return length() - PacketCodec.HEADER_LENGTH;
+    }
+
+    /**
+     * Positions the underlying buffer at the DATA payload and returns it.
+     */
+    public ByteBuffer payload() {
+        packet.position(start + PacketCodec.HEADER_LENGTH);
+        return packet;
+    }
+
+    /**
+     * Reads the next NUL-terminated string, e.g. the filename and mode of a request. Returns null at the end.
+     */
+    public String readString() {
+        if (!nextField()) {
+            return null;
+        }
+        byte[] bytes = new byte[nameEnd - nameStart];
+        packet.get(nameStart, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Advances to the next option name/value pair of a request or OACK. Returns false when there are none left.
+     */
+    public boolean nextOption() {
+        if (!nextField()) {
+            return false;
+        }
+        int name = nameStart;
+        int end = nameEnd;
+        if (!nextField()) {
+            return false;
+        }
+        valueStart = nameStart;
+        valueEnd = nameEnd;
+        nameStart = name;
+        nameEnd = end;
+        return true;
+    }
+
+    /**
+     * True if the current option name equals name, ignoring ASCII case.
+     */
+    public boolean optionIs(String name) {
+        if (nameEnd - nameStart != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int b = packet.get(nameStart + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The current option value as a non-negative decimal number, or -1 if it is not one.
+     */
+    public long optionValue() {
+        if (valueEnd == valueStart || valueEnd - valueStart > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            int digit = packet.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * The current option value as a String, for options that are not plain numbers.
+     */
+    public String optionText() {
+        byte[] bytes = new byte[valueEnd - valueStart];
+        packet.get(valueStart, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean nextField() {
+        int limit = packet.limit();
+        if (cursor >= limit) {
+            return false;
+        }
+        int end = cursor;
+        while (end < limit && packet.get(end) != 0) {
+            end++;
+        }
+        nameStart = cursor;
+        nameEnd = end;
+        cursor = end + 1;
+        return true;
+    }
+}
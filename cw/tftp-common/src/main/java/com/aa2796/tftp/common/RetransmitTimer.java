@@ -0,0 +1,81 @@
+package com.aa2796.tftp.common;
+
+/**
+ * Adaptive retransmission timeout in the style of Jacobson/Karels (RFC 6298).
+ * Keeps a smoothed RTT and its variance, doubles the timeout on every expiry,
+ * and follows Karn's rule: round trips that involved a retransmission are not
+ * sampled, so the backed-off timeout is kept until a clean sample arrives.
+ */
+public class RetransmitTimer {
+    public static final long INITIAL_TIMEOUT_MILLIS = 1000;
+    public static final long MIN_TIMEOUT_MILLIS = Long.getLong("tftp.minTimeout", 50);
+    public static final long MAX_TIMEOUT_MILLIS = Long.getLong("tftp.maxTimeout", 16000);
+    public static final int MAX_RETRIES = Integer.getInteger("tftp.maxRetries", 6);
+
+    private double srtt = -1;
+    private double rttvar;
+    private long timeout = INITIAL_TIMEOUT_MILLIS;
+    private long sendTime = -1;
+    private long sendNanos;
+    private boolean retransmitted;
+    private int retries;
+
+    /**
+     * Records the send time of the first packet of a round trip. Later calls before
+     * the matching ACK (the rest of a window, or retransmissions) are ignored.
+     */
+    public void packetSent(long now) {
+        if (sendTime < 0) {
+            sendTime = now;
+            sendNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called when the peer made progress. Takes an RTT sample unless the round trip was retransmitted,
+     * and returns it in microseconds, or -1 if no sample was taken.
+     */
+    public long ackReceived(long now) {
+        long micros = -1;
+        if (sendTime >= 0 && !retransmitted) {
+            sample(now - sendTime);
+            micros = (System.nanoTime() - sendNanos) / 1000;
+        }
+        sendTime = -1;
+        retransmitted = false;
+        retries = 0;
+        return micros;
+    }
+
+    /**
+     * Backs the timeout off after an expiry. Returns false once the retry budget is spent.
+     */
+    public boolean timedOut() {
+        retransmitted = true;
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT_MILLIS);
+        return ++retries <= MAX_RETRIES;
+    }
+
+    private void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        timeout = Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, (long) Math.ceil(srtt + 4 * rttvar)));
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public double getSmoothedRtt() {
+        return srtt;
+    }
+}
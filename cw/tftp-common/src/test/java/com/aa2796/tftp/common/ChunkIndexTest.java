@@ -0,0 +1,215 @@
+package com.aa2796.tftp.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkIndexTest {
+    private static final int CHUNK = ChunkIndex.MIN_CHUNK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void sidecarNamesAreRecognised() {
+        Path file = directory.resolve("image.bin");
+
+        assertEquals(directory.resolve("image.bin.crc32c"), ChunkIndex.sidecarPath(file));
+        assertTrue(ChunkIndex.isSidecar(ChunkIndex.sidecarPath(file)));
+        assertTrue(ChunkIndex.isSidecar(directory.resolve("IMAGE.BIN.CRC32C")));
+        assertFalse(ChunkIndex.isSidecar(file));
+    }
+
+    @Test
+    void newFileStartsEmptyAndLeavesNoSidecarOnceComplete() throws IOException {
+        Path file = directory.resolve("new.bin");
+        ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK);
+
+        assertEquals(0, index.getChunkCount());
+        assertEquals(ChunkIndex.MISSING, index.get(0));
+        assertTrue(ChunkIndex.isPartial(file));
+
+        index.complete();
+        assertFalse(ChunkIndex.isPartial(file));
+    }
+
+    @Test
+    void existingFileWithoutSidecarCountsAsHeld() throws IOException {
+        Path file = write("held.bin", 3 * CHUNK + 100, 1);
+
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            assertArrayEquals(digestAll(file), digests(index));
+            assertEquals(3L * CHUNK, index.heldPrefix(Files.size(file)));
+        }
+    }
+
+    @Test
+    void recordedDigestsSurviveReopening() throws IOException {
+        Path file = write("resumed.bin", 4 * CHUNK, 2);
+        long[] expected = digestAll(file);
+        Files.delete(file);
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            write("resumed.bin", 4 * CHUNK, 2);
+            index.record(0, expected[0]);
+            index.record(2, expected[2]);
+        }
+
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, 2 * CHUNK)) {
+            assertEquals(CHUNK, index.getChunkSize()); // The sidecar's chunk size wins
+            assertEquals(3, index.getChunkCount());
+            assertEquals(expected[0], index.get(0));
+            assertEquals(ChunkIndex.MISSING, index.get(1));
+            assertEquals(expected[2], index.get(2));
+            assertEquals(CHUNK, index.heldPrefix(4L * CHUNK));
+        }
+    }
+
+    @Test
+    void corruptedChunkIsTreatedAsMissing() throws IOException {
+        Path file = directory.resolve("torn.bin");
+        byte[] data = random(3 * CHUNK, 3);
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            Files.write(file, data);
+            index.append(0, ByteBuffer.wrap(data));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) ~data[CHUNK + 5]}), CHUNK + 5);
+        }
+
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            assertEquals(3, index.getChunkCount());
+            assertTrue(index.get(0) != ChunkIndex.MISSING);
+            assertEquals(ChunkIndex.MISSING, index.get(1));
+            assertTrue(index.get(2) != ChunkIndex.MISSING);
+            assertEquals(CHUNK, index.heldPrefix(data.length));
+        }
+    }
+
+    @Test
+    void shortenedFileInvalidatesItsLastChunks() throws IOException {
+        Path file = directory.resolve("short.bin");
+        byte[] data = random(2 * CHUNK, 4);
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            Files.write(file, data);
+            index.append(0, ByteBuffer.wrap(data));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(CHUNK + 10);
+        }
+
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            assertTrue(index.get(0) != ChunkIndex.MISSING);
+            assertEquals(ChunkIndex.MISSING, index.get(1));
+        }
+    }
+
+    @Test
+    void appendRecordsEveryCompleteChunk() throws IOException {
+        Path file = directory.resolve("appended.bin");
+        byte[] data = random(3 * CHUNK + 77, 5);
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            // Blocks of an odd size, so chunk boundaries fall inside them
+            for (int position = 0; position < data.length; position += 1468) {
+                ByteBuffer block = ByteBuffer.wrap(data, position, Math.min(1468, data.length - position));
+                index.append(position, block);
+                assertEquals(position, block.position());
+            }
+            Files.write(file, data);
+            long[] expected = digestAll(file);
+
+            assertEquals(3, index.getChunkCount());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected[i], index.get(i));
+            }
+        }
+    }
+
+    @Test
+    void appendSkipsToTheNextBoundaryAfterAGap() throws IOException {
+        Path file = directory.resolve("gap.bin");
+        byte[] data = random(3 * CHUNK, 6);
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            index.append(0, ByteBuffer.wrap(data, 0, 100));
+            index.append(200, ByteBuffer.wrap(data, 200, CHUNK - 200)); // Not where the last call stopped
+            index.append(CHUNK, ByteBuffer.wrap(data, CHUNK, CHUNK));
+
+            assertEquals(ChunkIndex.MISSING, index.get(0));
+            assertEquals(ChunkIndex.digest(ByteBuffer.wrap(data, CHUNK, CHUNK)), index.get(1));
+        }
+    }
+
+    @Test
+    void truncateForgetsLaterChunks() throws IOException {
+        Path file = write("truncated.bin", 4 * CHUNK, 7);
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            index.truncate(2L * CHUNK + 10);
+            assertEquals(2, index.getChunkCount());
+        }
+
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            assertEquals(2, index.getChunkCount());
+            assertEquals(2L * CHUNK, index.heldPrefix(4L * CHUNK));
+        }
+    }
+
+    @Test
+    void recordPastTheEndFillsTheGap() throws IOException {
+        Path file = directory.resolve("sparse.bin");
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            index.record(3, 42);
+        }
+        Files.write(file, new byte[0]);
+
+        try (ChunkIndex index = ChunkIndex.openForReceive(file, CHUNK)) {
+            assertEquals(4, index.getChunkCount());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(ChunkIndex.MISSING, index.get(i));
+            }
+        }
+    }
+
+    @Test
+    void digestPrefixNeedsTheWholePrefix() throws IOException {
+        Path file = write("prefix.bin", 1000, 8);
+        byte[] data = Files.readAllBytes(file);
+
+        assertEquals(ChunkIndex.digest(ByteBuffer.wrap(data, 0, 600)), ChunkIndex.digestPrefix(file, 600));
+        assertEquals(ChunkIndex.MISSING, ChunkIndex.digestPrefix(file, 1001));
+    }
+
+    private Path write(String name, int length, long seed) throws IOException {
+        return Files.write(directory.resolve(name), random(length, seed));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static long[] digestAll(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            return ChunkIndex.digestAll(channel, CHUNK);
+        }
+    }
+
+    private static long[] digests(ChunkIndex index) {
+        long[] digests = new long[index.getChunkCount()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = index.get(i);
+        }
+        return digests;
+    }
+}
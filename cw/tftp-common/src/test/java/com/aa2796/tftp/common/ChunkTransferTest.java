@@ -0,0 +1,193 @@
+package com.aa2796.tftp.common;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Both ends of a resumable transfer over a loopback connection, with the sending
+ * side on its own thread.
+ */
+class ChunkTransferTest {
+    private static final int CHUNK = ChunkIndex.DEFAULT_CHUNK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private ExecutorService sender;
+    private SocketChannel sending;
+    private SocketChannel receiving;
+
+    @BeforeEach
+    void connect() throws IOException {
+        sender = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiving = SocketChannel.open(listener.getLocalAddress());
+            sending = listener.accept();
+        }
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        sender.shutdownNow();
+        sending.close();
+        receiving.close();
+    }
+
+    @Test
+    void sendsEverythingToAnEmptyReceiver() throws Exception {
+        byte[] data = random(2 * CHUNK + 1234, 1);
+        Path source = Files.write(directory.resolve("source.bin"), data);
+        Path target = directory.resolve("target.bin");
+
+        Future<Long> sent = sender.submit(() -> ChunkTransfer.send(sending, source, null));
+        long received = ChunkTransfer.receive(receiving, target, null);
+
+        assertEquals(data.length, received);
+        assertEquals(data.length, (long) sent.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(ChunkIndex.isPartial(target));
+    }
+
+    @Test
+    void resendsOnlyChunksThatDiffer() throws Exception {
+        byte[] data = random(3 * CHUNK + 10, 2);
+        Path source = Files.write(directory.resolve("source.bin"), data);
+        byte[] stale = data.clone();
+        stale[CHUNK + 17] ^= 1;
+        Path target = Files.write(directory.resolve("target.bin"), stale);
+        AtomicLong progress = new AtomicLong();
+
+        Future<Long> sent = sender.submit(() -> ChunkTransfer.send(sending, source, progress::addAndGet));
+        long received = ChunkTransfer.receive(receiving, target, null);
+
+        assertEquals(CHUNK, received);
+        assertEquals(CHUNK, (long) sent.get(10, TimeUnit.SECONDS));
+        assertEquals(CHUNK, progress.get());
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test
+    void resumesFromTheSidecarAndTrimsALongerFile() throws Exception {
+        byte[] data = random(2 * CHUNK + 500, 3);
+        Path source = Files.write(directory.resolve("source.bin"), data);
+        Path target = directory.resolve("target.bin");
+        // An earlier attempt got the first chunk and part of the second, plus junk past the end
+        try (ChunkIndex index = ChunkIndex.openForReceive(target, CHUNK);
+             FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(data, 0, CHUNK + 100), 0);
+            file.write(ByteBuffer.wrap(new byte[CHUNK]), 3L * CHUNK);
+            index.record(0, ChunkIndex.digest(ByteBuffer.wrap(data, 0, CHUNK)));
+        }
+
+        Future<Long> sent = sender.submit(() -> ChunkTransfer.send(sending, source, null));
+        long received = ChunkTransfer.receive(receiving, target, null);
+
+        assertEquals(data.length - CHUNK, received);
+        assertEquals(data.length - CHUNK, (long) sent.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(ChunkIndex.isPartial(target));
+    }
+
+    @Test
+    void missingSourceLeavesNothingBehind() throws Exception {
+        Path target = directory.resolve("target.bin");
+
+        Future<Long> sent = sender.submit(() -> ChunkTransfer.send(sending, directory.resolve("absent.bin"), null));
+        long received = ChunkTransfer.receive(receiving, target, null);
+
+        assertEquals(-1, received);
+        assertEquals(-1, (long) sent.get(10, TimeUnit.SECONDS));
+        assertFalse(Files.exists(target));
+        assertFalse(ChunkIndex.isPartial(target));
+    }
+
+    @Test
+    void hugeDigestCountFromThePeerIsNotAllocated() throws Exception {
+        Path source = Files.write(directory.resolve("source.bin"), random(100, 4));
+        ByteBuffer announce = ByteBuffer.allocate(8).putInt(CHUNK).putInt(Integer.MAX_VALUE).flip();
+        while (announce.hasRemaining()) {
+            receiving.write(announce);
+        }
+        receiving.shutdownOutput();
+
+        Future<Long> sent = sender.submit(() -> ChunkTransfer.send(sending, source, null));
+
+        Exception failure = assertThrows(Exception.class, () -> sent.get(10, TimeUnit.SECONDS));
+        assertEquals(EOFException.class, failure.getCause().getClass());
+    }
+
+    @Test
+    void digestCountMustMatchTheSize() throws Exception {
+        Path target = directory.resolve("target.bin");
+        Future<?> peer = sender.submit(() -> {
+            ByteBuffer announce = ByteBuffer.allocate(8);
+            while (announce.hasRemaining()) {
+                sending.read(announce);
+            }
+            ByteBuffer answer = ByteBuffer.allocate(12).putLong(10).putInt(Integer.MAX_VALUE).flip();
+            while (answer.hasRemaining()) {
+                sending.write(answer);
+            }
+            return null;
+        });
+
+        IOException failure = assertThrows(IOException.class, () -> ChunkTransfer.receive(receiving, target, null));
+        assertEquals("Bad digest count " + Integer.MAX_VALUE + " for 10 bytes", failure.getMessage());
+        peer.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void sizeBeyondTheDiskIsRefusedBeforeItsDigests() throws Exception {
+        Path target = directory.resolve("target.bin");
+        // A consistent count of Integer.MAX_VALUE digests would need 16 GB to hold
+        long size = (long) Integer.MAX_VALUE * CHUNK;
+        Future<?> peer = sender.submit(() -> {
+            ByteBuffer announce = ByteBuffer.allocate(8);
+            while (announce.hasRemaining()) {
+                sending.read(announce);
+            }
+            ByteBuffer answer = ByteBuffer.allocate(12).putLong(size).putInt(Integer.MAX_VALUE).flip();
+            while (answer.hasRemaining()) {
+                sending.write(answer);
+            }
+            return null;
+        });
+
+        IOException failure = assertThrows(IOException.class, () -> ChunkTransfer.receive(receiving, target, null));
+        assertEquals("Not enough disk space for " + size + " bytes", failure.getMessage());
+        peer.get(10, TimeUnit.SECONDS);
+        assertFalse(Files.exists(target));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
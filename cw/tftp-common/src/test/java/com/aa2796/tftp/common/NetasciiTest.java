@@ -0,0 +1,227 @@
+package com.aa2796.tftp.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NetasciiTest {
+    private static final int BLOCK_SIZE = 8;
+
+    @Test
+    void modeIsMatchedIgnoringCase() {
+        assertTrue(Netascii.isNetascii("NetAscii"));
+        assertFalse(Netascii.isNetascii("octet"));
+    }
+
+    @Test
+    void encodesLineEndsAndBareCarriageReturns() throws IOException {
+        byte[] text = ascii("one\ntwo\rthree\r\n");
+
+        assertArrayEquals(ascii("one\r\ntwo\r\0three\r\0\r\n"), encodeAll(text, BLOCK_SIZE, 1));
+    }
+
+    @Test
+    void pairSplitByBlockBoundaryIsCarried() throws IOException {
+        // The LF lands on the last byte of the first block, so its CR LF straddles the boundary
+        byte[] text = ascii("abcdefg\nhij");
+        List<byte[]> blocks = encodeBlocks(text, BLOCK_SIZE, 1);
+
+        assertArrayEquals(ascii("abcdefg\r"), blocks.get(0));
+        assertArrayEquals(ascii("\nhij"), blocks.get(1));
+    }
+
+    @Test
+    void lastBlockIsShortAndEmptyOnExactMultiple() throws IOException {
+        List<byte[]> blocks = encodeBlocks(ascii("abc\ndefgh\n\nxy"), BLOCK_SIZE, 1);
+
+        assertEquals(3, blocks.size());
+        assertEquals(BLOCK_SIZE, blocks.get(0).length);
+        assertEquals(BLOCK_SIZE, blocks.get(1).length);
+        assertEquals(0, blocks.get(2).length);
+    }
+
+    @Test
+    void encodedLengthCountsOneExtraByteForEveryCrAndLf() throws IOException {
+        byte[] text = randomText(10_000, 1);
+
+        long length = Netascii.encodedLength(source(text), text.length, ByteBuffer.allocate(512));
+
+        assertEquals(encodeAll(text, 512, 4).length, length);
+    }
+
+    @Test
+    void blocksInTheWindowCanBeMadeAgain() throws IOException {
+        byte[] text = randomText(200, 2);
+        Netascii.Encoder encoder = new Netascii.Encoder(source(text), BLOCK_SIZE, 4);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        List<byte[]> first = new ArrayList<>();
+        for (int blockNumber = 1; blockNumber <= 4; blockNumber++) {
+            first.add(read(encoder, blockNumber, block));
+        }
+
+        // Go back to the start of the window, as after a timeout
+        for (int blockNumber = 1; blockNumber <= 4; blockNumber++) {
+            assertArrayEquals(first.get(blockNumber - 1), read(encoder, blockNumber, block));
+        }
+    }
+
+    @Test
+    void blocksOutsideTheWindowAreRefused() throws IOException {
+        Netascii.Encoder encoder = new Netascii.Encoder(source(randomText(200, 3)), BLOCK_SIZE, 2);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        for (int blockNumber = 1; blockNumber <= 5; blockNumber++) {
+            read(encoder, blockNumber, block);
+        }
+
+        assertThrows(IllegalStateException.class, () -> read(encoder, 2, block));
+        assertThrows(IllegalStateException.class, () -> read(encoder, 8, block));
+    }
+
+    @Test
+    void decoderJoinsCrLfAcrossBlocks() {
+        Netascii.Decoder decoder = new Netascii.Decoder();
+        ByteBuffer out = ByteBuffer.allocate(32);
+
+        decoder.decode(wrap("line\r"), out, false);
+        decoder.decode(wrap("\nnext\r"), out, false);
+        decoder.decode(wrap("\0end"), out, true);
+
+        assertEquals("line\nnext\rend", text(out));
+    }
+
+    @Test
+    void decoderKeepsTrailingCrOfLastBlock() {
+        Netascii.Decoder decoder = new Netascii.Decoder();
+        ByteBuffer out = ByteBuffer.allocate(32);
+
+        decoder.decode(wrap("end\r"), out, false);
+        decoder.decode(wrap(""), out, true);
+
+        assertEquals("end\r", text(out));
+    }
+
+    @Test
+    void decoderKeepsCrFollowedByOtherBytes() {
+        Netascii.Decoder decoder = new Netascii.Decoder();
+        ByteBuffer out = ByteBuffer.allocate(32);
+
+        decoder.decode(wrap("a\rb\r"), out, false);
+        decoder.decode(wrap("c"), out, true);
+
+        assertEquals("a\rb\rc", text(out));
+    }
+
+    @Test
+    void roundTripsAtEveryBlockSize() throws IOException {
+        byte[] text = randomText(3_000, 4);
+        for (int blockSize = 1; blockSize <= 64; blockSize++) {
+            Netascii.Decoder decoder = new Netascii.Decoder();
+            ByteBuffer out = ByteBuffer.allocate(text.length + 1);
+            List<byte[]> blocks = encodeBlocks(text, blockSize, 1);
+            for (int i = 0; i < blocks.size(); i++) {
+                decoder.decode(ByteBuffer.wrap(blocks.get(i)), out, i == blocks.size() - 1);
+            }
+            assertArrayEquals(text, bytes(out), "block size " + blockSize);
+        }
+    }
+
+    @Test
+    void readsFromFileChannel(@TempDir Path directory) throws IOException {
+        byte[] text = randomText(5_000, 5);
+        Path file = Files.write(directory.resolve("text.txt"), text);
+
+        try (FileChannel channel = FileChannel.open(file)) {
+            Netascii.Source source = Netascii.of(channel);
+            assertEquals(encodeAll(text, 512, 1).length,
+                    Netascii.encodedLength(source, text.length, ByteBuffer.allocate(100)));
+            assertArrayEquals(encodeAll(text, 512, 1), encode(source, 512, 1));
+        }
+    }
+
+    private static byte[] encodeAll(byte[] text, int blockSize, int windowSize) throws IOException {
+        return encode(source(text), blockSize, windowSize);
+    }
+
+    private static byte[] encode(Netascii.Source source, int blockSize, int windowSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Netascii.Encoder encoder = new Netascii.Encoder(source, blockSize, windowSize);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        for (int blockNumber = 1; ; blockNumber++) {
+            byte[] bytes = read(encoder, blockNumber, block);
+            out.write(bytes);
+            if (bytes.length < blockSize) {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    private static List<byte[]> encodeBlocks(byte[] text, int blockSize, int windowSize) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        Netascii.Encoder encoder = new Netascii.Encoder(source(text), blockSize, windowSize);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        for (int blockNumber = 1; blocks.isEmpty() || blocks.get(blocks.size() - 1).length == blockSize; blockNumber++) {
+            blocks.add(read(encoder, blockNumber, block));
+        }
+        return blocks;
+    }
+
+    private static byte[] read(Netascii.Encoder encoder, int blockNumber, ByteBuffer block) throws IOException {
+        block.clear();
+        int length = encoder.read(blockNumber, block);
+        assertEquals(length, block.position());
+        return bytes(block);
+    }
+
+    private static Netascii.Source source(byte[] text) {
+        return (position, dst, length) -> {
+            int count = (int) Math.max(0, Math.min(length, text.length - position));
+            dst.put(text, (int) position, count);
+            return count;
+        };
+    }
+
+    private static byte[] randomText(int length, long seed) {
+        // Mostly letters, with plenty of line ends, bare CRs and CR LF pairs
+        byte[] alphabet = ascii("abc \n\r\n\r");
+        Random random = new Random(seed);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return text;
+    }
+
+    private static byte[] bytes(ByteBuffer written) {
+        byte[] bytes = new byte[written.position()];
+        written.get(0, bytes);
+        return bytes;
+    }
+
+    private static String text(ByteBuffer written) {
+        return new String(bytes(written), StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer wrap(String text) {
+        return ByteBuffer.wrap(ascii(text));
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
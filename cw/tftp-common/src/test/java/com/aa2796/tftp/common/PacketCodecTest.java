@@ -0,0 +1,193 @@
+package com.aa2796.tftp.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PacketCodecTest {
+    private final ByteBuffer buffer = ByteBuffer.allocate(516);
+    private final PacketReader reader = new PacketReader();
+
+    @Test
+    void requestWithOptionsRoundTrips() {
+        PacketCodec.beginRequest(buffer, PacketCodec.OP_RRQ, "image.bin", "octet");
+        PacketCodec.putOption(buffer, "blksize", 1468);
+        PacketCodec.putOption(buffer, "tsize", 0);
+        PacketCodec.putOption(buffer, "multicast", "");
+        reader.wrap(buffer.flip());
+
+        assertEquals(PacketCodec.OP_RRQ, reader.opcode());
+        assertEquals("image.bin", reader.readString());
+        assertEquals("octet", reader.readString());
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("BLKSIZE"));
+        assertEquals(1468, reader.optionValue());
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("tsize"));
+        assertEquals(0, reader.optionValue());
+        assertTrue(reader.nextOption());
+        assertTrue(reader.optionIs("multicast"));
+        assertEquals("", reader.optionText());
+        assertEquals(-1, reader.optionValue());
+        assertFalse(reader.nextOption());
+    }
+
+    @Test
+    void oackCarriesLargeValues() {
+        PacketCodec.beginOack(buffer);
+        PacketCodec.putOption(buffer, "tsize", 5_000_000_000L);
+        reader.wrap(buffer.flip());
+
+        assertEquals(PacketCodec.OP_OACK, reader.opcode());
+        assertTrue(reader.nextOption());
+        assertEquals(5_000_000_000L, reader.optionValue());
+        assertEquals("5000000000", reader.optionText());
+    }
+
+    @Test
+    void optionValueRejectsNonDigits() {
+        PacketCodec.beginOack(buffer);
+        PacketCodec.putOption(buffer, "blksize", "12x4");
+        PacketCodec.putOption(buffer, "timeout", -3);
+        reader.wrap(buffer.flip());
+
+        assertTrue(reader.nextOption());
+        assertEquals(-1, reader.optionValue());
+        assertTrue(reader.nextOption());
+        assertEquals("-3", reader.optionText());
+        assertEquals(-1, reader.optionValue());
+    }
+
+    @Test
+    void nonAsciiFilenameIsSentAsUtf8() {
+        String name = "résumé.txt";
+        PacketCodec.beginRequest(buffer, PacketCodec.OP_WRQ, name, "octet");
+        reader.wrap(buffer.flip());
+
+        assertEquals(PacketCodec.OP_WRQ, reader.opcode());
+        assertEquals(name, reader.readString());
+        assertEquals("octet", reader.readString());
+        assertNull(reader.readString());
+    }
+
+    @Test
+    void dataPayloadFollowsHeader() {
+        byte[] payload = "hello, world".getBytes(StandardCharsets.US_ASCII);
+        PacketCodec.beginData(buffer, 7).put(payload);
+        reader.wrap(buffer.flip());
+
+        assertEquals(PacketCodec.OP_DATA, reader.opcode());
+        assertEquals(7, reader.blockNumber());
+        assertEquals(payload.length, reader.payloadLength());
+        byte[] received = new byte[reader.payloadLength()];
+        reader.payload().get(received);
+        assertEquals("hello, world", new String(received, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void blockNumbersAreUnsigned() {
+        reader.wrap(PacketCodec.encodeAck(buffer, 0xffff));
+
+        assertEquals(PacketCodec.OP_ACK, reader.opcode());
+        assertEquals(0xffff, reader.blockNumber());
+        assertEquals(PacketCodec.HEADER_LENGTH, reader.length());
+    }
+
+    @Test
+    void readerStartsAtBufferPosition() {
+        ByteBuffer received = ByteBuffer.allocate(64);
+        received.position(10);
+        received.putShort((short) PacketCodec.OP_ACK).putShort((short) 42).flip().position(10);
+        reader.wrap(received);
+
+        assertEquals(PacketCodec.OP_ACK, reader.opcode());
+        assertEquals(42, reader.blockNumber());
+        assertEquals(PacketCodec.HEADER_LENGTH, reader.length());
+    }
+
+    @Test
+    void shortPacketHasNoOpcode() {
+        reader.wrap(ByteBuffer.allocate(1));
+
+        assertEquals(-1, reader.opcode());
+    }
+
+    @Test
+    void errorMessageIsCutToFit() {
+        ByteBuffer small = ByteBuffer.allocate(10);
+        reader.wrap(PacketCodec.encodeError(small, PacketCodec.ERROR_DISK_FULL, "Disk full or allocation exceeded"));
+
+        assertEquals(PacketCodec.OP_ERROR, reader.opcode());
+        assertEquals(PacketCodec.ERROR_DISK_FULL, reader.errorCode());
+        assertEquals("Disk ", reader.errorMessage());
+        assertEquals(10, reader.length());
+    }
+
+    @Test
+    void errorMessageReplacesNonAscii() {
+        reader.wrap(PacketCodec.encodeError(buffer, PacketCodec.ERROR_FILE_NOT_FOUND, "café missing"));
+
+        assertEquals(PacketCodec.ERROR_FILE_NOT_FOUND, reader.errorCode());
+        assertEquals("caf? missing", reader.errorMessage());
+    }
+
+    @Test
+    void blocksBelowRolloverAreUnchanged() {
+        assertEquals(1, PacketCodec.wireBlock(1, 0));
+        assertEquals(65535, PacketCodec.wireBlock(65535, 0));
+        assertEquals(65535, PacketCodec.wireBlock(65535, 1));
+    }
+
+    @Test
+    void blocksWrapToRolloverBase() {
+        assertEquals(0, PacketCodec.wireBlock(65536, 0));
+        assertEquals(1, PacketCodec.wireBlock(65537, 0));
+        assertEquals(0, PacketCodec.wireBlock(65536 * 2, 0));
+
+        assertEquals(1, PacketCodec.wireBlock(65536, 1));
+        assertEquals(65535, PacketCodec.wireBlock(65536 + 65534, 1));
+        assertEquals(1, PacketCodec.wireBlock(65536 + 65535, 1));
+    }
+
+    @Test
+    void unwrapInvertsWireBlockAcrossRollovers() {
+        int window = 64;
+        for (int rolloverBase = 0; rolloverBase <= 1; rolloverBase++) {
+            for (int block = 65536 - 2 * window; block < 3 * 65536; block += 7) {
+                int wire = PacketCodec.wireBlock(block, rolloverBase);
+                for (int from = Math.max(1, block - window + 1); from <= block; from += 9) {
+                    assertEquals(block, PacketCodec.unwrapBlock(wire, from, rolloverBase),
+                            "block " + block + " from " + from + " base " + rolloverBase);
+                }
+            }
+        }
+    }
+
+    @Test
+    void unwrapFindsFirstBlockAtOrAfterFrom() {
+        assertEquals(65536 + 4, PacketCodec.unwrapBlock(4, 70, 0));
+        assertEquals(4, PacketCodec.unwrapBlock(4, 4, 0));
+        assertEquals(65535 + 4, PacketCodec.unwrapBlock(4, 65535, 1));
+    }
+
+    @Test
+    void zeroNeverComesBackWhenWrappingToOne() {
+        assertEquals(0, PacketCodec.unwrapBlock(0, 0, 1));
+        assertEquals(-1, PacketCodec.unwrapBlock(0, 1, 1));
+        assertEquals(-1, PacketCodec.unwrapBlock(0, 70_000, 1));
+    }
+
+    @Test
+    void wrappedBlockSurvivesTheWire() {
+        int block = 200_000;
+        reader.wrap(PacketCodec.encodeAck(buffer, PacketCodec.wireBlock(block, 1)));
+
+        assertEquals(block, PacketCodec.unwrapBlock(reader.blockNumber(), block - 10, 1));
+    }
+}